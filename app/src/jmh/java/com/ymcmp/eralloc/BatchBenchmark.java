@@ -0,0 +1,52 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import com.ymcmp.eralloc.ast.ExprAST;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how {@link ERAlloc#codegenAll} scales with the number of threads
+ * on a batch of small independent expressions. Throughput is in expressions
+ * per unit of time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    private static final int BATCH = 4096;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    @Param({ "balanced", "callHeavy" })
+    public String shape;
+
+    private List<ExprAST> roots;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        this.roots = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; ++i)
+            this.roots.add(Trees.generate(this.shape, 63 + 2 * (i % 32)));
+
+        this.pool = new ForkJoinPool(this.threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<List<String>> codegenAll() {
+        return ERAlloc.codegenAll(this.roots, this.pool);
+    }
+}
@@ -0,0 +1,103 @@
+package com.ymcmp.eralloc;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.ymcmp.eralloc.ast.ExprAST;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the labelling pass, the emission pass and the whole pipeline on
+ * trees of {@link Trees#NODES} nodes. Every invocation counts as that many
+ * operations, so throughput is in nodes per unit of time and the average
+ * time is the latency per node. Run with -prof gc for allocation rates.
+ * codegen and encode compare producing the text with producing the
+ * machine code, and cachedCodegen is the cost of a cache hit. The flat
+ * variants compile the same tree as a {@link FlatExpr}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodegenBenchmark {
+
+    @Param({ "balanced", "leftDeep", "rightDeep", "callHeavy", "divShift" })
+    public String shape;
+
+    private ExprAST root;
+    private ErshovLabel labels;
+    private CodegenCache cache;
+    private FlatExpr flat;
+
+    @Setup
+    public void setup() {
+        this.root = Trees.generate(this.shape, Trees.NODES);
+        if (Trees.countNodes(this.root) != Trees.NODES)
+            throw new IllegalStateException("Shape " + this.shape + " has the wrong number of nodes");
+
+        this.labels = new ErshovLabel();
+        this.labels.label(this.root);
+
+        this.cache = new CodegenCache(16);
+        this.cache.codegen(this.root);
+
+        this.flat = FlatExpr.of(this.root);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.NODES)
+    public int label() {
+        final ErshovLabel labels = new ErshovLabel();
+        labels.label(this.root);
+        return labels.labelOf(0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.NODES)
+    public int flatLabel() {
+        final ErshovLabel labels = new ErshovLabel();
+        labels.label(this.flat);
+        return labels.labelOf(0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.NODES)
+    public InstrBuffer emit() {
+        final EmitX86 emitter = new EmitX86(this.labels, CodegenOptions.DEFAULT);
+        emitter.emit();
+        return emitter.getInstrs();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.NODES)
+    public InstrBuffer codegenInstrs() {
+        return ERAlloc.codegenInstrs(this.root);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.NODES)
+    public List<String> codegen() {
+        return ERAlloc.codegen(this.root);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.NODES)
+    public List<String> flatCodegen() {
+        return ERAlloc.codegen(this.flat, CodegenOptions.DEFAULT);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.NODES)
+    public List<String> cachedCodegen() {
+        return this.cache.codegen(this.root);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.NODES)
+    public int encode() {
+        final X86Encoder encoder = new X86Encoder(Target.X86);
+        ERAlloc.encode(this.root, CodegenOptions.DEFAULT, encoder);
+        return encoder.size();
+    }
+}
@@ -0,0 +1,44 @@
+package com.ymcmp.eralloc;
+
+import java.util.concurrent.TimeUnit;
+import com.ymcmp.eralloc.ast.ExprAST;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the register allocation strategies on trees of
+ * {@link Trees#NODES} nodes. The number of values each one spills is
+ * printed during setup, since that is what the time is traded for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StrategyBenchmark {
+
+    @Param({ "balanced", "leftDeep", "rightDeep", "callHeavy", "divShift" })
+    public String shape;
+
+    @Param({ "ERSHOV", "LINEAR_SCAN", "GRAPH_COLORING" })
+    public Strategy strategy;
+
+    private ExprAST root;
+    private CodegenOptions opts;
+
+    @Setup
+    public void setup() {
+        this.root = Trees.generate(this.shape, Trees.NODES);
+        this.opts = CodegenOptions.DEFAULT.withStrategy(this.strategy);
+
+        final CodegenResult result = ERAlloc.compile(this.root, this.opts);
+        System.out.println(this.shape + " " + this.strategy + ": " + result.getSpillCount()
+                + " spills, " + result.getInstrs().size() + " instructions");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trees.NODES)
+    public CodegenResult compile() {
+        return ERAlloc.compile(this.root, this.opts);
+    }
+}
@@ -0,0 +1,114 @@
+package com.ymcmp.eralloc;
+
+import com.ymcmp.eralloc.ast.*;
+
+/**
+ * Generates trees of various shapes, all with exactly the requested number
+ * of nodes so that per-node numbers are comparable across shapes.
+ */
+public final class Trees {
+
+    public static final int NODES = 8191;
+
+    private Trees() {
+    }
+
+    public static ExprAST generate(String shape, int n) {
+        switch (shape) {
+        case "balanced":    return balanced(n, 0);
+        case "leftDeep":    return leftDeep(n);
+        case "rightDeep":   return rightDeep(n);
+        case "callHeavy":   return callHeavy(n, 0);
+        case "divShift":    return divShift(n, 0);
+        default:
+            throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    public static int countNodes(ExprAST root) {
+        final ExprStack stack = new ExprStack();
+        stack.push(root, -1);
+
+        int count = 0;
+        while (!stack.isEmpty()) {
+            stack.pushChildren(stack.pop());
+            count++;
+        }
+        return count;
+    }
+
+    private static ExprAST leaf(int seed) {
+        switch (seed % 3) {
+        case 0:     return new Numeric(seed);
+        case 1:     return new FrameIndex(4 * (seed % 16 + 1));
+        default:    return new GlobalValue("g" + seed % 8);
+        }
+    }
+
+    private static ExprAST small(int n, int seed) {
+        // only for trees of one or two nodes
+        return n == 1 ? leaf(seed) : new LoadExpr(leaf(seed));
+    }
+
+    private static ExprAST arith(int seed, ExprAST lhs, ExprAST rhs) {
+        switch (seed % 3) {
+        case 0:     return new AddExpr(lhs, rhs);
+        case 1:     return new SubExpr(lhs, rhs);
+        default:    return new MulExpr(lhs, rhs);
+        }
+    }
+
+    private static ExprAST balanced(int n, int seed) {
+        if (n <= 2)
+            return small(n, seed);
+
+        final int lhs = (n - 1) / 2;
+        return arith(seed, balanced(lhs, seed + 1), balanced(n - 1 - lhs, seed + 2));
+    }
+
+    private static ExprAST leftDeep(int n) {
+        ExprAST e = small(2 - n % 2, 0);
+        for (int i = 1; n - 2 * i >= 1; ++i)
+            e = arith(i, e, leaf(i));
+        return e;
+    }
+
+    private static ExprAST rightDeep(int n) {
+        ExprAST e = small(2 - n % 2, 0);
+        for (int i = 1; n - 2 * i >= 1; ++i)
+            e = arith(i, leaf(i), e);
+        return e;
+    }
+
+    private static ExprAST callHeavy(int n, int seed) {
+        if (n <= 2)
+            return small(n, seed);
+        if (n < 8)
+            return new AddExpr(leaf(seed), callHeavy(n - 2, seed + 1));
+
+        // the call itself and the callee take up two nodes
+        final int a = (n - 2) / 3;
+        final int b = (n - 2) / 3;
+        final int c = n - 2 - a - b;
+        return new CallExpr(new GlobalValue("f" + seed % 4),
+                callHeavy(a, seed + 1),
+                callHeavy(b, seed + 2),
+                callHeavy(c, seed + 3));
+    }
+
+    private static ExprAST divShift(int n, int seed) {
+        if (n <= 2)
+            return small(n, seed);
+
+        final int half = (n - 1) / 2;
+        final ExprAST lhs = divShift(half, seed + 1);
+        final ExprAST rhs = divShift(n - 1 - half, seed + 2);
+        switch (seed % 5) {
+        case 0:     return new DivExpr(lhs, rhs);
+        case 1:     return new RemExpr(lhs, rhs);
+        case 2:     return new ShlExpr(lhs, rhs);
+        case 3:     return new SraExpr(lhs, rhs);
+        default:    return new SrlExpr(lhs, rhs);
+        }
+    }
+}
@@ -1,14 +1,200 @@
-/*
- * This Java source file was generated by the Gradle 'init' task.
- */
 package com.ymcmp.eralloc;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Compiles a file of expressions (see {@link ExprParser}) from the command
+ * line. The code of each expression is written out as soon as it is
+ * compiled, preceded by a comment with its number, and the throughput is
+ * reported on stderr once everything is done.
+ *
+ * With --listen or --port, it instead keeps running as a
+ * {@link CompileServer}, which saves starting (and warming up) a JVM for
+ * every compile.
+ */
 public class App {
-    public String getGreeting() {
-        return "Hello World!";
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "usage: eralloc [options] input [output]",
+            "       eralloc [options] --listen path | --port port",
+            "",
+            "Compiles every expression in input and writes the code to output",
+            "(or stdout). Or serves compile requests on a unix domain socket",
+            "or a loopback port until it is killed, see CompileServer.",
+            "",
+            "options:",
+            "  --target x86|x64",
+            "  --strategy ershov|linear-scan|graph-coloring",
+            "  --peephole, --simplify, --cse, --immediates, --remat,",
+            "  --addressing, --tiling, --prologue",
+            "                    enable the optimization (see CodegenOptions)",
+            "  -O                all of the above except --cse and --prologue",
+            "  --threads n       compile on n threads when serving",
+            "  -q                do not report the throughput (or the latency)");
+
+    /**
+     * Compiles every expression the parser reads to out. Returns the
+     * number of expressions.
+     */
+    static long compileAll(ExprParser in, CodegenOptions opts, Appendable out) throws IOException {
+        long count = 0;
+        while (in.hasNext()) {
+            final FlatExpr e = in.next();
+            out.append("; ").append(Long.toString(++count)).append('\n');
+            ERAlloc.codegen(e, opts, out);
+        }
+        return count;
+    }
+
+    private static CodegenOptions option(CodegenOptions opts, String arg, String value) {
+        switch (arg) {
+        case "--target":
+            return opts.withTarget(Target.valueOf(value.toUpperCase(Locale.ROOT)));
+        case "--strategy":
+            return opts.withStrategy(Strategy.valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_')));
+        default:
+            throw new IllegalArgumentException("Unknown option " + arg);
+        }
+    }
+
+    private static int threads(String value) {
+        final int threads = Integer.parseInt(value);
+        if (threads < 1)
+            throw new IllegalArgumentException("--threads needs at least one thread");
+        return threads;
     }
 
-    public static void main(String[] args) {
-        System.out.println(new App().getGreeting());
+    private static CodegenOptions flag(CodegenOptions opts, String arg) {
+        switch (arg) {
+        case "--peephole":
+            return opts.withPeephole(true);
+        case "--simplify":
+            return opts.withSimplification(true);
+        case "--cse":
+            return opts.withCommonSubexpressions(true);
+        case "--immediates":
+            return opts.withImmediates(true);
+        case "--remat":
+            return opts.withRematerialization(true);
+        case "--addressing":
+            return opts.withAddressingModes(true);
+        case "--tiling":
+            return opts.withTiling(true);
+        case "--prologue":
+            return opts.withPrologue(true);
+        case "-O":
+            return opts.withPeephole(true).withSimplification(true).withImmediates(true)
+                    .withRematerialization(true).withAddressingModes(true).withTiling(true);
+        default:
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        CodegenOptions opts = CodegenOptions.DEFAULT;
+        boolean quiet = false;
+        Path input = null;
+        Path output = null;
+        SocketAddress listen = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                final String arg = args[i];
+                if (arg.equals("-q")) {
+                    quiet = true;
+                } else if (arg.startsWith("-")) {
+                    final CodegenOptions next = flag(opts, arg);
+                    if (next != null)
+                        opts = next;
+                    else if (i + 1 >= args.length)
+                        throw new IllegalArgumentException("Missing value for " + arg);
+                    else if (arg.equals("--listen"))
+                        listen = UnixDomainSocketAddress.of(args[++i]);
+                    else if (arg.equals("--port"))
+                        listen = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[++i]));
+                    else if (arg.equals("--threads"))
+                        threads = threads(args[++i]);
+                    else
+                        opts = option(opts, arg, args[++i]);
+                } else if (input == null) {
+                    input = Paths.get(arg);
+                } else if (output == null) {
+                    output = Paths.get(arg);
+                } else {
+                    throw new IllegalArgumentException("Too many arguments");
+                }
+            }
+            if (listen != null && input != null)
+                throw new IllegalArgumentException("Cannot compile a file and listen at the same time");
+            if (listen == null && input == null)
+                throw new IllegalArgumentException("Missing input");
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        if (listen != null) {
+            serve(listen, opts, threads, quiet);
+            return;
+        }
+
+        final ExprParser parser = ExprParser.map(input);
+        final long start = System.nanoTime();
+        final long count;
+        try (final WritableByteChannel ch = output == null
+                ? Channels.newChannel(System.out)
+                : FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ChannelAppendable out = new ChannelAppendable(ch);
+            try {
+                count = compileAll(parser, opts, out);
+            } finally {
+                out.flush();
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(input + ": " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        if (!quiet) {
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.printf("%d expressions in %.3f s (%.0f expressions/s)%n", count, seconds, count / seconds);
+        }
+    }
+
+    private static void serve(SocketAddress address, CodegenOptions opts, int threads, boolean quiet) throws IOException {
+        final CompileServer server = new CompileServer(address, opts, threads);
+
+        // closing also removes the socket file
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException ex) {
+                // exiting anyway
+            }
+            if (!quiet) {
+                final StringBuilder sb = new StringBuilder();
+                server.getLatency().describeTo(sb);
+                System.err.print(sb);
+            }
+        }));
+
+        server.start();
+        if (!quiet)
+            System.err.println("listening on " + server.getAddress());
     }
 }
@@ -0,0 +1,48 @@
+package com.ymcmp.eralloc;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import com.ymcmp.eralloc.ast.ExprAST;
+
+/**
+ * Compiles a range of independent expressions by splitting it in halves until
+ * the ranges are small enough. Each expression gets its own labeller and
+ * emitter, and the results are written to the slot of the same index, so the
+ * output order never depends on scheduling.
+ */
+final class BatchCodegen extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    // small enough that uneven expression sizes still balance out, large
+    // enough that tiny expressions do not drown in task overhead.
+    private static final int THRESHOLD = 8;
+
+    private final ExprAST[] roots;
+    private final CodegenOptions opts;
+    private final List<String>[] results;
+    private final int lo;
+    private final int hi;
+
+    public BatchCodegen(ExprAST[] roots, CodegenOptions opts, List<String>[] results, int lo, int hi) {
+        this.roots = roots;
+        this.opts = opts;
+        this.results = results;
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+        if (this.hi - this.lo <= THRESHOLD) {
+            for (int i = this.lo; i < this.hi; ++i)
+                this.results[i] = ERAlloc.codegen(this.roots[i], this.opts);
+            return;
+        }
+
+        final int mid = (this.lo + this.hi) >>> 1;
+        invokeAll(
+                new BatchCodegen(this.roots, this.opts, this.results, this.lo, mid),
+                new BatchCodegen(this.roots, this.opts, this.results, mid, this.hi));
+    }
+}
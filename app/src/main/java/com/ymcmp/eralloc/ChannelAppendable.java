@@ -0,0 +1,98 @@
+package com.ymcmp.eralloc;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.*;
+
+/**
+ * Adapts a channel to an Appendable by encoding the text as UTF-8 into a
+ * (reusable) byte buffer, which is written out whenever it fills up. The
+ * text is only guaranteed to reach the channel after {@link #flush()}.
+ */
+public final class ChannelAppendable implements Appendable, Flushable {
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    public ChannelAppendable(WritableByteChannel out) {
+        this(out, ByteBuffer.allocateDirect(DEFAULT_CAPACITY));
+    }
+
+    public ChannelAppendable(WritableByteChannel out, ByteBuffer buffer) {
+        if (buffer.capacity() < 16)
+            throw new IllegalArgumentException("Buffer is too small");
+
+        this.out = out;
+        this.buffer = buffer;
+        this.buffer.clear();
+    }
+
+    @Override
+    public Appendable append(CharSequence csq) throws IOException {
+        if (csq == null)
+            csq = "null";
+
+        // copy the ascii prefix byte by byte and only use the encoder for
+        // whatever follows (the listings are plain ascii)
+        final int length = csq.length();
+        int i = 0;
+        for (; i < length; ++i) {
+            final char c = csq.charAt(i);
+            if (c >= 0x80)
+                break;
+            if (!this.buffer.hasRemaining())
+                this.drain();
+            this.buffer.put((byte) c);
+        }
+        if (i == length)
+            return this;
+
+        final CharBuffer chars = CharBuffer.wrap(csq, i, length);
+        while (true) {
+            final CoderResult result = this.encoder.encode(chars, this.buffer, false);
+            if (result.isOverflow())
+                this.drain();
+            else if (result.isUnderflow())
+                return this;
+            else
+                result.throwException();
+        }
+    }
+
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) throws IOException {
+        return this.append((csq == null ? "null" : csq).subSequence(start, end));
+    }
+
+    @Override
+    public Appendable append(char c) throws IOException {
+        if (c < 0x80) {
+            // fast path for ascii
+            if (!this.buffer.hasRemaining())
+                this.drain();
+            this.buffer.put((byte) c);
+            return this;
+        }
+        return this.append(String.valueOf(c));
+    }
+
+    private void drain() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining())
+            this.out.write(this.buffer);
+        this.buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.drain();
+    }
+}
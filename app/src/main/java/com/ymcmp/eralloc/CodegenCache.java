@@ -0,0 +1,255 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+import com.ymcmp.eralloc.ast.*;
+
+/**
+ * A bounded cache in front of {@link ERAlloc#codegen(ExprAST, CodegenOptions)}
+ * that evicts the least recently used entry when it is full. Expressions are
+ * matched by structure, so an equal tree that is built again is served from
+ * the cache without being labelled or emitted.
+ *
+ * The key is a flat copy of the tree, so the cache never holds on to the
+ * expressions it is given. A node that is reachable through more than one
+ * path is part of the structure (it is only evaluated once when common
+ * subexpressions are enabled), so a DAG never matches the tree with the
+ * shared nodes duplicated.
+ *
+ * All methods are thread safe. The cached listings are unmodifiable and
+ * shared between callers. Misses are compiled outside of the lock, so
+ * threads that miss on the same expression at the same time all compile it.
+ */
+public final class CodegenCache {
+
+    private static final int SHARED = -1;
+
+    private static final class Key {
+
+        private final int[] codes;
+        private final String[] symbols;
+        private final CodegenOptions opts;
+        private final int hash;
+
+        public Key(int[] codes, String[] symbols, CodegenOptions opts) {
+            this.codes = codes;
+            this.symbols = symbols;
+            this.opts = opts;
+            this.hash = (Arrays.hashCode(codes) * 31 + Arrays.hashCode(symbols)) * 31 + opts.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+
+            final Key k = (Key) obj;
+            return this.hash == k.hash
+                    && Arrays.equals(this.codes, k.codes)
+                    && Arrays.equals(this.symbols, k.symbols)
+                    && this.opts.equals(k.opts);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * Flattens a tree in pre-order: every node is its kind (see
+     * {@link FlatExpr}) followed by its value (constants and frame indices),
+     * the index of its symbol (global values) or the number of arguments
+     * (calls). A node that was already seen is SHARED followed by where it
+     * was first seen instead.
+     */
+    private static final class KeyBuilder implements ExprAST.Visitor<Void> {
+
+        private int[] codes = new int[64];
+        private int size;
+        private final List<String> symbols = new ArrayList<>();
+
+        private void add(int code) {
+            if (this.size == this.codes.length)
+                this.codes = Arrays.copyOf(this.codes, this.size * 2);
+            this.codes[this.size++] = code;
+        }
+
+        public Key build(ExprAST root, CodegenOptions opts) {
+            final IdentityIntMap<ExprAST> seen = new IdentityIntMap<>();
+            final ExprStack work = new ExprStack();
+            work.push(root, -1);
+
+            int count = 0;
+            while (!work.isEmpty()) {
+                final ExprAST e = work.pop();
+                final int first = seen.getOrDefault(e, -1);
+                if (first >= 0) {
+                    this.add(SHARED);
+                    this.add(first);
+                    continue;
+                }
+
+                seen.put(e, count++);
+                e.accept(this);
+                work.pushChildren(e);
+            }
+
+            return new Key(Arrays.copyOf(this.codes, this.size), this.symbols.toArray(new String[0]), opts);
+        }
+
+        @Override
+        public Void visitNumeric(Numeric e) {
+            this.add(FlatExpr.NUMERIC);
+            this.add(e.value);
+            return null;
+        }
+
+        @Override
+        public Void visitFrameIndex(FrameIndex e) {
+            this.add(FlatExpr.FRAME_INDEX);
+            this.add(e.value);
+            return null;
+        }
+
+        @Override
+        public Void visitGlobalValue(GlobalValue e) {
+            this.add(FlatExpr.GLOBAL_VALUE);
+            this.add(this.symbols.size());
+            this.symbols.add(e.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLoadExpr(LoadExpr e) {
+            this.add(FlatExpr.LOAD);
+            return null;
+        }
+
+        @Override
+        public Void visitStoreExpr(StoreExpr e) {
+            this.add(FlatExpr.STORE);
+            return null;
+        }
+
+        @Override
+        public Void visitAddExpr(AddExpr e) {
+            this.add(FlatExpr.ADD);
+            return null;
+        }
+
+        @Override
+        public Void visitSubExpr(SubExpr e) {
+            this.add(FlatExpr.SUB);
+            return null;
+        }
+
+        @Override
+        public Void visitMulExpr(MulExpr e) {
+            this.add(FlatExpr.MUL);
+            return null;
+        }
+
+        @Override
+        public Void visitDivExpr(DivExpr e) {
+            this.add(FlatExpr.DIV);
+            return null;
+        }
+
+        @Override
+        public Void visitRemExpr(RemExpr e) {
+            this.add(FlatExpr.REM);
+            return null;
+        }
+
+        @Override
+        public Void visitShlExpr(ShlExpr e) {
+            this.add(FlatExpr.SHL);
+            return null;
+        }
+
+        @Override
+        public Void visitSraExpr(SraExpr e) {
+            this.add(FlatExpr.SRA);
+            return null;
+        }
+
+        @Override
+        public Void visitSrlExpr(SrlExpr e) {
+            this.add(FlatExpr.SRL);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(CallExpr e) {
+            this.add(FlatExpr.CALL);
+            this.add(e.args.length);
+            return null;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Key, List<String>> entries;
+
+    private long hits;
+    private long misses;
+
+    public CodegenCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<String>> eldest) {
+                return this.size() > CodegenCache.this.capacity;
+            }
+        };
+    }
+
+    public List<String> codegen(ExprAST e) {
+        return this.codegen(e, CodegenOptions.DEFAULT);
+    }
+
+    public List<String> codegen(ExprAST e, CodegenOptions opts) {
+        final Key key = new KeyBuilder().build(e, opts);
+        synchronized (this) {
+            final List<String> code = this.entries.get(key);
+            if (code != null) {
+                this.hits++;
+                return code;
+            }
+            this.misses++;
+        }
+
+        final List<String> code = Collections.unmodifiableList(ERAlloc.codegen(e, opts));
+        synchronized (this) {
+            this.entries.put(key, code);
+        }
+        return code;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Removes every entry and resets the counters.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.hits = 0;
+        this.misses = 0;
+    }
+}
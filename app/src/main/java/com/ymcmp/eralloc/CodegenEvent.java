@@ -0,0 +1,78 @@
+package com.ymcmp.eralloc;
+
+import jdk.jfr.*;
+
+/**
+ * Flight Recorder event for the compilation of one expression. The duration
+ * of the event covers the whole compilation, the fields are the same as
+ * {@link CodegenStats}. It is enabled by default, but costs next to nothing
+ * when no recording is running.
+ */
+@Name("com.ymcmp.eralloc.Codegen")
+@Label("Codegen")
+@Category("ERAlloc")
+@Description("Compilation of an expression")
+@StackTrace(false)
+final class CodegenEvent extends Event {
+
+    @Label("Strategy")
+    String strategy;
+
+    @Label("Target")
+    String target;
+
+    @Label("Nodes")
+    int nodes;
+
+    @Label("Max Label")
+    int maxLabel;
+
+    @Label("Instructions")
+    int instructions;
+
+    @Label("Spills")
+    int spills;
+
+    @Label("Emergency Spills")
+    int emergencySpills;
+
+    @Label("Exchanges")
+    int exchanges;
+
+    @Label("Frame Size")
+    @DataAmount
+    int frameSize;
+
+    @Label("Label Time")
+    @Timespan
+    long labelTime;
+
+    @Label("Emit Time")
+    @Timespan
+    long emitTime;
+
+    @Label("Peephole Hits")
+    long peepholeHits;
+
+    /**
+     * Fills in the fields and commits the event if it is recorded.
+     */
+    void report(CodegenOptions opts, CodegenStats stats) {
+        if (!this.shouldCommit())
+            return;
+
+        this.strategy = opts.getStrategy().name();
+        this.target = opts.getTarget().name();
+        this.nodes = stats.getNodeCount();
+        this.maxLabel = stats.getMaxLabel();
+        this.instructions = stats.getInstructionCount();
+        this.spills = stats.getSpillCount();
+        this.emergencySpills = stats.getEmergencySpillCount();
+        this.exchanges = stats.getExchangeCount();
+        this.frameSize = stats.getFrameSize();
+        this.labelTime = stats.getLabelTime();
+        this.emitTime = stats.getEmitTime();
+        this.peepholeHits = stats.getPeepholeHits();
+        this.commit();
+    }
+}
@@ -0,0 +1,272 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+
+/**
+ * Knobs for {@link ERAlloc}. Instances are immutable, the with* methods
+ * return a modified copy.
+ */
+public final class CodegenOptions {
+
+    public static final CodegenOptions DEFAULT = new CodegenOptions();
+
+    private boolean commonSubexpressions;
+    private boolean peephole;
+    private boolean simplification;
+    private boolean immediates;
+    private boolean rematerialization;
+    private boolean addressingModes;
+    private boolean tiling;
+    private int frameOffset;
+    private boolean prologue;
+    private Strategy strategy = Strategy.ERSHOV;
+    private Target target = Target.X86;
+    private List<Register> registers;
+
+    private CodegenOptions() {
+    }
+
+    private CodegenOptions(CodegenOptions other) {
+        this.commonSubexpressions = other.commonSubexpressions;
+        this.peephole = other.peephole;
+        this.simplification = other.simplification;
+        this.immediates = other.immediates;
+        this.rematerialization = other.rematerialization;
+        this.addressingModes = other.addressingModes;
+        this.tiling = other.tiling;
+        this.frameOffset = other.frameOffset;
+        this.prologue = other.prologue;
+        this.strategy = other.strategy;
+        this.target = other.target;
+        this.registers = other.registers;
+    }
+
+    /**
+     * If enabled, structurally equal subtrees are merged and every node that
+     * is reachable through more than one path is only evaluated once. Its
+     * value is kept in a frame slot for the later uses.
+     *
+     * When disabled, shared nodes are simply evaluated once per use.
+     */
+    public boolean isCommonSubexpressions() {
+        return this.commonSubexpressions;
+    }
+
+    public CodegenOptions withCommonSubexpressions(boolean enabled) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.commonSubexpressions = enabled;
+        return o;
+    }
+
+    /**
+     * If enabled, the emitted instructions are cleaned up by a
+     * {@link Peephole} pass. When streaming, each batch is cleaned up on its
+     * own, so patterns that span two batches are left alone.
+     */
+    public boolean isPeephole() {
+        return this.peephole;
+    }
+
+    public CodegenOptions withPeephole(boolean enabled) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.peephole = enabled;
+        return o;
+    }
+
+    /**
+     * If enabled, constants are folded and operations by constants are
+     * strength reduced (see {@link Simplifier}) before the expression is
+     * labelled. Divisions and remainders by constants are done with shifts or
+     * multiplications instead of idiv.
+     */
+    public boolean isSimplification() {
+        return this.simplification;
+    }
+
+    public CodegenOptions withSimplification(boolean enabled) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.simplification = enabled;
+        return o;
+    }
+
+    /**
+     * If enabled, constants (and symbols on x86) are used as immediate
+     * operands wherever the instruction allows it instead of being loaded
+     * into a register first.
+     */
+    public boolean isImmediates() {
+        return this.immediates;
+    }
+
+    public CodegenOptions withImmediates(boolean enabled) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.immediates = enabled;
+        return o;
+    }
+
+    /**
+     * If enabled, registers holding constants or addresses are not spilled.
+     * Their value is computed again when it is needed.
+     */
+    public boolean isRematerialization() {
+        return this.rematerialization;
+    }
+
+    public CodegenOptions withRematerialization(boolean enabled) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.rematerialization = enabled;
+        return o;
+    }
+
+    /**
+     * If enabled, pointers made of frame indices, constant offsets and shifts
+     * by 1 to 3 are folded into the addressing mode of the load or store, and
+     * loads are used directly as the source operand of add, sub and imul.
+     */
+    public boolean isAddressingModes() {
+        return this.addressingModes;
+    }
+
+    public CodegenOptions withAddressingModes(boolean enabled) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.addressingModes = enabled;
+        return o;
+    }
+
+    /**
+     * If enabled, instructions are selected by tiling the expression with
+     * patterns of known cost (see {@link Tiler}) and picking the cheapest
+     * cover. This decides on the immediates, addressing modes and memory
+     * operands by itself (also using lea for additions), so those options
+     * do not matter then.
+     */
+    public boolean isTiling() {
+        return this.tiling;
+    }
+
+    public CodegenOptions withTiling(boolean enabled) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.tiling = enabled;
+        return o;
+    }
+
+    /**
+     * The number of bytes right below the frame pointer that are already in
+     * use (by the frame indices, for example). Spills and shared values are
+     * kept in slots below them. By default this is 0.
+     */
+    public int getFrameOffset() {
+        return this.frameOffset;
+    }
+
+    public CodegenOptions withFrameOffset(int bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Negative frame offset " + bytes);
+
+        final CodegenOptions o = new CodegenOptions(this);
+        o.frameOffset = bytes;
+        return o;
+    }
+
+    /**
+     * If enabled, the code sets up its own frame, just big enough for the
+     * frame offset and the slots it ends up using, and tears it down at the
+     * end. Since the size is only known at the end, nothing is streamed
+     * until then.
+     */
+    public boolean isPrologue() {
+        return this.prologue;
+    }
+
+    public CodegenOptions withPrologue(boolean enabled) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.prologue = enabled;
+        return o;
+    }
+
+    /**
+     * How registers are allocated. By default this is
+     * {@link Strategy#ERSHOV}.
+     */
+    public Strategy getStrategy() {
+        return this.strategy;
+    }
+
+    public CodegenOptions withStrategy(Strategy strategy) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.strategy = Objects.requireNonNull(strategy);
+        return o;
+    }
+
+    public Target getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Switches to a different target. This also resets the registers to the
+     * default ones of the target.
+     */
+    public CodegenOptions withTarget(Target target) {
+        final CodegenOptions o = new CodegenOptions(this);
+        o.target = Objects.requireNonNull(target);
+        o.registers = null;
+        return o;
+    }
+
+    /**
+     * The registers the allocator may use, in the order it prefers them.
+     * Callee saved registers are saved to the frame and restored if the
+     * expression needs them. The result of the expression is left in the
+     * first register, which is why that one must be caller saved. By default
+     * these are the ones of {@link Target#defaultRegisters()}.
+     */
+    public List<Register> getRegisters() {
+        return this.registers == null ? this.target.defaultRegisters() : this.registers;
+    }
+
+    public CodegenOptions withRegisters(Register... registers) {
+        return this.withRegisters(Arrays.asList(registers));
+    }
+
+    public CodegenOptions withRegisters(List<Register> registers) {
+        this.target.checkRegisters(registers);
+
+        final CodegenOptions o = new CodegenOptions(this);
+        o.registers = Collections.unmodifiableList(new ArrayList<>(registers));
+        return o;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CodegenOptions))
+            return false;
+
+        final CodegenOptions o = (CodegenOptions) obj;
+        return this.commonSubexpressions == o.commonSubexpressions
+                && this.peephole == o.peephole
+                && this.simplification == o.simplification
+                && this.immediates == o.immediates
+                && this.rematerialization == o.rematerialization
+                && this.addressingModes == o.addressingModes
+                && this.tiling == o.tiling
+                && this.frameOffset == o.frameOffset
+                && this.prologue == o.prologue
+                && this.strategy == o.strategy
+                && this.target == o.target
+                && this.getRegisters().equals(o.getRegisters());
+    }
+
+    @Override
+    public int hashCode() {
+        int flags = 0;
+        flags = flags << 1 | (this.commonSubexpressions ? 1 : 0);
+        flags = flags << 1 | (this.peephole ? 1 : 0);
+        flags = flags << 1 | (this.simplification ? 1 : 0);
+        flags = flags << 1 | (this.immediates ? 1 : 0);
+        flags = flags << 1 | (this.rematerialization ? 1 : 0);
+        flags = flags << 1 | (this.addressingModes ? 1 : 0);
+        flags = flags << 1 | (this.tiling ? 1 : 0);
+        flags = flags << 1 | (this.prologue ? 1 : 0);
+        return Objects.hash(flags, this.frameOffset, this.strategy, this.target, this.getRegisters());
+    }
+}
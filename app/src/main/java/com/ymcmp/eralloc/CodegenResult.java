@@ -0,0 +1,60 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+
+/**
+ * The code of an expression along with the size of the frame it needs.
+ */
+public final class CodegenResult {
+
+    private final InstrBuffer instrs;
+    private final int frameSize;
+    private final int spillCount;
+    private final CodegenStats stats;
+
+    public CodegenResult(InstrBuffer instrs, int frameSize, int spillCount) {
+        this(instrs, frameSize, spillCount, null);
+    }
+
+    public CodegenResult(InstrBuffer instrs, int frameSize, int spillCount, CodegenStats stats) {
+        this.instrs = instrs;
+        this.frameSize = frameSize;
+        this.spillCount = spillCount;
+        this.stats = stats;
+    }
+
+    public InstrBuffer getInstrs() {
+        return this.instrs;
+    }
+
+    /**
+     * Returns the number of bytes below the frame pointer that the code
+     * uses, counting the frame offset. Unless the code sets up its own frame
+     * (see {@link CodegenOptions#isPrologue()}), the caller has to reserve
+     * them.
+     */
+    public int getFrameSize() {
+        return this.frameSize;
+    }
+
+    /**
+     * Returns how many values were stored to the frame because there was
+     * no register to keep them in (including the ones saved across calls).
+     * Values that are computed again instead are not counted.
+     */
+    public int getSpillCount() {
+        return this.spillCount;
+    }
+
+    /**
+     * Returns the statistics of the compilation, null if the result was not
+     * produced by {@link ERAlloc}.
+     */
+    public CodegenStats getStats() {
+        return this.stats;
+    }
+
+    public List<String> toStrings() {
+        return this.instrs.toStrings();
+    }
+}
@@ -0,0 +1,129 @@
+package com.ymcmp.eralloc;
+
+/**
+ * What went into the code of one expression, see
+ * {@link CodegenResult#getStats()}. The same numbers are recorded as a
+ * com.ymcmp.eralloc.Codegen event when Flight Recorder is running.
+ */
+public final class CodegenStats {
+
+    private final int nodeCount;
+    private final int maxLabel;
+    private final int instructionCount;
+    private final int spillCount;
+    private final int emergencySpillCount;
+    private final int exchangeCount;
+    private final int frameSize;
+    private final long labelTime;
+    private final long emitTime;
+    private final long[] peepholeHits;
+
+    CodegenStats(int nodeCount, int maxLabel, int instructionCount, int spillCount, int emergencySpillCount,
+            int exchangeCount, int frameSize, long labelTime, long emitTime, Peephole peephole) {
+        this.nodeCount = nodeCount;
+        this.maxLabel = maxLabel;
+        this.instructionCount = instructionCount;
+        this.spillCount = spillCount;
+        this.emergencySpillCount = emergencySpillCount;
+        this.exchangeCount = exchangeCount;
+        this.frameSize = frameSize;
+        this.labelTime = labelTime;
+        this.emitTime = emitTime;
+        this.peepholeHits = peephole == null ? new long[Peephole.Rule.values().length] : peephole.copyHits();
+    }
+
+    /**
+     * Returns the number of nodes that were labelled. This is after the
+     * expression is simplified, and later occurrences of shared nodes count
+     * as one node each.
+     */
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    /**
+     * Returns the highest Ershov number, which is how many registers the
+     * expression needs to be evaluated without spilling.
+     */
+    public int getMaxLabel() {
+        return this.maxLabel;
+    }
+
+    public int getInstructionCount() {
+        return this.instructionCount;
+    }
+
+    /**
+     * Returns how many values were stored to the frame, same as
+     * {@link CodegenResult#getSpillCount()}.
+     */
+    public int getSpillCount() {
+        return this.spillCount;
+    }
+
+    /**
+     * Returns how many of the spills were of registers that an instruction
+     * needs for itself (idiv and the one operand imul need eax and edx,
+     * calls clobber the caller saved registers) rather than because there
+     * were not enough registers. Only the ERSHOV strategy tells them apart.
+     */
+    public int getEmergencySpillCount() {
+        return this.emergencySpillCount;
+    }
+
+    /**
+     * Returns the number of xchg instructions, which are how registers are
+     * shuffled into place for shifts and divisions.
+     */
+    public int getExchangeCount() {
+        return this.exchangeCount;
+    }
+
+    public int getFrameSize() {
+        return this.frameSize;
+    }
+
+    /**
+     * Returns the nanoseconds spent rewriting and labelling the expression.
+     */
+    public long getLabelTime() {
+        return this.labelTime;
+    }
+
+    /**
+     * Returns the nanoseconds spent emitting (or lowering and allocating)
+     * the code, including the peephole pass.
+     */
+    public long getEmitTime() {
+        return this.emitTime;
+    }
+
+    /**
+     * Returns how many times the peephole pass applied the rule, which is
+     * always 0 if the pass is off.
+     */
+    public long getPeepholeHits(Peephole.Rule rule) {
+        return this.peepholeHits[rule.ordinal()];
+    }
+
+    public long getPeepholeHits() {
+        long total = 0;
+        for (final long n : this.peepholeHits)
+            total += n;
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "nodes=" + this.nodeCount
+                + " maxLabel=" + this.maxLabel
+                + " instructions=" + this.instructionCount
+                + " spills=" + this.spillCount
+                + " emergencySpills=" + this.emergencySpillCount
+                + " xchgs=" + this.exchangeCount
+                + " frameSize=" + this.frameSize
+                + " labelTime=" + this.labelTime + "ns"
+                + " emitTime=" + this.emitTime + "ns"
+                + " peepholeHits=" + this.getPeepholeHits();
+    }
+}
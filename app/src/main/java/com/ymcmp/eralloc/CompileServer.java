@@ -0,0 +1,333 @@
+package com.ymcmp.eralloc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a (warm) compiler around behind a socket, either a unix domain
+ * socket or a TCP one, which should be on the loopback address.
+ *
+ * Every line a client sends is one request, and gets exactly one response,
+ * in the order of the requests. A request is either an expression (see
+ * {@link ExprParser}) or !stats. The response is a status line, ok or error
+ * followed by the message, then any number of lines and an empty line. With
+ * the default options, the requests
+ *
+ * <pre>
+ * (add (load x) 1)
+ * (add 1)
+ * </pre>
+ *
+ * get the responses
+ *
+ * <pre>
+ * ok
+ * extern x
+ * mov eax, x
+ * mov eax, [eax]
+ * mov ecx, 1
+ * add eax, ecx
+ *
+ * error Line 1: Wrong number of operands to add
+ *
+ * </pre>
+ *
+ * !stats answers with the number of requests and their latency percentiles
+ * in microseconds (see {@link LatencyHistogram#describeTo(StringBuilder)}),
+ * counting only the requests whose responses have been written.
+ *
+ * Clients can send any number of requests without waiting for responses.
+ * Those are compiled in parallel on a shared pool, and each response is
+ * written as soon as it and the ones before it are done. The latency of a
+ * request is the time from when it is read to when its response is flushed
+ * to the socket.
+ * Each connection takes two platform threads, one reading and one writing,
+ * since virtual threads only exist from JDK 21 on and the build targets 16.
+ */
+public final class CompileServer implements Closeable {
+
+    // lines longer than this close the connection
+    private static final int MAX_REQUEST = 16 * 1024 * 1024;
+
+    // how many requests of a connection can be in flight
+    private static final int PIPELINE = 64;
+
+    // a request is either compiled on the pool or a command, which is only
+    // answered once the responses before it are written
+    private static final class Pending {
+
+        final long received;
+        final Future<CharSequence> response;
+        final String command;
+
+        Pending(long received, Future<CharSequence> response, String command) {
+            this.received = received;
+            this.response = response;
+            this.command = command;
+        }
+    }
+
+    private static final Pending END = new Pending(0, CompletableFuture.completedFuture(""), null);
+
+    private final ServerSocketChannel server;
+    private final SocketAddress address;
+    private final CodegenOptions opts;
+    private final ExecutorService compilers;
+    private final ExecutorService connections;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Binds to the address, starts accepting after {@link #start()}.
+     */
+    public CompileServer(SocketAddress address, CodegenOptions opts, int threads) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least one thread");
+
+        this.server = address instanceof UnixDomainSocketAddress
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open();
+        try {
+            this.server.bind(address);
+        } catch (IOException ex) {
+            this.server.close();
+            throw ex;
+        }
+
+        this.address = this.server.getLocalAddress();
+        this.opts = opts;
+        this.compilers = Executors.newFixedThreadPool(threads, threads("eralloc-compile-"));
+        this.connections = Executors.newCachedThreadPool(threads("eralloc-connection-"));
+    }
+
+    private static ThreadFactory threads(String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            final Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Returns the address the server is bound to, which has the actual port
+     * if it asked for port 0.
+     */
+    public SocketAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * Returns the latencies of the requests so far.
+     */
+    public LatencyHistogram getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * Starts accepting connections on a new (non-daemon) thread, which runs
+     * until the server is closed.
+     */
+    public CompileServer start() {
+        final Thread acceptor = new Thread(this::accept, "eralloc-accept");
+        acceptor.start();
+        return this;
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final SocketChannel ch = this.server.accept();
+                try {
+                    this.connections.execute(() -> this.serve(ch));
+                } catch (RejectedExecutionException ex) {
+                    ch.close();
+                }
+            }
+        } catch (IOException ex) {
+            // closed
+        }
+    }
+
+    /**
+     * Reads requests until the client stops sending, the responses are
+     * written by another thread.
+     */
+    private void serve(SocketChannel ch) {
+        final BlockingQueue<Pending> pending = new ArrayBlockingQueue<>(PIPELINE);
+        try {
+            this.connections.execute(() -> this.respond(ch, pending));
+        } catch (RejectedExecutionException ex) {
+            close(ch);
+            return;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        try {
+            int scanned = 0;
+            while (ch.read(buf) >= 0) {
+                final long received = System.nanoTime();
+                final byte[] bytes = buf.array();
+                int start = 0;
+                for (int i = scanned; i < buf.position(); ++i) {
+                    if (bytes[i] != '\n')
+                        continue;
+                    if (!ch.isOpen())
+                        return;
+                    pending.put(this.submit(received, Arrays.copyOfRange(bytes, start, i)));
+                    start = i + 1;
+                }
+
+                buf.flip().position(start);
+                buf.compact();
+                scanned = buf.position();
+                if (!buf.hasRemaining()) {
+                    if (buf.capacity() >= MAX_REQUEST) {
+                        pending.put(new Pending(received, CompletableFuture.completedFuture(error("Request is too long")), null));
+                        return;
+                    }
+                    buf = ByteBuffer.allocate(buf.capacity() * 2).put(buf.flip());
+                }
+            }
+
+            // the last line does not need a line break
+            if (buf.position() > 0 && ch.isOpen())
+                pending.put(this.submit(System.nanoTime(), Arrays.copyOf(buf.array(), buf.position())));
+        } catch (IOException | InterruptedException | RejectedExecutionException ex) {
+            // the connection or the server is closed
+        } finally {
+            // once the responder stops, it closes the channel and no longer
+            // empties the queue
+            try {
+                if (ch.isOpen())
+                    pending.put(END);
+                else
+                    pending.offer(END);
+            } catch (InterruptedException ex) {
+                close(ch);
+            }
+        }
+    }
+
+    private Pending submit(long received, byte[] request) {
+        if (request.length > 0 && request[0] == '!')
+            return new Pending(received, null, new String(request, 1, request.length - 1, StandardCharsets.UTF_8).trim());
+        return new Pending(received, this.compilers.submit(() -> this.compile(request)), null);
+    }
+
+    private CharSequence compile(byte[] request) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        try {
+            final FlatExpr e = ExprParser.parse(ByteBuffer.wrap(request));
+            sb.append("ok\n");
+            ERAlloc.codegen(e, this.opts, sb);
+        } catch (IllegalArgumentException ex) {
+            return error(ex.getMessage());
+        } catch (RuntimeException ex) {
+            // a bug in the compiler only fails this request
+            return error(ex.toString());
+        }
+        return sb.append('\n');
+    }
+
+    private static CharSequence error(String message) {
+        return "error " + message + "\n\n";
+    }
+
+    private CharSequence command(String name) {
+        final StringBuilder sb = new StringBuilder();
+        if (name.equals("stats")) {
+            sb.append("ok\n");
+            this.latency.describeTo(sb);
+        } else {
+            sb.append("error Unknown command ").append(name).append('\n');
+        }
+        return sb.append('\n');
+    }
+
+    /**
+     * Writes the responses in order, flushing whenever the next one is not
+     * ready yet. The latencies are recorded once the responses are flushed.
+     */
+    private void respond(SocketChannel ch, BlockingQueue<Pending> pending) {
+        final ChannelAppendable out = new ChannelAppendable(ch, ByteBuffer.allocate(16 * 1024));
+        final long[] unflushed = new long[PIPELINE];
+        int count = 0;
+        try {
+            Pending p;
+            while ((p = pending.take()) != END) {
+                if (p.command != null) {
+                    this.flush(out, unflushed, count);
+                    count = 0;
+                    out.append(this.command(p.command));
+                } else {
+                    out.append(response(p));
+                }
+                unflushed[count++] = p.received;
+
+                final Pending next = pending.peek();
+                if (next == null || next.response != null && !next.response.isDone() || count == unflushed.length) {
+                    this.flush(out, unflushed, count);
+                    count = 0;
+                }
+            }
+            this.flush(out, unflushed, count);
+        } catch (IOException | InterruptedException ex) {
+            // the connection or the server is closed
+        } finally {
+            close(ch);
+            pending.clear();
+        }
+    }
+
+    private void flush(ChannelAppendable out, long[] received, int count) throws IOException {
+        out.flush();
+        final long now = System.nanoTime();
+        for (int i = 0; i < count; ++i)
+            this.latency.record(now - received[i]);
+    }
+
+    private static CharSequence response(Pending p) throws InterruptedException {
+        try {
+            return p.response.get();
+        } catch (ExecutionException ex) {
+            // still answered, otherwise the responses after it would be
+            // taken for the wrong requests
+            return error(ex.getCause().toString());
+        }
+    }
+
+    private static void close(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ex) {
+            // nothing else to do
+        }
+    }
+
+    /**
+     * Stops accepting, drops the open connections and, for unix domain
+     * sockets, removes the socket file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.server.close();
+        } finally {
+            this.compilers.shutdownNow();
+            this.connections.shutdownNow();
+            if (this.address instanceof UnixDomainSocketAddress)
+                Files.deleteIfExists(((UnixDomainSocketAddress) this.address).getPath());
+        }
+    }
+}
@@ -1,440 +1,279 @@
 package com.ymcmp.eralloc;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
-import java.util.function.BiFunction;
+import java.util.concurrent.ForkJoinPool;
 import com.ymcmp.eralloc.ast.*;
 
+
 public final class ERAlloc {
 
     public static List<String> codegen(ExprAST e) {
-        final ErshovLabel scheduler = new ErshovLabel();
-        e.accept(scheduler);
-        final EmitX86 emitter = new EmitX86(scheduler.labels, 4);
-        e.accept(emitter);
-        return emitter.getResult();
+        return codegen(e, CodegenOptions.DEFAULT);
     }
-}
-
-final class ErshovLabel implements ExprAST.Visitor<Integer> {
 
-    public final Map<ExprAST, Integer> labels = new HashMap<>();
-
-    private int success(ExprAST e, int v) {
-        final Integer p = this.labels.put(e, v);
-        if (p != null && p != v)
-            throw new RuntimeException("Node relabelled as different value!");
-        return v;
+    public static List<String> codegen(ExprAST e, CodegenOptions opts) {
+        return codegenInstrs(e, opts).toStrings();
     }
 
-    @Override
-    public Integer visitNumeric(Numeric e) {
-        return this.success(e, 1);
+    /**
+     * Compiles every expression in parallel on the common pool. The result
+     * at each index is the code of the expression at the same index.
+     */
+    public static List<List<String>> codegenAll(Collection<? extends ExprAST> roots) {
+        return codegenAll(roots, CodegenOptions.DEFAULT, ForkJoinPool.commonPool());
     }
 
-    @Override
-    public Integer visitFrameIndex(FrameIndex e) {
-        return this.success(e, 1);
+    public static List<List<String>> codegenAll(Collection<? extends ExprAST> roots, ForkJoinPool pool) {
+        return codegenAll(roots, CodegenOptions.DEFAULT, pool);
     }
 
-    @Override
-    public Integer visitGlobalValue(GlobalValue e) {
-        return this.success(e, 1);
-    }
+    public static List<List<String>> codegenAll(Collection<? extends ExprAST> roots, CodegenOptions opts, ForkJoinPool pool) {
+        final ExprAST[] exprs = roots.toArray(new ExprAST[0]);
 
-    @Override
-    public Integer visitLoadExpr(LoadExpr e) {
-        return this.success(e, 1);
-    }
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        final List<String>[] results = new List[exprs.length];
 
-    @Override
-    public Integer visitStoreExpr(StoreExpr e) {
-        final int ptr = e.ptr.accept(this);
-        final int value = e.value.accept(this);
-
-        return this.success(e, ptr == value ? ptr + 1 : Math.max(ptr, value));
+        pool.invoke(new BatchCodegen(exprs, opts, results, 0, exprs.length));
+        return Arrays.asList(results);
     }
 
-    @Override
-    public Integer visitAddExpr(AddExpr e) {
-        final int lhs = e.lhs.accept(this);
-        final int rhs = e.rhs.accept(this);
-
-        return this.success(e, lhs == rhs ? lhs + 1 : Math.max(lhs, rhs));
+    public static InstrBuffer codegenInstrs(ExprAST e) {
+        return codegenInstrs(e, CodegenOptions.DEFAULT);
     }
 
-    @Override
-    public Integer visitSubExpr(SubExpr e) {
-        final int lhs = e.lhs.accept(this);
-        final int rhs = e.rhs.accept(this);
-
-        return this.success(e, lhs == rhs ? lhs + 1 : Math.max(lhs, rhs));
+    public static InstrBuffer codegenInstrs(ExprAST e, CodegenOptions opts) {
+        return compile(e, opts).getInstrs();
     }
 
-    @Override
-    public Integer visitMulExpr(MulExpr e) {
-        final int lhs = e.lhs.accept(this);
-        final int rhs = e.rhs.accept(this);
-
-        return this.success(e, lhs == rhs ? lhs + 1 : Math.max(lhs, rhs));
-    }
+    /**
+     * Same as {@link #codegenInstrs(ExprAST, CodegenOptions)} but also
+     * returns the size of the frame the code needs and the statistics of
+     * the compilation.
+     */
+    public static CodegenResult compile(ExprAST e, CodegenOptions opts) {
+        final CodegenEvent event = new CodegenEvent();
+        event.begin();
 
-    @Override
-    public Integer visitDivExpr(DivExpr e) {
-        final int lhs = e.lhs.accept(this);
-        final int rhs = e.rhs.accept(this);
+        final long start = System.nanoTime();
+        e = rewrite(e, opts);
+        final ErshovLabel labels = labeller(opts);
+        labels.label(e);
+        final long labelled = System.nanoTime();
 
-        return this.success(e, lhs == rhs ? lhs + 1 : Math.max(lhs, rhs));
-    }
+        if (opts.getStrategy() == Strategy.ERSHOV)
+            return emit(emitter(labels, opts), opts, event, start, labelled);
 
-    @Override
-    public Integer visitRemExpr(RemExpr e) {
-        final int lhs = e.lhs.accept(this);
-        final int rhs = e.rhs.accept(this);
+        final CodegenResult result = allocate(e, labels, opts);
+        final Peephole peephole = opts.isPeephole() ? new Peephole() : null;
+        if (peephole != null)
+            peephole.optimize(result.getInstrs());
 
-        return this.success(e, lhs == rhs ? lhs + 1 : Math.max(lhs, rhs));
+        final CodegenStats stats = stats(result.getInstrs(), result.getFrameSize(), result.getSpillCount(), 0,
+                labels, peephole, start, labelled);
+        event.report(opts, stats);
+        return new CodegenResult(result.getInstrs(), result.getFrameSize(), result.getSpillCount(), stats);
     }
 
-    @Override
-    public Integer visitShlExpr(ShlExpr e) {
-        final int lhs = e.lhs.accept(this);
-        final int rhs = e.rhs.accept(this);
-
-        return this.success(e, lhs == rhs ? lhs + 1 : Math.max(lhs, rhs));
-    }
+    /**
+     * Compiles the flat expression without turning it into objects, unless
+     * the options need them: simplification and common subexpressions
+     * rewrite the tree, and the other strategies lower it as objects.
+     */
+    public static CodegenResult compile(FlatExpr e, CodegenOptions opts) {
+        if (needsObjects(opts))
+            return compile(e.toExprAST(), opts);
 
-    @Override
-    public Integer visitSraExpr(SraExpr e) {
-        final int lhs = e.lhs.accept(this);
-        final int rhs = e.rhs.accept(this);
+        final CodegenEvent event = new CodegenEvent();
+        event.begin();
 
-        return this.success(e, lhs == rhs ? lhs + 1 : Math.max(lhs, rhs));
+        final long start = System.nanoTime();
+        final ErshovLabel labels = labeller(opts);
+        labels.label(e);
+        return emit(emitter(labels, opts), opts, event, start, System.nanoTime());
     }
 
-    @Override
-    public Integer visitSrlExpr(SrlExpr e) {
-        final int lhs = e.lhs.accept(this);
-        final int rhs = e.rhs.accept(this);
-
-        return this.success(e, lhs == rhs ? lhs + 1 : Math.max(lhs, rhs));
+    public static List<String> codegen(FlatExpr e, CodegenOptions opts) {
+        return compile(e, opts).getInstrs().toStrings();
     }
 
-    @Override
-    public Integer visitCallExpr(CallExpr e) {
-        // Function calls are mostly dictated by calling convention, but since
-        // we're assuming only concerned with single registers, we just need to
-        // allocate one register to this (the return value).
-
-        for (final ExprAST arg : e.args)
-            arg.accept(this);
-
-        return this.success(e, 1);
+    private static boolean needsObjects(CodegenOptions opts) {
+        return opts.getStrategy() != Strategy.ERSHOV || opts.isSimplification() || opts.isCommonSubexpressions();
     }
-}
-
-final class EmitX86 implements ExprAST.Visitor<Void> {
-
-    private final List<String> registers = Collections.unmodifiableList(Arrays.asList("eax", "ecx", "edx"));
-    private final Deque<String> freeRegs = new ArrayDeque<>(registers);
-
-    private final List<String> instrs = new ArrayList<>();
-
-    private final Map<ExprAST, Integer> labels;
 
-    private int curOffset;
-    private int maxOffset;
+    static CodegenResult emit(EmitX86 emitter, CodegenOptions opts, CodegenEvent event, long start, long labelled) {
+        emitter.emit();
+        final InstrBuffer instrs = emitter.getInstrs();
+        final Peephole peephole = opts.isPeephole() ? new Peephole() : null;
+        if (peephole != null)
+            peephole.optimize(instrs);
 
-    public EmitX86(Map<ExprAST, Integer> labels, int curOffset) {
-        // SANCHECK: we shouldn't be calling mutable methods on it
-        this.labels = Collections.unmodifiableMap(labels);
-        this.curOffset = curOffset;
+        final CodegenStats stats = stats(instrs, emitter.getFrameSize(), emitter.getSpillCount(),
+                emitter.getEmergencySpillCount(), emitter.labels, peephole, start, labelled);
+        event.report(opts, stats);
+        return new CodegenResult(instrs, emitter.getFrameSize(), emitter.getSpillCount(), stats);
     }
 
-    public List<String> getResult() {
-        return new ArrayList<>(this.instrs);
+    private static CodegenStats stats(InstrBuffer instrs, int frameSize, int spills, int emergencySpills,
+            ErshovLabel labels, Peephole peephole, long start, long labelled) {
+        return new CodegenStats(labels.size(), labels.maxLabel(), instrs.size(), spills, emergencySpills,
+                countExchanges(instrs), frameSize, labelled - start, System.nanoTime() - labelled, peephole);
     }
 
-    public String getTopReg() {
-        return this.freeRegs.getFirst();
-    }
-
-    public String popTopReg() {
-        return this.freeRegs.removeFirst();
-    }
-
-    public void pushTopReg(String r) {
-        this.freeRegs.addFirst(r);
-    }
-
-    public void swapTopRegs() {
-        //   p        q
-        //   q  -->   p
-        // ----     ----
-
-        final String p = this.freeRegs.removeFirst();
-        final String q = this.freeRegs.removeFirst();
-        this.freeRegs.addFirst(p);
-        this.freeRegs.addFirst(q);
-    }
-
-    public int shiftOffset() {
-        final int value = this.curOffset;
-        this.curOffset = value + 4;
-        this.maxOffset = Math.max(value + 4, this.maxOffset);
-        return value;
-    }
-
-    public void unshiftOffset() {
-        this.curOffset -= 4;
-    }
-
-    @Override
-    public Void visitNumeric(Numeric e) {
-        this.instrs.add("mov " + this.getTopReg() + ", " + e.value);
-        return null;
-    }
-
-    @Override
-    public Void visitFrameIndex(FrameIndex e) {
-        this.instrs.add("lea " + this.getTopReg() + ", [ebp-" + e.value + "]");
-        return null;
-    }
-
-    @Override
-    public Void visitGlobalValue(GlobalValue e) {
-        this.instrs.add("extern " + e.value);
-        this.instrs.add("mov " + this.getTopReg() + ", " + e.value);
-        return null;
-    }
-
-    @Override
-    public Void visitLoadExpr(LoadExpr e) {
-        e.ptr.accept(this);
-
-        this.instrs.add("mov " + this.getTopReg() + ", [" + this.getTopReg() + "]");
-        return null;
-    }
-
-    public void emitSimpleBinaryInstr(ExprAST lhs, ExprAST rhs, BiFunction<String, String, List<String>> fn) {
-        final List<String> spills = new ArrayList<>();
-        if (this.freeRegs.size() < 2) {
-            int minSpillCount = 2 - this.freeRegs.size();
-            final Set<String> hitset = new HashSet<>(this.freeRegs);
-            for (final String r : this.registers) {
-                if (hitset.contains(r))
-                    continue; // it's not suitable for spilling
-                this.freeRegs.addLast(r);
-
-                final int offset = this.shiftOffset();
-                this.instrs.add("mov [ebp-" + offset + "], " + r);
-                spills.add("mov " + r + ", [ebp-" + offset + "]");
-
-                if (--minSpillCount < 1)
-                    break;
-            }
-        }
-
-        final int lhsP = this.labels.get(lhs);
-        final int rhsP = this.labels.get(rhs);
-
-        if (lhsP < rhsP) {
-            final ExprAST te = lhs; lhs = rhs; rhs = te;
-            this.swapTopRegs();
-        }
-
-        lhs.accept(this);
-        final String lreg = this.popTopReg();
-        final String rreg = this.getTopReg();
-        rhs.accept(this);
-        this.pushTopReg(lreg);
-
-        this.instrs.addAll(fn.apply(lreg, rreg));
-
-        if (lhsP < rhsP)
-            this.swapTopRegs();
-
-        for (final String spill : spills) {
-            this.unshiftOffset();
-            this.freeRegs.removeLast();
-            this.instrs.add(spill);
+    private static int countExchanges(InstrBuffer instrs) {
+        int count = 0;
+        for (int i = 0; i < instrs.size(); ++i) {
+            if (instrs.opcode(i) == Opcode.XCHG)
+                count++;
         }
+        return count;
     }
 
-    @Override
-    public Void visitStoreExpr(StoreExpr e) {
-        this.emitSimpleBinaryInstr(e.value, e.ptr, (vreg, preg) -> {
-            return Collections.singletonList("mov [" + preg + "], " + vreg);
-        });
-        return null;
+    /**
+     * Appends the machine code of the expression to out, which must be for
+     * the same target. See {@link X86Encoder}.
+     */
+    public static void encode(ExprAST e, CodegenOptions opts, X86Encoder out) {
+        out.encode(compile(e, opts).getInstrs());
     }
 
-    @Override
-    public Void visitAddExpr(AddExpr e) {
-        this.emitSimpleBinaryInstr(e.lhs, e.rhs, (lreg, rreg) -> {
-            return Collections.singletonList("add " + lreg + ", " + rreg);
-        });
-        return null;
-    }
-
-    @Override
-    public Void visitSubExpr(SubExpr e) {
-        this.emitSimpleBinaryInstr(e.lhs, e.rhs, (lreg, rreg) -> {
-            return Collections.singletonList("sub " + lreg + ", " + rreg);
-        });
-        return null;
-    }
-
-    @Override
-    public Void visitMulExpr(MulExpr e) {
-        this.emitSimpleBinaryInstr(e.lhs, e.rhs, (lreg, rreg) -> {
-            return Collections.singletonList("imul " + lreg + ", " + rreg);
-        });
-        return null;
+    /**
+     * Writes the instructions to out (one per line) as they are generated,
+     * so the listing is never fully held in memory. Returns the statistics
+     * of the compilation.
+     */
+    public static CodegenStats codegen(ExprAST e, Appendable out) throws IOException {
+        return codegen(e, CodegenOptions.DEFAULT, out);
     }
 
-    public void emitDivRemInstr(ExprAST lhs, ExprAST rhs, boolean div) {
-        this.emitSimpleBinaryInstr(lhs, rhs, (divident, divisor) -> {
-            // the division and remainder instruction requires the divident to
-            // be in eax, divisor to *not* be in edx, and it computes the
-            // quotient into eax, the remainder into edx.
-
-            final Set<String> hitset = new HashSet<>(this.freeRegs);
-            hitset.add(divident);
-
-            final List<String> instrs = new ArrayList<>();
-            final List<String> spills = new ArrayList<>();
-            for (final String r : Arrays.asList("eax", "edx", "ecx")) {
-                if (hitset.contains(r))
-                    continue; // no need to emergency spill it
-
-                final int offset = this.shiftOffset();
-                instrs.add("mov [ebp-" + offset + "], " + r);
-                spills.add("mov " + r + ", [ebp-" + offset + "]");
-            }
-
-            if (!"eax".equals(divisor)) {
-                if (!"eax".equals(divident))
-                    instrs.add("mov eax, " + divident);
-                if (!"ecx".equals(divisor))
-                    instrs.add("mov ecx, " + divisor);
-            } else {
-                switch (divident) {
-                case "eax":
-                    throw new RuntimeException("ILLEGAL ALLOCATION");
-                case "ecx":
-                    instrs.add("xchg eax, ecx");
-                    break;
-                default:
-                    instrs.add("mov ecx, eax");
-                    instrs.add("mov eax, " + divident);
-                }
-            }
-
-            instrs.add("cdq");
-            instrs.add("idiv ecx");
-
-            final String result = div ? "eax" : "edx";
-            if (!result.equals(divident))
-                instrs.add("mov " + divident + ", " + result);
+    public static CodegenStats codegen(ExprAST e, CodegenOptions opts, Appendable out) throws IOException {
+        // the other strategies only know where values live once all of the
+        // code is there
+        if (opts.getStrategy() != Strategy.ERSHOV) {
+            final CodegenResult result = compile(e, opts);
+            result.getInstrs().writeTo(out);
+            return result.getStats();
+        }
 
-            for (final String spill : spills) {
-                this.unshiftOffset();
-                instrs.add(spill);
+        final CodegenEvent event = new CodegenEvent();
+        event.begin();
+
+        final long start = System.nanoTime();
+        e = rewrite(e, opts);
+        final ErshovLabel labels = labeller(opts);
+        labels.label(e);
+        return stream(emitter(labels, opts), opts, out, event, start, System.nanoTime());
+    }
+
+    /**
+     * Same as {@link #codegen(ExprAST, CodegenOptions, Appendable)} but for
+     * a flat expression, see {@link #compile(FlatExpr, CodegenOptions)}.
+     */
+    public static CodegenStats codegen(FlatExpr e, CodegenOptions opts, Appendable out) throws IOException {
+        if (needsObjects(opts))
+            return codegen(e.toExprAST(), opts, out);
+
+        final CodegenEvent event = new CodegenEvent();
+        event.begin();
+
+        final long start = System.nanoTime();
+        final ErshovLabel labels = labeller(opts);
+        labels.label(e);
+        return stream(emitter(labels, opts), opts, out, event, start, System.nanoTime());
+    }
+
+    private static CodegenStats stream(EmitX86 emitter, CodegenOptions opts, Appendable out,
+            CodegenEvent event, long start, long labelled) throws IOException {
+        // the listing is gone once it is written, so it is counted by batch
+        final int[] counts = new int[2];
+        final Peephole peephole = opts.isPeephole() ? new Peephole() : null;
+        emitter.drainTo(buf -> {
+            if (peephole != null)
+                peephole.optimize(buf);
+
+            counts[0] += buf.size();
+            counts[1] += countExchanges(buf);
+            try {
+                buf.writeTo(out);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
             }
-
-            return instrs;
         });
-    }
 
-    @Override
-    public Void visitDivExpr(DivExpr e) {
-        this.emitDivRemInstr(e.lhs, e.rhs, true);
-        return null;
-    }
+        try {
+            emitter.emit();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
 
-    @Override
-    public Void visitRemExpr(RemExpr e) {
-        this.emitDivRemInstr(e.lhs, e.rhs, false);
-        return null;
+        final ErshovLabel labels = emitter.labels;
+        final CodegenStats stats = new CodegenStats(labels.size(), labels.maxLabel(), counts[0],
+                emitter.getSpillCount(), emitter.getEmergencySpillCount(), counts[1], emitter.getFrameSize(),
+                labelled - start, System.nanoTime() - labelled, peephole);
+        event.report(opts, stats);
+        return stats;
     }
 
-    public void emitShiftInstr(ExprAST lhs, ExprAST rhs, String op) {
-        this.emitSimpleBinaryInstr(lhs, rhs, (value, shamt) -> {
-            // shift instructions require the shift amount to be in ecx
-            // (technically only cl, the top bits are ignored).
-
-            final List<String> instrs = new ArrayList<>();
-            if ("ecx".equals(shamt)) {
-                instrs.add(op + " " + value + ", cl");
-            } else if ("ecx".equals(value)) {
-                instrs.add("xchg ecx, " + shamt);
-                instrs.add(op + " " + shamt + ", cl");
-                instrs.add("mov ecx, " + shamt);
-            } else if (this.freeRegs.contains("ecx")) {
-                instrs.add("mov ecx, " + shamt);
-                instrs.add(op + " " + value + ", " + shamt);
-            } else {
-                instrs.add("xchg ecx, " + shamt);
-                instrs.add(op + " " + value + ", cl");
-                instrs.add("xchg ecx, " + shamt);
-            }
-
-            return instrs;
-        });
+    /**
+     * Same as {@link #codegen(ExprAST, Appendable)} but encodes the listing
+     * as UTF-8 to the channel. Use {@link ChannelAppendable} directly to reuse
+     * the same buffer across calls.
+     */
+    public static CodegenStats codegen(ExprAST e, WritableByteChannel out) throws IOException {
+        return codegen(e, CodegenOptions.DEFAULT, out);
     }
 
-    @Override
-    public Void visitShlExpr(ShlExpr e) {
-        this.emitShiftInstr(e.lhs, e.rhs, "shl");
-        return null;
+    public static CodegenStats codegen(ExprAST e, CodegenOptions opts, WritableByteChannel out) throws IOException {
+        final ChannelAppendable writer = new ChannelAppendable(out);
+        final CodegenStats stats = codegen(e, opts, writer);
+        writer.flush();
+        return stats;
     }
 
-    @Override
-    public Void visitSraExpr(SraExpr e) {
-        this.emitShiftInstr(e.lhs, e.rhs, "sar");
-        return null;
+    private static ExprAST rewrite(ExprAST e, CodegenOptions opts) {
+        if (opts.isSimplification())
+            e = Simplifier.apply(e, opts.getTarget());
+        if (opts.isCommonSubexpressions())
+            e = ValueNumbering.apply(e);
+        return e;
     }
 
-    @Override
-    public Void visitSrlExpr(SrlExpr e) {
-        this.emitShiftInstr(e.lhs, e.rhs, "shr");
-        return null;
-    }
+    private static ErshovLabel labeller(CodegenOptions opts) {
+        if (opts.getStrategy() == Strategy.ERSHOV)
+            return new ErshovLabel(opts);
 
-    @Override
-    public Void visitCallExpr(CallExpr e) {
-        // cdecl has eax, ecx, edx as caller saved
-        final Set<String> hitset = new HashSet<>(this.freeRegs);
-        final List<String> spills = new ArrayList<>();
-        for (final String r : Arrays.asList("eax", "ecx", "edx")) {
-            if (hitset.contains(r))
-                continue; // no need to save it
-
-            final int offset = this.shiftOffset();
-            this.instrs.add("mov [ebp-" + offset + "], " + r);
-            spills.add("mov " + r + ", [ebp-" + offset + "]");
-        }
+        // the evaluation order of the other strategies only depends on the
+        // plain labels
+        return new ErshovLabel(opts.isCommonSubexpressions(), opts.getTarget(), false, false, false);
+    }
 
-        // cdecl pushes the arguments from right to left and returns in eax.
-        for (int i = e.args.length; i-- > 0; ) {
-            e.args[i].accept(this);
-            this.instrs.add("push " + this.getTopReg());
+    static EmitX86 emitter(ErshovLabel labels, CodegenOptions opts) {
+        switch (opts.getTarget()) {
+        case X64:
+            return new EmitX64(labels, opts);
+        default:
+            return new EmitX86(labels, opts);
         }
+    }
 
-        e.fn.accept(this);
-
-        final String reg = this.getTopReg();
-        this.instrs.add("call " + reg);
-
-        if (!"eax".equals(reg))
-            this.instrs.add("mov " + reg + ", eax");
-
-        if (e.args.length != 0)
-            this.instrs.add("add esp, " + 4 * e.args.length);
-
-        for (final String spill : spills) {
-            this.unshiftOffset();
-            this.instrs.add(spill);
+    /**
+     * Lowers the expression to virtual registers and allocates them, spilling
+     * and trying again until everything fits.
+     */
+    private static CodegenResult allocate(ExprAST e, ErshovLabel labels, CodegenOptions opts) {
+        VirtualCode code = new VirtualLowering(labels, opts).lower(e);
+        final RegisterAllocator allocator = opts.getStrategy() == Strategy.GRAPH_COLORING
+                ? new GraphColoring(opts.getRegisters())
+                : new LinearScan(opts.getRegisters());
+        while (true) {
+            code.analyze();
+            final BitSet spilled = new BitSet();
+            final int[] colors = allocator.allocate(code, spilled);
+            if (spilled.isEmpty())
+                return code.assemble(colors, opts);
+            code = code.spill(spilled, opts.isRematerialization());
         }
-        return null;
     }
 }
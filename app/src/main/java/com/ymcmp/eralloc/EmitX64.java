@@ -0,0 +1,108 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+
+import static com.ymcmp.eralloc.Register.*;
+
+/**
+ * Emits x86-64 code for the System V ABI. Everything except calls is done
+ * the same way as on x86, just with 64-bit registers and stack slots.
+ */
+final class EmitX64 extends EmitX86 {
+
+    // bytes pushed by the calls that are still being set up. Assumes the
+    // stack is aligned when the expression starts (which the prologue takes
+    // care of).
+    private int pushed;
+
+    public EmitX64(ErshovLabel labels, CodegenOptions opts) {
+        super(labels, opts);
+    }
+
+    @Override
+    int pushedBytes() {
+        return this.pushed;
+    }
+
+    @Override
+    void emitCall() {
+        final int argc = this.labels.valueOf(this.current);
+        final List<Register> argRegs = this.target.argumentRegisters();
+        final int inRegs = Math.min(argc, argRegs.size());
+        final int onStack = argc - inRegs;
+
+        // the result ends up wherever the call was supposed to leave it, and
+        // everything goes back to how it was once the call returns.
+        final Register result = this.getTopReg();
+        final List<Register> saved = new ArrayList<>(this.freeRegs);
+
+        final List<Spill> spills = this.saveCallerSaved();
+
+        // the stack must be aligned once the arguments are pushed
+        final int argBytes = this.wordSize * onStack;
+        final int padding = (this.pushed + argBytes) % this.target.stackAlignment() == 0 ? 0 : this.wordSize;
+
+        // work is done in LIFO order, so this is scheduled backwards: the
+        // stack arguments (right to left), the register arguments, and then
+        // the function.
+        this.schedule(() -> {
+            final Register fn = this.getTopReg();
+            this.instrs.begin(Opcode.CALL).reg(fn);
+
+            if (argBytes + padding != 0)
+                this.instrs.begin(Opcode.ADD).reg(ESP).imm(argBytes + padding);
+            this.pushed -= argBytes + padding;
+
+            this.freeRegs.clear();
+            this.freeRegs.addAll(saved);
+
+            if (result != EAX)
+                this.instrs.begin(Opcode.MOV).reg(result).reg(EAX);
+
+            for (final Spill spill : spills)
+                this.reload(spill);
+        });
+
+        final int fnId = this.labels.firstChild(this.current);
+        this.schedule(fnId);
+
+        // The register arguments are evaluated straight into the register
+        // they are passed in, which is then held until the call (see
+        // ErshovLabel.registerArgumentOrder for the order).
+        final int[] ids = new int[argc];
+        final int[] args = new int[argc];
+        final boolean[] calls = new boolean[argc];
+        for (int i = 0, id = fnId; i < argc; ++i) {
+            id = this.labels.nextSibling(id);
+            ids[i] = id;
+            args[i] = this.labels.labelOf(id);
+            calls[i] = this.labels.containsCall(id);
+        }
+        final Integer[] order = ErshovLabel.registerArgumentOrder(args, calls, inRegs);
+
+        for (int k = inRegs; k-- > 0; ) {
+            final int i = order[k];
+            final Register reg = argRegs.get(i);
+            final int argId = ids[i];
+            this.schedule(() -> {
+                this.holds(this.popTopReg(), argId);
+            });
+            this.schedule(argId);
+            this.schedule(() -> {
+                this.freeRegs.remove(reg);
+                this.pushTopReg(reg);
+            });
+        }
+
+        for (int i = inRegs; i < argc; ++i) {
+            this.schedule(() -> {
+                this.pushed += this.wordSize;
+            });
+            this.schedulePush(ids[i]);
+        }
+
+        if (padding != 0)
+            this.instrs.begin(Opcode.SUB).reg(ESP).imm(padding);
+        this.pushed += padding;
+    }
+}
@@ -0,0 +1,985 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static com.ymcmp.eralloc.Register.*;
+
+class EmitX86 {
+
+    final Target target;
+    final int wordSize;
+
+    final List<Register> registers;
+    final Deque<Register> freeRegs;
+
+    // divisions by constants are done without idiv if possible
+    private final boolean strengthReduction;
+
+    // Leaves are recomputed instead of being spilled and reloaded. This
+    // tracks which leaf (if any) each register that is in use holds.
+    private final boolean rematerialization;
+    private final int[] remat = new int[16];
+
+    // callee saved registers that end up being used are saved here
+    private final List<Spill> saves = new ArrayList<>();
+
+    final InstrBuffer instrs;
+
+    private static final int DRAIN_THRESHOLD = 1024;
+    private Consumer<? super InstrBuffer> drain;
+
+    // Pending work in LIFO order: either the number (from ErshovLabel) of a
+    // node to be emitted or a Runnable that continues the emission of a node
+    // after its operands. This keeps the thread stack flat no matter how
+    // deep the tree is.
+    private Runnable[] work = new Runnable[32];
+    private int[] workIds = new int[32];
+    private int pending;
+
+    // the number of the node being visited
+    int current;
+
+    final ErshovLabel labels;
+
+    // Frame slots are handed out when a value is stored and taken back once
+    // it is dead, so values that are never live at the same time share the
+    // same slot. Slot i is at [ebp - (frameOffset + (i + 1) * wordSize)].
+    private final int frameOffset;
+    final BitSet slots = new BitSet();
+    int slotCount;
+
+    // shared values are kept in frame slots from the first evaluation until
+    // the last use
+    private final boolean[] evaluated;
+    private final int[] sharedSlots;
+    private final int[] sharedUses;
+
+    // the code sets up (and tears down) its own frame
+    private final boolean prologue;
+
+    int spillCount;
+    int emergencySpillCount;
+
+    // set when recompiling incrementally, which records the code of each
+    // node and splices it back in when the node is emitted in the same state
+    // again (see IncrementalCodegen)
+    IncrementalCodegen incremental;
+
+    static final class Spill {
+
+        public final Register reg;
+        public final int offset;
+
+        // the leaf to recompute instead of reloading (or -1)
+        public final int value;
+
+        public Spill(Register reg, int offset) {
+            this(reg, offset, -1);
+        }
+
+        public Spill(Register reg, int offset, int value) {
+            this.reg = reg;
+            this.offset = offset;
+            this.value = value;
+        }
+    }
+
+    public EmitX86(ErshovLabel labels, CodegenOptions opts) {
+        // SANCHECK: we shouldn't be calling mutable methods on it
+        this.labels = labels;
+        this.target = opts.getTarget();
+        this.wordSize = this.target.wordSize();
+        this.instrs = new InstrBuffer(this.target);
+        this.registers = opts.getRegisters();
+        this.freeRegs = new ArrayDeque<>(this.registers);
+        this.strengthReduction = opts.isSimplification();
+        this.rematerialization = opts.isRematerialization();
+        Arrays.fill(this.remat, -1);
+
+        // the slots start right below whatever is already in the frame
+        final int offset = opts.getFrameOffset();
+        this.frameOffset = (offset + this.wordSize - 1) / this.wordSize * this.wordSize;
+        this.prologue = opts.isPrologue();
+
+        // Evaluating a tree with label n (when there are at least n
+        // registers) only ever touches the first n registers. Anything more
+        // than that and everything will be used.
+        final int used = Math.min(labels.labelOf(0), this.registers.size());
+        for (final Register r : this.registers.subList(0, used)) {
+            if (this.target.isCalleeSaved(r))
+                this.saves.add(new Spill(r, this.allocateSlot()));
+        }
+
+        final int shared = labels.sharedCount();
+        this.evaluated = new boolean[shared];
+        this.sharedSlots = new int[shared];
+        this.sharedUses = new int[shared];
+        for (int i = 0; i < shared; ++i)
+            this.sharedUses[i] = labels.sharedUsesOf(i);
+    }
+
+    public void emit() {
+        int frame = -1;
+        if (this.prologue) {
+            this.instrs.begin(Opcode.PUSH).reg(EBP);
+            this.instrs.begin(Opcode.MOV).reg(EBP).reg(ESP);
+
+            // the size is filled in once it is known
+            frame = this.instrs.size();
+            this.instrs.begin(Opcode.SUB).reg(ESP).imm(0);
+        }
+
+        for (final Spill save : this.saves)
+            this.instrs.begin(Opcode.MOV).mem(EBP, -save.offset).reg(save.reg);
+
+        if (this.incremental != null)
+            this.incremental.begin(this);
+
+        // the root is always the first node to be numbered
+        this.schedule(0);
+        while (this.pending > 0) {
+            final int slot = --this.pending;
+            final Runnable next = this.work[slot];
+            this.work[slot] = null;
+
+            if (next == null) {
+                this.visit(this.workIds[slot]);
+            } else {
+                next.run();
+            }
+
+            if (this.incremental != null)
+                this.incremental.leave(this, this.pending);
+            if (this.drain != null && frame < 0 && this.instrs.size() >= DRAIN_THRESHOLD)
+                this.drain();
+        }
+
+        if (this.incremental != null)
+            this.incremental.finish(this);
+
+        for (final Spill save : this.saves)
+            this.instrs.begin(Opcode.MOV).reg(save.reg).mem(EBP, -save.offset);
+
+        if (this.prologue) {
+            this.instrs.begin(Opcode.MOV).reg(ESP).reg(EBP);
+            this.instrs.begin(Opcode.POP).reg(EBP);
+
+            final int alignment = this.target.stackAlignment();
+            final int size = (this.getFrameSize() + alignment - 1) / alignment * alignment;
+            if (size != 0) {
+                this.instrs.setValue(frame, 1, size);
+            } else {
+                final BitSet removed = new BitSet();
+                removed.set(frame);
+                this.instrs.removeAll(removed);
+            }
+        }
+
+        if (this.drain != null && this.instrs.size() > 0)
+            this.drain();
+    }
+
+    /**
+     * Returns the number of bytes below the frame pointer the code uses
+     * (including the frame offset). This is only final once everything is
+     * emitted.
+     */
+    public int getFrameSize() {
+        return this.frameOffset + this.slotCount * this.wordSize;
+    }
+
+    /**
+     * Returns how many registers were spilled (not counting the ones that
+     * are computed again instead).
+     */
+    public int getSpillCount() {
+        return this.spillCount;
+    }
+
+    /**
+     * Returns how many of the spills were of registers that an instruction
+     * or a call needs, see {@link CodegenStats#getEmergencySpillCount()}.
+     */
+    public int getEmergencySpillCount() {
+        return this.emergencySpillCount;
+    }
+
+    private void visit(int id) {
+        if (this.incremental != null) {
+            id = this.incremental.enter(this, id, this.pending);
+            if (id < 0)
+                return; // the code was spliced in
+        }
+
+        final int def = this.labels.definitionOf(id);
+        final int index = this.labels.sharedIndexOf(def);
+        if (index < 0) {
+            this.current = id;
+            this.emitNode();
+            return;
+        }
+
+        // shared values are evaluated wherever they are needed first (which
+        // is not necessarily its first occurrence) and reloaded afterwards.
+        if (this.evaluated[index]) {
+            final int offset = this.sharedSlots[index];
+            this.instrs.begin(Opcode.MOV).reg(this.getTopReg()).mem(EBP, -offset);
+            if (--this.sharedUses[index] == 0)
+                this.freeSlot(offset);
+            return;
+        }
+
+        this.evaluated[index] = true;
+        this.sharedUses[index]--;
+        this.schedule(() -> {
+            final int offset = this.allocateSlot();
+            this.sharedSlots[index] = offset;
+            this.instrs.begin(Opcode.MOV).mem(EBP, -offset).reg(this.getTopReg());
+        });
+        this.current = def;
+        this.emitNode();
+    }
+
+    private void emitNode() {
+        final int kind = this.labels.kindOf(this.current);
+        switch (kind) {
+        case FlatExpr.NUMERIC:
+        case FlatExpr.FRAME_INDEX:
+        case FlatExpr.GLOBAL_VALUE:
+            this.materialize(this.getTopReg(), this.current);
+            break;
+        case FlatExpr.LOAD:
+            this.emitLoad();
+            break;
+        case FlatExpr.STORE:
+            this.emitStore();
+            break;
+        case FlatExpr.ADD:
+            this.emitAddSub(Opcode.ADD, true);
+            break;
+        case FlatExpr.SUB:
+            this.emitAddSub(Opcode.SUB, false);
+            break;
+        case FlatExpr.MUL:
+            this.emitMul();
+            break;
+        case FlatExpr.DIV:
+        case FlatExpr.REM:
+            this.emitDivRemInstr(kind == FlatExpr.DIV);
+            break;
+        case FlatExpr.SHL:
+            this.emitShiftInstr(Opcode.SHL);
+            break;
+        case FlatExpr.SRA:
+            this.emitShiftInstr(Opcode.SAR);
+            break;
+        case FlatExpr.SRL:
+            this.emitShiftInstr(Opcode.SHR);
+            break;
+        default:
+            this.emitCall();
+            break;
+        }
+    }
+
+    /**
+     * Hands the instructions over to the consumer in batches as they are
+     * emitted instead of keeping all of them until the end. The buffer is
+     * cleared after each batch.
+     */
+    public void drainTo(Consumer<? super InstrBuffer> drain) {
+        this.drain = drain;
+    }
+
+    private void drain() {
+        this.drain.accept(this.instrs);
+        this.instrs.clear();
+    }
+
+    void schedule(int id) {
+        this.schedule(null, id);
+    }
+
+    private void schedule(Runnable next, int id) {
+        if (this.pending == this.work.length) {
+            this.work = Arrays.copyOf(this.work, this.pending * 2);
+            this.workIds = Arrays.copyOf(this.workIds, this.pending * 2);
+        }
+
+        this.work[this.pending] = next;
+        this.workIds[this.pending] = id;
+        this.pending++;
+    }
+
+    void schedule(Runnable next) {
+        this.schedule(next, -1);
+    }
+
+    public InstrBuffer getInstrs() {
+        return this.instrs;
+    }
+
+    public List<String> getResult() {
+        return this.instrs.toStrings();
+    }
+
+    public Register getTopReg() {
+        return this.freeRegs.getFirst();
+    }
+
+    public Register popTopReg() {
+        return this.freeRegs.removeFirst();
+    }
+
+    public void pushTopReg(Register r) {
+        this.freeRegs.addFirst(r);
+    }
+
+    public void swapTopRegs() {
+        //   p        q
+        //   q  -->   p
+        // ----     ----
+
+        final Register p = this.freeRegs.removeFirst();
+        final Register q = this.freeRegs.removeFirst();
+        this.freeRegs.addFirst(p);
+        this.freeRegs.addFirst(q);
+    }
+
+    /**
+     * Returns the bytes pushed for calls that are still being set up.
+     */
+    int pushedBytes() {
+        return 0;
+    }
+
+    /**
+     * Describes everything the code of a node depends on besides the node
+     * itself: the free registers in order, what the other ones hold if it
+     * can be computed again, the frame slots in use and the bytes pushed.
+     */
+    IncrementalCodegen.State state() {
+        final List<String> symbols = new ArrayList<>();
+        final int[] codes = new int[2 + this.registers.size() * 3 + this.slots.cardinality()];
+        int size = 0;
+        codes[size++] = this.pushedBytes();
+        codes[size++] = this.freeRegs.size();
+        for (final Register r : this.freeRegs)
+            codes[size++] = r.ordinal();
+
+        for (final Register r : this.registers) {
+            if (this.freeRegs.contains(r))
+                continue;
+
+            final int leaf = this.remat[r.ordinal()];
+            codes[size++] = r.ordinal();
+            if (leaf < 0) {
+                codes[size++] = -1;
+            } else if (this.labels.kindOf(leaf) == FlatExpr.GLOBAL_VALUE) {
+                symbols.add(this.labels.symbolOf(leaf));
+                codes[size++] = FlatExpr.GLOBAL_VALUE;
+            } else {
+                codes[size++] = this.labels.kindOf(leaf);
+                codes[size++] = this.labels.valueOf(leaf);
+            }
+        }
+
+        for (int slot = this.slots.nextSetBit(0); slot >= 0; slot = this.slots.nextSetBit(slot + 1))
+            codes[size++] = slot;
+        return new IncrementalCodegen.State(Arrays.copyOf(codes, size), symbols.toArray(new String[0]));
+    }
+
+    /**
+     * Takes the first free frame slot and returns its offset below the frame
+     * pointer.
+     */
+    int allocateSlot() {
+        final int slot = this.slots.nextClearBit(0);
+        this.slots.set(slot);
+        this.slotCount = Math.max(this.slotCount, slot + 1);
+        return this.frameOffset + (slot + 1) * this.wordSize;
+    }
+
+    void freeSlot(int offset) {
+        this.slots.clear((offset - this.frameOffset) / this.wordSize - 1);
+    }
+
+    Spill spill(Register r) {
+        final int value = this.remat[r.ordinal()];
+        if (value >= 0)
+            return new Spill(r, -1, value);
+
+        final int offset = this.allocateSlot();
+        this.instrs.begin(Opcode.MOV).mem(EBP, -offset).reg(r);
+        this.spillCount++;
+        return new Spill(r, offset);
+    }
+
+    /**
+     * Same as spill, but for a register that is in the way rather than
+     * needed for an operand.
+     */
+    Spill evict(Register r) {
+        final Spill spill = this.spill(r);
+        if (spill.value < 0)
+            this.emergencySpillCount++;
+        return spill;
+    }
+
+    void reload(Spill spill) {
+        // whatever the register was holding is back
+        this.remat[spill.reg.ordinal()] = spill.value;
+        if (spill.value >= 0) {
+            this.materialize(spill.reg, spill.value);
+            return;
+        }
+
+        this.freeSlot(spill.offset);
+        this.instrs.begin(Opcode.MOV).reg(spill.reg).mem(EBP, -spill.offset);
+    }
+
+    /**
+     * Marks the register as in use, holding the value of the node.
+     */
+    void holds(Register r, int id) {
+        final boolean leaf = FlatExpr.isLeaf(this.labels.kindOf(id));
+        this.remat[r.ordinal()] = this.rematerialization && leaf ? id : -1;
+    }
+
+    private void materialize(Register r, int leaf) {
+        switch (this.labels.kindOf(leaf)) {
+        case FlatExpr.NUMERIC:
+            this.instrs.begin(Opcode.MOV).reg(r).imm(this.labels.valueOf(leaf));
+            break;
+        case FlatExpr.FRAME_INDEX:
+            this.instrs.begin(Opcode.LEA).reg(r).mem(EBP, -this.labels.valueOf(leaf));
+            break;
+        default: {
+            final String sym = this.labels.symbolOf(leaf);
+            this.instrs.begin(Opcode.EXTERN).sym(sym);
+            this.instrs.begin(Opcode.MOV).reg(r).sym(sym);
+            break;
+        }
+        }
+    }
+
+    /**
+     * Appends the address as a memory operand, reg being the register that
+     * holds the value of its only node (if it has one).
+     */
+    private void address(ErshovLabel.Address address, Register reg) {
+        if (address.baseId >= 0)
+            this.address(address, reg, null);
+        else
+            this.address(address, null, reg);
+    }
+
+    private void address(ErshovLabel.Address address, Register base, Register index) {
+        final int b = address.frame ? EBP.ordinal() : base == null ? InstrBuffer.NO_REG : base.ordinal();
+        final int i = index == null ? InstrBuffer.NO_REG : index.ordinal();
+        this.instrs.mem(b, i, address.scale, (int) address.disp);
+    }
+
+    /**
+     * Evaluates value and the node of the address (which can have at most
+     * one), then fn is called with their registers. The register of the
+     * address is null if it does not need one.
+     */
+    private void emitAddressed(int valueId, ErshovLabel.Address address, BiConsumer<Register, Register> fn) {
+        if (address.registers() == 0) {
+            this.schedule(() -> fn.accept(this.getTopReg(), null));
+            this.schedule(valueId);
+        } else if (address.baseId >= 0) {
+            this.emitSimpleBinaryInstr(valueId, address.baseId, fn);
+        } else {
+            this.emitSimpleBinaryInstr(valueId, address.indexId, fn);
+        }
+    }
+
+    private void emitLoad() {
+        final ErshovLabel.Address address = this.labels.addressOf(this.current);
+        if (address != null) {
+            this.emitAddress(Opcode.MOV, address);
+            return;
+        }
+
+        this.schedule(() -> {
+            final Register r = this.getTopReg();
+            this.instrs.begin(Opcode.MOV).reg(r).mem(r, 0);
+        });
+        this.schedule(this.labels.firstChild(this.current));
+    }
+
+    /**
+     * Emits op (a mov or lea) of the address into the top register.
+     */
+    private void emitAddress(Opcode op, ErshovLabel.Address address) {
+        switch (address.registers()) {
+        case 0:
+            this.instrs.begin(op).reg(this.getTopReg());
+            this.address(address, null, null);
+            break;
+        case 1: {
+            final int nodeId = address.baseId >= 0 ? address.baseId : address.indexId;
+            this.schedule(() -> {
+                final Register r = this.getTopReg();
+                this.instrs.begin(op).reg(r);
+                this.address(address, r);
+            });
+            this.schedule(nodeId);
+            break;
+        }
+        default:
+            this.emitSimpleBinaryInstr(address.baseId, address.indexId, (base, index) -> {
+                this.instrs.begin(op).reg(base);
+                this.address(address, base, index);
+            });
+            break;
+        }
+    }
+
+    public void emitSimpleBinaryInstr(BiConsumer<Register, Register> fn) {
+        final int lhsId = this.labels.firstChild(this.current);
+        final int rhsId = this.labels.nextSibling(lhsId);
+        this.emitSimpleBinaryInstr(lhsId, rhsId, fn);
+    }
+
+    /**
+     * Evaluates both nodes and calls fn with their registers. Without a rhs
+     * (-1), fn gets a scratch register instead.
+     */
+    public void emitSimpleBinaryInstr(int lhsId, int rhsId, BiConsumer<Register, Register> fn) {
+        final List<Spill> spills = new ArrayList<>();
+        if (this.freeRegs.size() < 2) {
+            int minSpillCount = 2 - this.freeRegs.size();
+            final Set<Register> hitset = EnumSet.copyOf(this.freeRegs);
+            for (final Register r : this.registers) {
+                if (hitset.contains(r))
+                    continue; // it's not suitable for spilling
+                this.freeRegs.addLast(r);
+
+                spills.add(this.spill(r));
+
+                if (--minSpillCount < 1)
+                    break;
+            }
+        }
+
+        final int lhsP = this.labels.labelOf(lhsId);
+        final int rhsP = rhsId >= 0 ? this.labels.labelOf(rhsId) : 0;
+
+        // On a tie either order needs the same registers, so whichever side
+        // makes a call goes first. Otherwise the value of the other side
+        // would be live across the call and have to be saved.
+        final boolean swapped = lhsP < rhsP || lhsP == rhsP && rhsId >= 0
+                && this.labels.containsCall(rhsId) && !this.labels.containsCall(lhsId);
+        if (swapped) {
+            final int ti = lhsId; lhsId = rhsId; rhsId = ti;
+            this.swapTopRegs();
+        }
+
+        // the work is done in LIFO order, so these are scheduled backwards:
+        // lhs first, then the rhs (into the next register), then combine.
+        final int first = lhsId;
+        final int second = rhsId;
+        this.schedule(() -> {
+            final Register lreg = this.popTopReg();
+            final Register rreg = this.getTopReg();
+            this.holds(lreg, first);
+
+            this.schedule(() -> {
+                this.pushTopReg(lreg);
+
+                // when swapped, the original lhs was evaluated second (into
+                // rreg), which is also where the result is expected to be
+                // once the registers are swapped back.
+                if (swapped)
+                    fn.accept(rreg, lreg);
+                else
+                    fn.accept(lreg, rreg);
+
+                if (swapped)
+                    this.swapTopRegs();
+
+                for (final Spill spill : spills) {
+                    this.freeRegs.removeLast();
+                    this.reload(spill);
+                }
+            });
+            if (second >= 0)
+                this.schedule(second);
+        });
+        this.schedule(first);
+    }
+
+    private void emitStore() {
+        final int ptrId = this.labels.firstChild(this.current);
+        final int valueId = this.labels.nextSibling(ptrId);
+
+        final ErshovLabel.Address address = this.labels.addressOf(this.current);
+        if (address != null) {
+            this.emitAddressed(valueId, address, (vreg, areg) -> {
+                this.instrs.begin(Opcode.MOV);
+                this.address(address, areg);
+                this.instrs.reg(vreg);
+            });
+            return;
+        }
+
+        this.emitSimpleBinaryInstr(valueId, ptrId, (vreg, preg) -> {
+            this.instrs.begin(Opcode.MOV).mem(preg, 0).reg(vreg);
+        });
+    }
+
+    /**
+     * Emits op with a memory operand if either operand is a load that is
+     * folded into it (only the rhs unless it is commutative). Returns false
+     * if neither is.
+     */
+    private boolean emitMemoryInstr(Opcode op, boolean commutative) {
+        final int lhsId = this.labels.firstChild(this.current);
+        final int rhsId = this.labels.nextSibling(lhsId);
+
+        final int valueId;
+        final int memId;
+        if (this.labels.isMemoryOperand(rhsId)) {
+            valueId = lhsId;
+            memId = rhsId;
+        } else if (commutative && this.labels.isMemoryOperand(lhsId)) {
+            valueId = rhsId;
+            memId = lhsId;
+        } else {
+            return false;
+        }
+
+        final ErshovLabel.Address address = this.labels.addressOf(memId);
+        this.emitAddressed(valueId, address, (reg, areg) -> {
+            this.instrs.begin(op).reg(reg);
+            this.address(address, areg);
+        });
+        return true;
+    }
+
+    /**
+     * Emits op with an immediate operand if either operand is labelled 0 (only
+     * the rhs unless it is commutative). Returns false if neither is.
+     */
+    private boolean emitImmediateInstr(Opcode op, boolean commutative) {
+        final int lhsId = this.labels.firstChild(this.current);
+        final int rhsId = this.labels.nextSibling(lhsId);
+
+        final int valueId;
+        final int immId;
+        if (this.labels.labelOf(rhsId) == 0) {
+            valueId = lhsId;
+            immId = rhsId;
+        } else if (commutative && this.labels.labelOf(lhsId) == 0) {
+            valueId = rhsId;
+            immId = lhsId;
+        } else {
+            return false;
+        }
+
+        final boolean symbol = this.labels.kindOf(immId) == FlatExpr.GLOBAL_VALUE;
+        this.schedule(() -> {
+            final Register r = this.getTopReg();
+            if (symbol)
+                this.instrs.begin(Opcode.EXTERN).sym(this.labels.symbolOf(immId));
+
+            this.instrs.begin(op).reg(r);
+            if (op == Opcode.IMUL)
+                this.instrs.reg(r); // only the three operand form has one
+            if (symbol)
+                this.instrs.sym(this.labels.symbolOf(immId));
+            else if (op.isShift())
+                this.instrs.imm(this.labels.valueOf(immId) & (8 * this.wordSize - 1));
+            else
+                this.instrs.imm(this.labels.valueOf(immId));
+        });
+        this.schedule(valueId);
+        return true;
+    }
+
+    private void emitAddSub(Opcode op, boolean commutative) {
+        // computed as an address by the tiler
+        final ErshovLabel.Address address = this.labels.addressOf(this.current);
+        if (address != null) {
+            this.emitAddress(Opcode.LEA, address);
+            return;
+        }
+
+        if (this.emitMemoryInstr(op, commutative))
+            return;
+        if (this.emitImmediateInstr(op, commutative))
+            return;
+
+        this.emitSimpleBinaryInstr((lreg, rreg) -> {
+            this.instrs.begin(op).reg(lreg).reg(rreg);
+        });
+    }
+
+    private void emitMul() {
+        if (this.emitMemoryInstr(Opcode.IMUL, true))
+            return;
+        if (this.emitImmediateInstr(Opcode.IMUL, true))
+            return;
+
+        this.emitSimpleBinaryInstr((lreg, rreg) -> {
+            this.instrs.begin(Opcode.IMUL).reg(lreg).reg(rreg);
+        });
+    }
+
+    public void emitDivRemInstr(boolean div) {
+        final int rhsId = this.labels.nextSibling(this.labels.firstChild(this.current));
+        if (this.strengthReduction && this.labels.kindOf(rhsId) == FlatExpr.NUMERIC) {
+            final int divisor = this.labels.valueOf(rhsId);
+            if (divisor > 1 && (divisor & (divisor - 1)) == 0) {
+                this.emitDivRemPow2(Integer.numberOfTrailingZeros(divisor), div);
+                return;
+            }
+
+            // the magic numbers on x86-64 would not fit in an immediate
+            if (this.target == Target.X86 && (divisor < -1 || divisor > 1)) {
+                this.emitDivRemMagic(divisor, div);
+                return;
+            }
+        }
+
+        this.emitSimpleBinaryInstr((divident, divisor) -> {
+            // the division and remainder instruction requires the divident to
+            // be in eax, divisor to *not* be in edx, and it computes the
+            // quotient into eax, the remainder into edx.
+
+            final Set<Register> hitset = EnumSet.copyOf(this.freeRegs);
+            hitset.add(divident);
+
+            final List<Spill> spills = new ArrayList<>();
+            for (final Register r : Arrays.asList(EAX, EDX, ECX)) {
+                if (hitset.contains(r))
+                    continue; // no need to emergency spill it
+
+                spills.add(this.evict(r));
+            }
+
+            if (divisor != EAX) {
+                if (divident != EAX)
+                    this.instrs.begin(Opcode.MOV).reg(EAX).reg(divident);
+                if (divisor != ECX)
+                    this.instrs.begin(Opcode.MOV).reg(ECX).reg(divisor);
+            } else {
+                switch (divident) {
+                case EAX:
+                    throw new RuntimeException("ILLEGAL ALLOCATION");
+                case ECX:
+                    this.instrs.begin(Opcode.XCHG).reg(EAX).reg(ECX);
+                    break;
+                default:
+                    this.instrs.begin(Opcode.MOV).reg(ECX).reg(EAX);
+                    this.instrs.begin(Opcode.MOV).reg(EAX).reg(divident);
+                }
+            }
+
+            this.instrs.begin(this.target == Target.X64 ? Opcode.CQO : Opcode.CDQ);
+            this.instrs.begin(Opcode.IDIV).reg(ECX);
+
+            final Register result = div ? EAX : EDX;
+            if (result != divident)
+                this.instrs.begin(Opcode.MOV).reg(divident).reg(result);
+
+            for (final Spill spill : spills)
+                this.reload(spill);
+        });
+    }
+
+    private void emitDivRemPow2(int shift, boolean div) {
+        final int lhsId = this.labels.firstChild(this.current);
+        this.emitSimpleBinaryInstr(lhsId, -1, (value, tmp) -> {
+            // shifting rounds towards negative infinity, so negative values
+            // are biased by 2^shift - 1 first to round towards zero instead.
+            final int bits = 8 * this.wordSize;
+            this.instrs.begin(Opcode.MOV).reg(tmp).reg(value);
+            if (shift > 1)
+                this.instrs.begin(Opcode.SAR).reg(tmp).imm(bits - 1);
+            this.instrs.begin(Opcode.SHR).reg(tmp).imm(bits - shift);
+
+            if (div) {
+                this.instrs.begin(Opcode.ADD).reg(value).reg(tmp);
+                this.instrs.begin(Opcode.SAR).reg(value).imm(shift);
+            } else {
+                this.instrs.begin(Opcode.ADD).reg(tmp).reg(value);
+                this.instrs.begin(Opcode.AND).reg(tmp).imm(-1 << shift);
+                this.instrs.begin(Opcode.SUB).reg(value).reg(tmp);
+            }
+        });
+    }
+
+    private void emitDivRemMagic(int divisor, boolean div) {
+        final int lhsId = this.labels.firstChild(this.current);
+        this.emitSimpleBinaryInstr(lhsId, -1, (divident, tmp) -> {
+            // The quotient is the high half of divident * magic (shifted and
+            // corrected), see Hacker's Delight chapter 10. The one operand
+            // imul has the same register constraints as idiv, but is a lot
+            // faster.
+
+            final Set<Register> hitset = EnumSet.copyOf(this.freeRegs);
+            hitset.add(divident);
+
+            final List<Spill> spills = new ArrayList<>();
+            for (final Register r : Arrays.asList(EAX, EDX, ECX)) {
+                if (hitset.contains(r))
+                    continue; // no need to emergency spill it
+
+                spills.add(this.evict(r));
+            }
+
+            final MagicDivisor magic = MagicDivisor.of(divisor);
+            if (divident != ECX)
+                this.instrs.begin(Opcode.MOV).reg(ECX).reg(divident);
+            this.instrs.begin(Opcode.MOV).reg(EAX).imm(magic.multiplier);
+            this.instrs.begin(Opcode.IMUL).reg(ECX);
+
+            if (divisor > 0 && magic.multiplier < 0)
+                this.instrs.begin(Opcode.ADD).reg(EDX).reg(ECX);
+            if (divisor < 0 && magic.multiplier > 0)
+                this.instrs.begin(Opcode.SUB).reg(EDX).reg(ECX);
+            if (magic.shift > 0)
+                this.instrs.begin(Opcode.SAR).reg(EDX).imm(magic.shift);
+
+            // round towards zero
+            this.instrs.begin(Opcode.MOV).reg(EAX).reg(EDX);
+            this.instrs.begin(Opcode.SHR).reg(EAX).imm(31);
+            this.instrs.begin(Opcode.ADD).reg(EDX).reg(EAX);
+
+            Register result = EDX;
+            if (!div) {
+                this.instrs.begin(Opcode.IMUL).reg(EDX).reg(EDX).imm(divisor);
+                this.instrs.begin(Opcode.SUB).reg(ECX).reg(EDX);
+                result = ECX;
+            }
+
+            if (result != divident)
+                this.instrs.begin(Opcode.MOV).reg(divident).reg(result);
+
+            for (final Spill spill : spills)
+                this.reload(spill);
+        });
+    }
+
+    public void emitShiftInstr(Opcode op) {
+        // a constant shift amount does not need to be in cl
+        if (this.emitImmediateInstr(op, false))
+            return;
+
+        this.emitSimpleBinaryInstr((value, shamt) -> {
+            // shift instructions require the shift amount to be in ecx
+            // (technically only cl, the top bits are ignored).
+
+            if (shamt == ECX) {
+                this.instrs.begin(op).reg(value).reg(ECX);
+            } else if (value == ECX) {
+                this.instrs.begin(Opcode.XCHG).reg(ECX).reg(shamt);
+                this.instrs.begin(op).reg(shamt).reg(ECX);
+                this.instrs.begin(Opcode.MOV).reg(ECX).reg(shamt);
+            } else if (this.freeRegs.contains(ECX)) {
+                this.instrs.begin(Opcode.MOV).reg(ECX).reg(shamt);
+                this.instrs.begin(op).reg(value).reg(ECX);
+            } else {
+                this.instrs.begin(Opcode.XCHG).reg(ECX).reg(shamt);
+                this.instrs.begin(op).reg(value).reg(ECX);
+                this.instrs.begin(Opcode.XCHG).reg(ECX).reg(shamt);
+            }
+        });
+    }
+
+    void emitCall() {
+        // the result ends up wherever the call was supposed to leave it, and
+        // everything goes back to how it was once the call returns.
+        final int argc = this.labels.valueOf(this.current);
+        final Register result = this.getTopReg();
+        final List<Register> saved = new ArrayList<>(this.freeRegs);
+
+        // cdecl has eax, ecx, edx as caller saved. The live ones are saved
+        // right away, which frees them up for the arguments (instead of
+        // having the arguments spill even more).
+        final List<Spill> spills = this.saveCallerSaved();
+
+        // cdecl pushes the arguments from right to left and returns in eax.
+        // (scheduled backwards since the work is done in LIFO order)
+        this.schedule(() -> {
+            final Register fn = this.getTopReg();
+            this.instrs.begin(Opcode.CALL).reg(fn);
+
+            this.freeRegs.clear();
+            this.freeRegs.addAll(saved);
+
+            if (result != EAX)
+                this.instrs.begin(Opcode.MOV).reg(result).reg(EAX);
+
+            if (argc != 0)
+                this.instrs.begin(Opcode.ADD).reg(ESP).imm(4 * argc);
+
+            for (final Spill spill : spills)
+                this.reload(spill);
+        });
+
+        final int fnId = this.labels.firstChild(this.current);
+        this.schedule(fnId);
+
+        int argId = fnId;
+        for (int i = 0; i < argc; ++i) {
+            argId = this.labels.nextSibling(argId);
+            this.schedulePush(argId);
+        }
+    }
+
+    /**
+     * Saves the caller saved registers that are live. They can then be used
+     * while setting up the call, so the free registers are rebuilt in the
+     * order of preference (otherwise the just saved ones would be picked
+     * last).
+     */
+    List<Spill> saveCallerSaved() {
+        final Set<Register> hitset = EnumSet.copyOf(this.freeRegs);
+        final List<Spill> spills = new ArrayList<>();
+        for (final Register r : this.registers) {
+            if (hitset.contains(r) || !this.target.isCallerSaved(r))
+                continue; // no need to save it
+
+            spills.add(this.evict(r));
+            hitset.add(r);
+        }
+
+        this.freeRegs.clear();
+        for (final Register r : this.registers)
+            if (hitset.contains(r))
+                this.freeRegs.addLast(r);
+        return spills;
+    }
+
+    void schedulePush(int argId) {
+        if (this.labels.labelOf(argId) == 0) {
+            if (this.labels.kindOf(argId) == FlatExpr.GLOBAL_VALUE) {
+                // the tiler only does this on x86, where addresses fit in an imm32
+                final String sym = this.labels.symbolOf(argId);
+                this.schedule(() -> {
+                    this.instrs.begin(Opcode.EXTERN).sym(sym);
+                    this.instrs.begin(Opcode.PUSH).sym(sym);
+                });
+                return;
+            }
+
+            final int value = this.labels.valueOf(argId);
+            this.schedule(() -> {
+                this.instrs.begin(Opcode.PUSH).imm(value);
+            });
+            return;
+        }
+
+        this.schedule(() -> {
+            this.instrs.begin(Opcode.PUSH).reg(this.getTopReg());
+        });
+        this.schedule(argId);
+    }
+}
@@ -0,0 +1,828 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+import com.ymcmp.eralloc.ast.*;
+
+
+final class ErshovLabel implements ExprAST.Visitor<Void> {
+
+    /**
+     * The kind of a subtree that was labelled before (see
+     * {@link #label(ExprAST, Map)}), which is numbered as a single node.
+     */
+    static final int OPAQUE = -1;
+
+    /**
+     * A memory operand of the form [base + index * scale + disp]. The base is
+     * either ebp (for frame indices) or the value of a node, and so is the
+     * index (except for the ebp part). Either can be absent (-1).
+     */
+    static final class Address {
+
+        public boolean frame;
+
+        public int baseId = -1;
+
+        public int indexId = -1;
+        public int scale = 1;
+
+        public long disp;
+
+        /**
+         * Returns how many nodes need to be evaluated into registers.
+         */
+        public int registers() {
+            return (this.baseId >= 0 ? 1 : 0) + (this.indexId >= 0 ? 1 : 0);
+        }
+    }
+
+    // Nodes are numbered in pre-order (children in the order of ExprStack)
+    // and the labels are kept in a dense array indexed by that number. This
+    // way a node's children are found by arithmetic alone: the first child
+    // comes right after the node, and every other child comes right after
+    // the subtree of its previous sibling.
+    //
+    // Nodes are numbered the first time they reach the top of the worklist
+    // (which is how the numbering ends up being pre-order) and labelled the
+    // second time, which is after all of their children are labelled.
+    //
+    // When sharing is enabled, only the first occurrence of a node (that is
+    // not a leaf) is numbered as usual. Later occurrences are numbered as if
+    // they were leaves, and they refer back to the first occurrence (which
+    // is guaranteed to be labelled by then since it cannot contain them).
+
+    private int[] labels = new int[64];
+    private int[] sizes = new int[64];
+    private int count;
+
+    // The kind and value of each node (see FlatExpr), which is all that the
+    // labelling and the emitter look at. Later occurrences of shared nodes
+    // get the ones of their first occurrence. When labelling a FlatExpr,
+    // its arrays are used instead.
+    private byte[] kinds = new byte[64];
+    private int[] values = new int[64];
+    private final List<String> symbols = new ArrayList<>();
+    private FlatExpr flat;
+
+    // only used when sharing:
+    // - first occurrence of each node
+    // - the first occurrence of each numbered node (itself if it is one)
+    // - the index of the shared value of each first occurrence (or -1)
+    // - how many times each shared value is used
+    private final IdentityIntMap<ExprAST> firsts;
+    private int[] defs;
+    private int[] shared;
+    private int[] sharedUses = new int[16];
+    private int sharedCount;
+
+    private final ExprStack work = new ExprStack();
+    private int current;
+
+    // how many arguments of a call are passed in registers
+    private final int argRegisters;
+
+    // Leaves that an instruction can take as an immediate operand are given
+    // a label of 0, since they do not need a register at all. Only symbols
+    // on x86 are immediates, x86-64 addresses might not fit.
+    private final boolean immediates;
+    private final boolean symbolImmediates;
+
+    // Pointers of loads and stores are folded into addresses, which only
+    // need registers for the parts that are not constant. A load that is
+    // used as a memory operand of its parent is labelled with the number of
+    // registers its address needs (so possibly 0).
+    private final Target target;
+    private final boolean addressing;
+    private Address[] addresses;
+    private final BitSet memoryOperands;
+
+    // picks the immediates and addresses instead when enabled
+    private final Tiler tiler;
+
+    // only used when sharing and folding addresses: how many times each node
+    // is used, and the nodes that are used more than once, since only nodes
+    // used once can be folded into their parent.
+    private final IdentityIntMap<ExprAST> uses;
+    private final BitSet multiUse = new BitSet();
+
+    // nodes whose evaluation involves a call, which clobbers the caller
+    // saved registers. References count if their definition does, since the
+    // shared value might end up being evaluated there.
+    private final BitSet calls = new BitSet();
+
+    // only used when recompiling incrementally: the subtrees that were
+    // labelled before, and the node of each number and what is known about
+    // it.
+    private Map<ExprAST, IncrementalCodegen.Node> known;
+    private ExprAST[] exprs;
+    private IncrementalCodegen.Node[] nodes;
+
+    public ErshovLabel() {
+        this(false);
+    }
+
+    public ErshovLabel(boolean sharing) {
+        this(sharing, Target.X86, false, false, false);
+    }
+
+    public ErshovLabel(CodegenOptions opts) {
+        this(opts.isCommonSubexpressions(), opts.getTarget(), opts.isImmediates(),
+                opts.isAddressingModes(), opts.isTiling());
+    }
+
+    public ErshovLabel(boolean sharing, Target target, boolean immediates, boolean addressing, boolean tiling) {
+        if (tiling) {
+            // the tiler takes care of both
+            immediates = false;
+            addressing = false;
+        }
+
+        this.target = target;
+        this.argRegisters = target.argumentRegisters().size();
+        this.immediates = immediates;
+        this.symbolImmediates = immediates && target == Target.X86;
+        this.addressing = addressing;
+        this.tiler = tiling ? new Tiler(this, target) : null;
+        if (sharing) {
+            this.firsts = new IdentityIntMap<>();
+            this.defs = new int[this.labels.length];
+            this.shared = new int[this.labels.length];
+        } else {
+            this.firsts = null;
+        }
+        if (addressing || tiling) {
+            this.addresses = new Address[this.labels.length];
+            this.memoryOperands = new BitSet();
+        } else {
+            this.memoryOperands = null;
+        }
+        this.uses = sharing && (addressing || tiling) ? new IdentityIntMap<>() : null;
+    }
+
+    public void label(ExprAST root) {
+        if (this.uses != null)
+            this.countUses(root);
+
+        this.work.push(root, -1);
+        while (!this.work.isEmpty()) {
+            final ExprAST e = this.work.peek();
+            final int id = this.work.peekMark();
+            if (id >= 0) {
+                this.work.pop();
+                this.current = id;
+                e.accept(this);
+                this.sizes[id] = this.count - id;
+                this.labelNode(id);
+            } else if (this.firsts == null || isLeaf(e)) {
+                final int next = this.allocate();
+                if (this.known != null && this.isOpaque(e, next, root)) {
+                    this.work.pop();
+                    continue;
+                }
+                if (this.uses != null && this.uses.getOrDefault(e, 0) > 1)
+                    this.multiUse.set(next);
+                this.work.setMark(next);
+                this.work.pushChildren(e);
+            } else {
+                final int def = this.firsts.getOrDefault(e, -1);
+                if (def < 0) {
+                    final int next = this.allocate();
+                    if (this.uses != null && this.uses.getOrDefault(e, 0) > 1)
+                        this.multiUse.set(next);
+                    this.firsts.put(e, next);
+                    this.work.setMark(next);
+                    this.work.pushChildren(e);
+                } else {
+                    // reevaluating it would need as many registers as the
+                    // first time, so it keeps the same label.
+                    this.work.pop();
+                    final int ref = this.allocate();
+                    this.labels[ref] = this.labels[def];
+                    this.sizes[ref] = 1;
+                    this.kinds[ref] = this.kinds[def];
+                    this.values[ref] = this.values[def];
+                    this.defs[ref] = def;
+                    if (this.shared[def] < 0) {
+                        if (this.sharedCount == this.sharedUses.length)
+                            this.sharedUses = Arrays.copyOf(this.sharedUses, this.sharedCount * 2);
+                        this.sharedUses[this.sharedCount] = 1;
+                        this.shared[def] = this.sharedCount++;
+                    }
+                    this.sharedUses[this.shared[def]]++;
+                    this.multiUse.set(ref);
+                    if (this.calls.get(def))
+                        this.calls.set(ref);
+                    if (this.tiler != null)
+                        this.tiler.matchRef(ref, def);
+                }
+            }
+        }
+
+        if (this.tiler != null)
+            this.tiler.select(this.count);
+    }
+
+    /**
+     * Labels the expression, except for the subtrees below it that are
+     * known, which are numbered as single OPAQUE nodes with the label they
+     * had before. This can be called again to expand an opaque node, whose
+     * subtree is then numbered after the nodes that are already there.
+     * Returns the number of the root. This must not be sharing.
+     */
+    public int label(ExprAST root, Map<ExprAST, IncrementalCodegen.Node> known) {
+        this.known = known;
+        if (this.exprs == null) {
+            this.exprs = new ExprAST[this.labels.length];
+            this.nodes = new IncrementalCodegen.Node[this.labels.length];
+        }
+
+        final int id = this.count;
+        this.label(root);
+        return id;
+    }
+
+    private boolean isOpaque(ExprAST e, int id, ExprAST root) {
+        this.exprs[id] = e;
+        final IncrementalCodegen.Node node = e == root || isLeaf(e) ? null : this.known.get(e);
+        if (node == null)
+            return false;
+
+        this.nodes[id] = node;
+        this.labels[id] = node.label;
+        this.sizes[id] = 1;
+        this.kinds[id] = OPAQUE;
+        this.values[id] = 0;
+        if (node.calls)
+            this.calls.set(id);
+        return true;
+    }
+
+    /**
+     * Returns the node of the number, see {@link #label(ExprAST, Map)}.
+     */
+    public ExprAST exprOf(int id) {
+        return this.exprs[id];
+    }
+
+    IncrementalCodegen.Node nodeOf(int id) {
+        return this.nodes[id];
+    }
+
+    void setNode(int id, IncrementalCodegen.Node node) {
+        this.nodes[id] = node;
+    }
+
+    /**
+     * Labels the expression in place. Since it is a tree, nothing is shared,
+     * so this must not be sharing.
+     */
+    public void label(FlatExpr root) {
+        if (this.firsts != null)
+            throw new IllegalStateException("Flat expressions cannot be shared");
+
+        this.flat = root;
+        this.count = root.size();
+        this.labels = new int[this.count];
+        if (this.addresses != null)
+            this.addresses = new Address[this.count];
+
+        // children are numbered after their parents, so going backwards
+        // labels every node after its children.
+        for (int id = this.count; id-- > 0; )
+            this.labelNode(id);
+
+        if (this.tiler != null)
+            this.tiler.select(this.count);
+    }
+
+    private void labelNode(int id) {
+        this.current = id;
+        this.labels[id] = this.computeLabel(id);
+
+        final int call = this.calls.nextSetBit(id + 1);
+        if (this.kindOf(id) == FlatExpr.CALL || call >= 0 && call < id + this.sizeOf(id))
+            this.calls.set(id);
+        if (this.tiler != null)
+            this.tiler.match(id);
+    }
+
+    private static boolean isLeaf(ExprAST e) {
+        return e instanceof Numeric || e instanceof FrameIndex || e instanceof GlobalValue;
+    }
+
+    private int allocate() {
+        if (this.count == this.labels.length) {
+            this.labels = Arrays.copyOf(this.labels, this.count * 2);
+            this.sizes = Arrays.copyOf(this.sizes, this.count * 2);
+            this.kinds = Arrays.copyOf(this.kinds, this.count * 2);
+            this.values = Arrays.copyOf(this.values, this.count * 2);
+            if (this.firsts != null) {
+                this.defs = Arrays.copyOf(this.defs, this.count * 2);
+                this.shared = Arrays.copyOf(this.shared, this.count * 2);
+            }
+            if (this.addresses != null)
+                this.addresses = Arrays.copyOf(this.addresses, this.count * 2);
+            if (this.exprs != null) {
+                this.exprs = Arrays.copyOf(this.exprs, this.count * 2);
+                this.nodes = Arrays.copyOf(this.nodes, this.count * 2);
+            }
+        }
+        if (this.firsts != null) {
+            this.defs[this.count] = this.count;
+            this.shared[this.count] = -1;
+        }
+        return this.count++;
+    }
+
+    private void countUses(ExprAST root) {
+        final ExprStack work = new ExprStack();
+        work.push(root, -1);
+        while (!work.isEmpty()) {
+            final ExprAST e = work.pop();
+            final int n = this.uses.getOrDefault(e, 0);
+            this.uses.put(e, n + 1);
+            if (n == 0)
+                work.pushChildren(e);
+        }
+    }
+
+    public int labelOf(int id) {
+        return this.labels[id];
+    }
+
+    /**
+     * Returns the number of nodes that were numbered.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    public int maxLabel() {
+        int max = 0;
+        for (int id = 0; id < this.count; ++id)
+            max = Math.max(max, this.labels[id]);
+        return max;
+    }
+
+    /**
+     * Returns the kind of the node, one of the FlatExpr constants.
+     */
+    public int kindOf(int id) {
+        return this.flat != null ? this.flat.kindOf(id) : this.kinds[id];
+    }
+
+    /**
+     * Returns the value of the node, see {@link FlatExpr}.
+     */
+    public int valueOf(int id) {
+        return this.flat != null ? this.flat.valueOf(id) : this.values[id];
+    }
+
+    /**
+     * Returns the name of a global value.
+     */
+    public String symbolOf(int id) {
+        return this.flat != null ? this.flat.symbolOf(id) : this.symbols.get(this.values[id]);
+    }
+
+    private int sizeOf(int id) {
+        return this.flat != null ? this.flat.subtreeSize(id) : this.sizes[id];
+    }
+
+    /**
+     * Returns true if evaluating the node involves a call.
+     */
+    public boolean containsCall(int id) {
+        return this.calls.get(id);
+    }
+
+    void setLabel(int id, int label) {
+        this.labels[id] = label;
+    }
+
+    void setAddress(int id, Address address, boolean memoryOperand) {
+        this.addresses[id] = address;
+        if (memoryOperand)
+            this.memoryOperands.set(id);
+    }
+
+    /**
+     * Returns the number of the first occurrence of the node, which is where
+     * its children are numbered.
+     */
+    public int definitionOf(int id) {
+        return this.firsts == null ? id : this.defs[id];
+    }
+
+    /**
+     * Returns the index of the value if the node (which must be a first
+     * occurrence) is used more than once, -1 otherwise.
+     */
+    public int sharedIndexOf(int id) {
+        return this.firsts == null ? -1 : this.shared[id];
+    }
+
+    public int sharedCount() {
+        return this.sharedCount;
+    }
+
+    /**
+     * Returns how many times the shared value is used, counting the first
+     * occurrence.
+     */
+    public int sharedUsesOf(int index) {
+        return this.sharedUses[index];
+    }
+
+    /**
+     * Returns the address of a load or store, null if its pointer is not
+     * folded.
+     */
+    public Address addressOf(int id) {
+        return this.addresses == null ? null : this.addresses[id];
+    }
+
+    /**
+     * Returns true if the node is a load that its parent uses as a memory
+     * operand, in which case only the registers of its address are
+     * evaluated.
+     */
+    public boolean isMemoryOperand(int id) {
+        return this.memoryOperands != null && this.memoryOperands.get(id);
+    }
+
+    public int firstChild(int id) {
+        return id + 1;
+    }
+
+    public int nextSibling(int id) {
+        return id + this.sizeOf(id);
+    }
+
+    private boolean isImmediate(int id) {
+        final int kind = this.kindOf(id);
+        return this.immediates && (kind == FlatExpr.NUMERIC || this.symbolImmediates && kind == FlatExpr.GLOBAL_VALUE);
+    }
+
+    /**
+     * Labels an instruction that can take an immediate as its second
+     * operand (or either operand if it is commutative).
+     */
+    private int labelBinary(boolean commutative) {
+        final int lhsId = this.firstChild(this.current);
+        final int rhsId = this.nextSibling(lhsId);
+
+        if (this.isImmediate(rhsId)) {
+            this.labels[rhsId] = 0;
+            return this.labels[lhsId];
+        }
+        if (commutative && this.isImmediate(lhsId)) {
+            this.labels[lhsId] = 0;
+            return this.labels[rhsId];
+        }
+
+        if (this.isFoldableLoad(rhsId))
+            this.labelMemoryOperand(rhsId);
+        else if (commutative && this.isFoldableLoad(lhsId))
+            this.labelMemoryOperand(lhsId);
+        return this.labelBinary();
+    }
+
+    boolean isFoldable(int id) {
+        return !this.multiUse.get(id);
+    }
+
+    private boolean isFoldableLoad(int id) {
+        return this.addressing && this.kindOf(id) == FlatExpr.LOAD && this.isFoldable(id);
+    }
+
+    private void labelMemoryOperand(int id) {
+        // the address can only take one register, since the other operand
+        // already needs one.
+        final Address address = this.matchAddress(this.firstChild(id), false);
+        this.addresses[id] = address;
+        this.labels[id] = this.labelAddress(address);
+        this.memoryOperands.set(id);
+    }
+
+    /**
+     * Folds as much of the pointer as possible into an address. Constant
+     * offsets, frame indices and shifts by 1 to 3 (as the scale) are
+     * folded, the rest is left to the base and index. Unless twoRegisters
+     * is set, only one of them can be used.
+     */
+    private Address matchAddress(int ptrId, boolean twoRegisters) {
+        final Address address = new Address();
+
+        // peel off the constant offsets first
+        int id = ptrId;
+        while (this.kindOf(id) == FlatExpr.ADD && this.isFoldable(id)) {
+            final int lhsId = this.firstChild(id);
+            final int rhsId = this.nextSibling(lhsId);
+            if (this.kindOf(rhsId) == FlatExpr.NUMERIC) {
+                address.disp += this.valueOf(rhsId);
+                id = lhsId;
+            } else if (this.kindOf(lhsId) == FlatExpr.NUMERIC) {
+                address.disp += this.valueOf(lhsId);
+                id = rhsId;
+            } else {
+                break;
+            }
+        }
+
+        final long disp = address.disp;
+        boolean folded = false;
+        if (this.kindOf(id) == FlatExpr.ADD && this.isFoldable(id)) {
+            final int lhsId = this.firstChild(id);
+            final int rhsId = this.nextSibling(lhsId);
+
+            // a leaf that is an immediate of the add would need a register
+            // of its own in the address, which is worse than not folding.
+            if (this.labels[lhsId] > 0 && this.labels[rhsId] > 0) {
+                folded = this.kindOf(rhsId) == FlatExpr.FRAME_INDEX
+                        ? this.addTerm(address, rhsId) && this.addTerm(address, lhsId)
+                        : this.addTerm(address, lhsId) && this.addTerm(address, rhsId);
+            }
+        } else {
+            folded = this.addTerm(address, id);
+        }
+
+        if (!folded || address.registers() > (twoRegisters ? 2 : 1)) {
+            // the sum is evaluated as a whole then
+            address.frame = false;
+            address.baseId = id;
+            address.indexId = -1;
+            address.scale = 1;
+            address.disp = disp;
+        }
+
+        if (this.target == Target.X86) {
+            // addresses wrap around on x86
+            address.disp = (int) address.disp;
+        } else if (address.disp != (int) address.disp) {
+            address.frame = false;
+            address.baseId = ptrId;
+            address.indexId = -1;
+            address.scale = 1;
+            address.disp = 0;
+        }
+        return address;
+    }
+
+    private boolean addTerm(Address address, int id) {
+        final int kind = this.kindOf(id);
+        if (kind == FlatExpr.NUMERIC) {
+            address.disp += this.valueOf(id);
+            return true;
+        }
+
+        if (kind == FlatExpr.FRAME_INDEX && !address.frame && address.baseId < 0) {
+            address.frame = true;
+            address.disp -= this.valueOf(id);
+            return true;
+        }
+
+        if (address.indexId < 0 && kind == FlatExpr.SHL && this.isFoldable(id)) {
+            final int lhsId = this.firstChild(id);
+            final int rhsId = this.nextSibling(lhsId);
+            if (this.kindOf(rhsId) == FlatExpr.NUMERIC) {
+                final int shift = this.valueOf(rhsId);
+                if (shift >= 1 && shift <= 3) {
+                    address.indexId = lhsId;
+                    address.scale = 1 << shift;
+                    return true;
+                }
+            }
+        }
+
+        if (!address.frame && address.baseId < 0) {
+            address.baseId = id;
+            return true;
+        }
+        if (address.indexId < 0) {
+            address.indexId = id;
+            return true;
+        }
+        return false;
+    }
+
+    private int labelAddress(Address address) {
+        // leaves that are immediates of a parent that got folded are labelled
+        // 0, but they still need a register here.
+        final int base = address.baseId >= 0 ? Math.max(1, this.labels[address.baseId]) : 0;
+        final int index = address.indexId >= 0 ? Math.max(1, this.labels[address.indexId]) : 0;
+        return base == index ? base + (base > 0 ? 1 : 0) : Math.max(base, index);
+    }
+
+    private int labelShift() {
+        final int lhsId = this.firstChild(this.current);
+        final int rhsId = this.nextSibling(lhsId);
+
+        // only a constant amount can be an immediate
+        if (this.immediates && this.kindOf(rhsId) == FlatExpr.NUMERIC) {
+            this.labels[rhsId] = 0;
+            return this.labels[lhsId];
+        }
+        return this.labelBinary();
+    }
+
+    private int labelBinary() {
+        final int lhs = this.firstChild(this.current);
+        final int rhs = this.nextSibling(lhs);
+
+        final int l = this.labels[lhs];
+        final int r = this.labels[rhs];
+        return l == r ? l + 1 : Math.max(l, r);
+    }
+
+    private int computeLabel(int id) {
+        switch (this.kindOf(id)) {
+        case FlatExpr.NUMERIC:
+        case FlatExpr.FRAME_INDEX:
+        case FlatExpr.GLOBAL_VALUE:
+            return 1;
+        case FlatExpr.LOAD:
+            return this.labelLoad();
+        case FlatExpr.STORE:
+            return this.labelStore();
+        case FlatExpr.ADD:
+        case FlatExpr.MUL:
+            return this.labelBinary(true);
+        case FlatExpr.SUB:
+            return this.labelBinary(false);
+        case FlatExpr.DIV:
+        case FlatExpr.REM:
+            return this.labelBinary();
+        case FlatExpr.SHL:
+        case FlatExpr.SRA:
+        case FlatExpr.SRL:
+            return this.labelShift();
+        default:
+            return this.labelCall();
+        }
+    }
+
+    private int labelLoad() {
+        final int ptrId = this.firstChild(this.current);
+        if (this.addressing) {
+            final Address address = this.matchAddress(ptrId, true);
+            this.addresses[this.current] = address;
+            return Math.max(1, this.labelAddress(address));
+        }
+
+        // the loaded value can reuse the register holding the pointer, so it
+        // needs exactly as many registers as the pointer does.
+        return this.labels[ptrId];
+    }
+
+    private int labelStore() {
+        if (this.addressing) {
+            final int ptrId = this.firstChild(this.current);
+            final int valueId = this.nextSibling(ptrId);
+            final Address address = this.matchAddress(ptrId, false);
+            this.addresses[this.current] = address;
+
+            final int l = this.labels[valueId];
+            final int r = this.labelAddress(address);
+            return l == r ? l + 1 : Math.max(l, r);
+        }
+        return this.labelBinary();
+    }
+
+    private int labelCall() {
+        final int fnId = this.firstChild(this.current);
+        final int argc = this.valueOf(this.current);
+        final int[] args = new int[argc];
+        final boolean[] calls = new boolean[argc];
+        for (int i = 0, id = fnId; i < argc; ++i) {
+            id = this.nextSibling(id);
+            if (i >= this.argRegisters && this.immediates && this.kindOf(id) == FlatExpr.NUMERIC)
+                this.labels[id] = 0; // pushed as an immediate
+            args[i] = this.labels[id];
+            calls[i] = this.calls.get(id);
+        }
+        return labelCall(this.labels[fnId], args, calls, this.argRegisters);
+    }
+
+    // the visitor records the kind and value of the node being labelled
+
+    private Void record(int kind, int value) {
+        this.kinds[this.current] = (byte) kind;
+        this.values[this.current] = value;
+        return null;
+    }
+
+    @Override
+    public Void visitNumeric(Numeric e) {
+        return this.record(FlatExpr.NUMERIC, e.value);
+    }
+
+    @Override
+    public Void visitFrameIndex(FrameIndex e) {
+        return this.record(FlatExpr.FRAME_INDEX, e.value);
+    }
+
+    @Override
+    public Void visitGlobalValue(GlobalValue e) {
+        this.symbols.add(e.value);
+        return this.record(FlatExpr.GLOBAL_VALUE, this.symbols.size() - 1);
+    }
+
+    @Override
+    public Void visitLoadExpr(LoadExpr e) {
+        return this.record(FlatExpr.LOAD, 0);
+    }
+
+    @Override
+    public Void visitStoreExpr(StoreExpr e) {
+        return this.record(FlatExpr.STORE, 0);
+    }
+
+    @Override
+    public Void visitAddExpr(AddExpr e) {
+        return this.record(FlatExpr.ADD, 0);
+    }
+
+    @Override
+    public Void visitSubExpr(SubExpr e) {
+        return this.record(FlatExpr.SUB, 0);
+    }
+
+    @Override
+    public Void visitMulExpr(MulExpr e) {
+        return this.record(FlatExpr.MUL, 0);
+    }
+
+    @Override
+    public Void visitDivExpr(DivExpr e) {
+        return this.record(FlatExpr.DIV, 0);
+    }
+
+    @Override
+    public Void visitRemExpr(RemExpr e) {
+        return this.record(FlatExpr.REM, 0);
+    }
+
+    @Override
+    public Void visitShlExpr(ShlExpr e) {
+        return this.record(FlatExpr.SHL, 0);
+    }
+
+    @Override
+    public Void visitSraExpr(SraExpr e) {
+        return this.record(FlatExpr.SRA, 0);
+    }
+
+    @Override
+    public Void visitSrlExpr(SrlExpr e) {
+        return this.record(FlatExpr.SRL, 0);
+    }
+
+    @Override
+    public Void visitCallExpr(CallExpr e) {
+        return this.record(FlatExpr.CALL, e.args.length);
+    }
+
+    /**
+     * Returns the label of a call given the labels of the function and the
+     * arguments (0 for the ones pushed as immediates), and which arguments
+     * contain calls themselves.
+     */
+    static int labelCall(int fn, int[] args, boolean[] calls, int argRegisters) {
+        // Function calls are mostly dictated by calling convention, but since
+        // we're assuming only concerned with single registers, we just need to
+        // allocate one register to this (the return value). The function and
+        // the arguments are evaluated (and pushed) one at a time though, so
+        // the call needs as many registers as the hungriest of them.
+        final int inRegs = Math.min(args.length, argRegisters);
+        int label = 1;
+        for (int i = inRegs; i < args.length; ++i)
+            label = Math.max(label, args[i]);
+
+        // Arguments passed in registers hold on to their register until the
+        // call, so the ones evaluated later have fewer registers to work
+        // with. They are evaluated in the same order EmitX64 uses, followed
+        // by the function.
+        final Integer[] order = registerArgumentOrder(args, calls, inRegs);
+        for (int i = 0; i < inRegs; ++i)
+            label = Math.max(label, args[order[i]] + i);
+        return Math.max(label, fn + inRegs);
+    }
+
+    /**
+     * Returns the order the first inRegs arguments (the ones passed in
+     * registers) are evaluated in. The ones containing calls go first, since
+     * any argument register that is already set would have to be saved
+     * across them. Otherwise the most demanding ones go first while there
+     * are still many registers.
+     */
+    static Integer[] registerArgumentOrder(int[] args, boolean[] calls, int inRegs) {
+        final Integer[] order = new Integer[inRegs];
+        for (int i = 0; i < inRegs; ++i)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> calls[a] != calls[b]
+                ? Boolean.compare(calls[b], calls[a])
+                : Integer.compare(args[b], args[a]));
+        return order;
+    }
+}
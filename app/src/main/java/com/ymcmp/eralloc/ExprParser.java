@@ -0,0 +1,286 @@
+package com.ymcmp.eralloc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads expressions written as S-expressions, one node kind per form:
+ *
+ * <pre>
+ * 42, -7, 0x1F      constant (Numeric)
+ * (frame 16)        address 16 bytes below the frame pointer (FrameIndex)
+ * foo               address of a symbol (GlobalValue)
+ * (load p)
+ * (store p v)
+ * (add a b), (sub a b), (mul a b), (div a b), (rem a b)
+ * (shl a b), (sra a b), (srl a b)
+ * (call f args...)
+ * </pre>
+ *
+ * Tokens are separated by whitespace or parentheses, and ; starts a comment
+ * that runs to the end of the line. Numbers must fit in 32 bits (hex ones
+ * are taken as unsigned, so they have no sign). Anything else that does not
+ * start with a digit or - is a symbol, read as UTF-8.
+ *
+ * The input can hold any number of expressions, which are read one at a
+ * time straight out of the buffer (a mapped file, see {@link #map(Path)})
+ * and built as {@link FlatExpr} without going through the objects. The
+ * nesting depth is only limited by memory.
+ */
+public final class ExprParser implements Iterator<FlatExpr> {
+
+    private static final String[] OPERATORS = {
+        "load", "store", "add", "sub", "mul", "div", "rem", "shl", "sra", "srl", "call", "frame",
+    };
+    private static final int[] KINDS = {
+        FlatExpr.LOAD, FlatExpr.STORE, FlatExpr.ADD, FlatExpr.SUB, FlatExpr.MUL, FlatExpr.DIV, FlatExpr.REM,
+        FlatExpr.SHL, FlatExpr.SRA, FlatExpr.SRL, FlatExpr.CALL, FlatExpr.FRAME_INDEX,
+    };
+
+    // the operators packed into longs, so they are matched without decoding
+    private static final long[] NAMES = new long[OPERATORS.length];
+
+    static {
+        for (int i = 0; i < OPERATORS.length; ++i) {
+            final byte[] name = OPERATORS[i].getBytes(StandardCharsets.US_ASCII);
+            NAMES[i] = pack(ByteBuffer.wrap(name), 0, name.length);
+        }
+    }
+
+    private final ByteBuffer input;
+    private int pos;
+    private final int limit;
+    private int line = 1;
+
+    // the operators that are open and how many operands each already has
+    private int[] kinds = new int[16];
+    private int[] operands = new int[16];
+
+    private byte[] scratch = new byte[64];
+
+    public ExprParser(ByteBuffer input) {
+        this.input = input;
+        this.pos = input.position();
+        this.limit = input.limit();
+    }
+
+    /**
+     * Maps the file and reads the expressions in it.
+     */
+    public static ExprParser map(Path path) throws IOException {
+        try (final FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ExprParser(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    /**
+     * Reads the only expression in the text.
+     */
+    public static FlatExpr parse(String text) {
+        return parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Reads the only expression in the buffer.
+     */
+    public static FlatExpr parse(ByteBuffer input) {
+        final ExprParser parser = new ExprParser(input);
+        if (!parser.hasNext())
+            throw parser.error("Expected an expression");
+        final FlatExpr e = parser.next();
+        if (parser.hasNext())
+            throw parser.error("More than one expression");
+        return e;
+    }
+
+    /**
+     * Returns the line the parser is at, which is right after the last
+     * expression it read.
+     */
+    public int getLine() {
+        return this.line;
+    }
+
+    @Override
+    public boolean hasNext() {
+        this.skipSpace();
+        return this.pos < this.limit;
+    }
+
+    /**
+     * Reads the next expression, throws IllegalArgumentException (with the
+     * line in the message) if it is malformed.
+     */
+    @Override
+    public FlatExpr next() {
+        if (!this.hasNext())
+            throw new NoSuchElementException();
+
+        final FlatExpr.Builder builder = new FlatExpr.Builder();
+        int depth = 0;
+        do {
+            this.skipSpace();
+            if (this.pos == this.limit)
+                throw this.error("Unexpected end of input");
+
+            final byte b = this.input.get(this.pos);
+            if (b == ')') {
+                if (depth == 0)
+                    throw this.error("Unbalanced ')'");
+
+                this.pos++;
+                depth--;
+                final int kind = this.kinds[depth];
+                final int count = this.operands[depth];
+                if (kind == FlatExpr.CALL ? count == 0 : count != FlatExpr.arity(kind, 0))
+                    throw this.error("Wrong number of operands to " + name(kind));
+                builder.close();
+            } else {
+                if (depth > 0)
+                    this.operands[depth - 1]++;
+
+                if (b != '(') {
+                    this.atom(builder);
+                    continue;
+                }
+
+                this.pos++;
+                this.skipSpace();
+                final int kind = this.operator();
+                if (kind == FlatExpr.FRAME_INDEX) {
+                    this.skipSpace();
+                    builder.frameIndex(this.number());
+                    this.skipSpace();
+                    if (this.pos == this.limit || this.input.get(this.pos) != ')')
+                        throw this.error("Expected ')' after frame index");
+                    this.pos++;
+                    continue;
+                }
+
+                if (depth == this.kinds.length) {
+                    this.kinds = Arrays.copyOf(this.kinds, depth * 2);
+                    this.operands = Arrays.copyOf(this.operands, depth * 2);
+                }
+                this.kinds[depth] = kind;
+                this.operands[depth] = 0;
+                depth++;
+                if (kind == FlatExpr.CALL)
+                    builder.openCall();
+                else
+                    builder.open(kind);
+            }
+        } while (depth > 0);
+
+        return builder.build();
+    }
+
+    private void skipSpace() {
+        while (this.pos < this.limit) {
+            final byte b = this.input.get(this.pos);
+            if (b == '\n') {
+                this.line++;
+            } else if (b == ';') {
+                while (this.pos < this.limit && this.input.get(this.pos) != '\n')
+                    this.pos++;
+                continue;
+            } else if (b != ' ' && b != '\t' && b != '\r') {
+                return;
+            }
+            this.pos++;
+        }
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return b == '(' || b == ')' || b == ';' || b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private int tokenEnd() {
+        int end = this.pos;
+        while (end < this.limit && !isDelimiter(this.input.get(end)))
+            end++;
+        return end;
+    }
+
+    private void atom(FlatExpr.Builder builder) {
+        final byte b = this.input.get(this.pos);
+        if (b >= '0' && b <= '9' || b == '-') {
+            builder.numeric(this.number());
+            return;
+        }
+
+        final int end = this.tokenEnd();
+        final int length = end - this.pos;
+        if (length > this.scratch.length)
+            this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+        this.input.get(this.pos, this.scratch, 0, length);
+        this.pos = end;
+        builder.globalValue(new String(this.scratch, 0, length, StandardCharsets.UTF_8));
+    }
+
+    private int number() {
+        final int end = this.tokenEnd();
+        int p = this.pos;
+        final boolean negative = p < end && this.input.get(p) == '-';
+        if (negative)
+            p++;
+
+        final boolean hex = end - p > 2 && this.input.get(p) == '0' && (this.input.get(p + 1) | 0x20) == 'x';
+        if (hex) {
+            if (negative)
+                throw this.error("Hex numbers cannot be negative");
+            p += 2;
+        }
+        if (p == end)
+            throw this.error("Expected a number");
+
+        final long max = hex ? 0xFFFF_FFFFL : negative ? 1L << 31 : Integer.MAX_VALUE;
+        long value = 0;
+        for (; p < end; ++p) {
+            final int digit = Character.digit(this.input.get(p), hex ? 16 : 10);
+            if (digit < 0)
+                throw this.error("Malformed number");
+            value = value * (hex ? 16 : 10) + digit;
+            if (value > max)
+                throw this.error("Number does not fit in 32 bits");
+        }
+
+        this.pos = end;
+        return (int) (negative ? -value : value);
+    }
+
+    private int operator() {
+        final int end = this.tokenEnd();
+        final long name = end - this.pos <= 8 ? pack(this.input, this.pos, end) : 0;
+        for (int i = 0; i < NAMES.length; ++i) {
+            if (NAMES[i] == name) {
+                this.pos = end;
+                return KINDS[i];
+            }
+        }
+        throw this.error("Unknown operator");
+    }
+
+    private static long pack(ByteBuffer buf, int start, int end) {
+        long word = 0;
+        for (int i = start; i < end; ++i)
+            word = word << 8 | buf.get(i) & 0xFF;
+        return word;
+    }
+
+    private static String name(int kind) {
+        for (int i = 0; i < KINDS.length; ++i) {
+            if (KINDS[i] == kind)
+                return OPERATORS[i];
+        }
+        throw new AssertionError("Unknown kind " + kind);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Line " + this.line + ": " + message);
+    }
+}
@@ -0,0 +1,141 @@
+package com.ymcmp.eralloc;
+
+import java.util.Arrays;
+import com.ymcmp.eralloc.ast.*;
+
+/**
+ * A growable stack of nodes used to walk trees without recursing. Each entry
+ * carries an int mark that the walk can use however it likes.
+ *
+ * The children of a node are always walked in the order of their fields:
+ * lhs then rhs, ptr then value, fn then args.
+ */
+final class ExprStack implements ExprAST.Visitor<Void> {
+
+    private ExprAST[] nodes = new ExprAST[32];
+    private int[] marks = new int[32];
+    private int size;
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public void push(ExprAST e, int mark) {
+        if (this.size == this.nodes.length) {
+            this.nodes = Arrays.copyOf(this.nodes, this.size * 2);
+            this.marks = Arrays.copyOf(this.marks, this.size * 2);
+        }
+
+        this.nodes[this.size] = e;
+        this.marks[this.size] = mark;
+        this.size++;
+    }
+
+    public ExprAST peek() {
+        return this.nodes[this.size - 1];
+    }
+
+    public int peekMark() {
+        return this.marks[this.size - 1];
+    }
+
+    public void setMark(int mark) {
+        this.marks[this.size - 1] = mark;
+    }
+
+    public ExprAST pop() {
+        final ExprAST e = this.nodes[--this.size];
+        this.nodes[this.size] = null;
+        return e;
+    }
+
+    /**
+     * Pushes the children of the node with a mark of -1. They are pushed in
+     * reverse, so the first child ends up on top.
+     */
+    public void pushChildren(ExprAST e) {
+        e.accept(this);
+    }
+
+    @Override
+    public Void visitNumeric(Numeric e) {
+        return null;
+    }
+
+    @Override
+    public Void visitFrameIndex(FrameIndex e) {
+        return null;
+    }
+
+    @Override
+    public Void visitGlobalValue(GlobalValue e) {
+        return null;
+    }
+
+    @Override
+    public Void visitLoadExpr(LoadExpr e) {
+        this.push(e.ptr, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitStoreExpr(StoreExpr e) {
+        this.push(e.value, -1);
+        this.push(e.ptr, -1);
+        return null;
+    }
+
+    private Void pushBinary(ExprAST lhs, ExprAST rhs) {
+        this.push(rhs, -1);
+        this.push(lhs, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitAddExpr(AddExpr e) {
+        return this.pushBinary(e.lhs, e.rhs);
+    }
+
+    @Override
+    public Void visitSubExpr(SubExpr e) {
+        return this.pushBinary(e.lhs, e.rhs);
+    }
+
+    @Override
+    public Void visitMulExpr(MulExpr e) {
+        return this.pushBinary(e.lhs, e.rhs);
+    }
+
+    @Override
+    public Void visitDivExpr(DivExpr e) {
+        return this.pushBinary(e.lhs, e.rhs);
+    }
+
+    @Override
+    public Void visitRemExpr(RemExpr e) {
+        return this.pushBinary(e.lhs, e.rhs);
+    }
+
+    @Override
+    public Void visitShlExpr(ShlExpr e) {
+        return this.pushBinary(e.lhs, e.rhs);
+    }
+
+    @Override
+    public Void visitSraExpr(SraExpr e) {
+        return this.pushBinary(e.lhs, e.rhs);
+    }
+
+    @Override
+    public Void visitSrlExpr(SrlExpr e) {
+        return this.pushBinary(e.lhs, e.rhs);
+    }
+
+    @Override
+    public Void visitCallExpr(CallExpr e) {
+        for (int i = e.args.length; i-- > 0; )
+            this.push(e.args[i], -1);
+        this.push(e.fn, -1);
+        return null;
+    }
+}
@@ -0,0 +1,575 @@
+package com.ymcmp.eralloc;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import com.ymcmp.eralloc.ast.*;
+
+/**
+ * An expression tree stored as a few flat arrays instead of one object per
+ * node. Nodes are numbered in pre-order (children in the order of their
+ * fields, like {@link ExprStack}), which is the same numbering ErshovLabel
+ * uses, so the labelling and emission passes can work on it directly.
+ *
+ * Each node has a kind, a value and the size of its subtree. The value is
+ * the constant (numerics), the offset (frame indices), the index of the
+ * symbol (global values) or the number of arguments (calls), and 0 for
+ * everything else. The first child of a node comes right after it, and
+ * every other child comes right after the subtree of its previous sibling.
+ *
+ * The binary format is little-endian and laid out so that the arrays can be
+ * used in place:
+ *
+ * <pre>
+ * int     magic ("EXPR")
+ * int     version (1)
+ * int     n, the number of nodes
+ * int     m, the number of symbols
+ * int[n]  values
+ * int[n]  subtree sizes
+ * byte[n] kinds, padded to a multiple of 4 bytes
+ * int[m]  where each symbol ends in the names
+ * byte[]  names, UTF-8 encoded
+ * </pre>
+ *
+ * A mapped file is only read (and validated) once, the node arrays are never
+ * copied. Instances are immutable.
+ */
+public final class FlatExpr {
+
+    public static final int NUMERIC = 0;
+    public static final int FRAME_INDEX = 1;
+    public static final int GLOBAL_VALUE = 2;
+    public static final int LOAD = 3;
+    public static final int STORE = 4;
+    public static final int ADD = 5;
+    public static final int SUB = 6;
+    public static final int MUL = 7;
+    public static final int DIV = 8;
+    public static final int REM = 9;
+    public static final int SHL = 10;
+    public static final int SRA = 11;
+    public static final int SRL = 12;
+    public static final int CALL = 13;
+
+    private static final int MAGIC = 0x52505845;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+
+    private final int count;
+    private final ByteBuffer kinds;
+    private final IntBuffer values;
+    private final IntBuffer sizes;
+    private final String[] symbols;
+
+    private FlatExpr(int count, ByteBuffer kinds, IntBuffer values, IntBuffer sizes, String[] symbols) {
+        this.count = count;
+        this.kinds = kinds;
+        this.values = values;
+        this.sizes = sizes;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Returns the number of children a node of this kind has.
+     */
+    static int arity(int kind, int value) {
+        switch (kind) {
+        case NUMERIC:
+        case FRAME_INDEX:
+        case GLOBAL_VALUE:
+            return 0;
+        case LOAD:
+            return 1;
+        case CALL:
+            return 1 + value;
+        default:
+            return 2;
+        }
+    }
+
+    public static boolean isLeaf(int kind) {
+        return kind == NUMERIC || kind == FRAME_INDEX || kind == GLOBAL_VALUE;
+    }
+
+    /**
+     * Flattens the expression. A node that is reachable through more than
+     * one path is copied for every path.
+     */
+    public static FlatExpr of(ExprAST root) {
+        final Builder builder = new Builder();
+        final ExprStack work = new ExprStack();
+        work.push(root, -1);
+        while (!work.isEmpty()) {
+            final ExprAST e = work.peek();
+            if (work.peekMark() >= 0) {
+                work.pop();
+                builder.close();
+                continue;
+            }
+
+            e.accept(builder.flattener);
+            if (isLeaf(builder.kinds[builder.count - 1])) {
+                work.pop();
+            } else {
+                work.setMark(builder.count - 1);
+                work.pushChildren(e);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads an expression in the binary format from the remaining bytes of
+     * the buffer. The buffer is not copied, so it must not change for as
+     * long as the expression is used.
+     *
+     * @throws IllegalArgumentException if the bytes are not a well-formed
+     *         expression
+     */
+    public static FlatExpr read(ByteBuffer buffer) {
+        final ByteBuffer buf = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() < HEADER || buf.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("Not a flat expression");
+        if (buf.getInt(4) != VERSION)
+            throw new IllegalArgumentException("Unsupported version " + buf.getInt(4));
+
+        final long n = buf.getInt(8);
+        final long m = buf.getInt(12);
+        final long kindsAt = HEADER + 8 * n;
+        final long endsAt = kindsAt + (n + 3) / 4 * 4;
+        final long namesAt = endsAt + 4 * m;
+        if (n <= 0 || m < 0 || namesAt > buf.limit())
+            throw new IllegalArgumentException("Truncated flat expression");
+
+        final int count = (int) n;
+        final IntBuffer values = slice(buf, HEADER, 4 * count).asIntBuffer();
+        final IntBuffer sizes = slice(buf, HEADER + 4 * count, 4 * count).asIntBuffer();
+        final ByteBuffer kinds = slice(buf, (int) kindsAt, count);
+
+        final String[] symbols = new String[(int) m];
+        int start = (int) namesAt;
+        for (int i = 0; i < symbols.length; ++i) {
+            final int end = (int) namesAt + buf.getInt((int) endsAt + 4 * i);
+            if (end < start || end > buf.limit())
+                throw new IllegalArgumentException("Malformed symbol table");
+
+            final byte[] name = new byte[end - start];
+            buf.get(start, name);
+            symbols[i] = new String(name, StandardCharsets.UTF_8);
+            start = end;
+        }
+
+        final FlatExpr flat = new FlatExpr(count, kinds, values, sizes, symbols);
+        flat.validate();
+        return flat;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int index, int length) {
+        return buf.slice(index, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Maps the file and reads the expression in it. See
+     * {@link #read(ByteBuffer)}.
+     */
+    public static FlatExpr map(Path path) throws IOException {
+        try (final FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    /**
+     * Checks that every node is of a known kind and the subtree sizes match
+     * the kinds. Children are checked before their parents by going through
+     * the nodes backwards, which leaves the sizes of the subtrees that are
+     * not yet attached on a stack.
+     */
+    private void validate() {
+        int[] stack = new int[16];
+        int depth = 0;
+        for (int id = this.count; id-- > 0; ) {
+            final int kind = this.kindOf(id);
+            final int value = this.valueOf(id);
+            // a call cannot have more arguments than there are nodes, which
+            // also keeps its arity from overflowing
+            if (kind < NUMERIC || kind > CALL || kind == CALL && (value < 0 || value >= this.count))
+                throw new IllegalArgumentException("Malformed node " + id);
+            if (kind == GLOBAL_VALUE && (value < 0 || value >= this.symbols.length))
+                throw new IllegalArgumentException("Malformed symbol in node " + id);
+
+            final int arity = arity(kind, value);
+            if (arity > depth)
+                throw new IllegalArgumentException("Missing children in node " + id);
+
+            long size = 1;
+            for (int i = 0; i < arity; ++i)
+                size += stack[--depth];
+            if (size != this.subtreeSize(id))
+                throw new IllegalArgumentException("Malformed size in node " + id);
+
+            if (depth == stack.length)
+                stack = Arrays.copyOf(stack, depth * 2);
+            stack[depth++] = (int) size;
+        }
+
+        if (depth != 1)
+            throw new IllegalArgumentException("More than one root");
+    }
+
+    /**
+     * Writes the expression in the binary format.
+     */
+    public void writeTo(WritableByteChannel out) throws IOException {
+        final byte[][] names = new byte[this.symbols.length][];
+        int namesSize = 0;
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = this.symbols[i].getBytes(StandardCharsets.UTF_8);
+            namesSize += names[i].length;
+        }
+
+        final int n = this.count;
+        final int kindsSize = (n + 3) / 4 * 4;
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER + 8 * n + kindsSize + 4 * names.length + namesSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(names.length);
+        for (int id = 0; id < n; ++id)
+            buf.putInt(this.valueOf(id));
+        for (int id = 0; id < n; ++id)
+            buf.putInt(this.subtreeSize(id));
+        for (int id = 0; id < n; ++id)
+            buf.put((byte) this.kindOf(id));
+        buf.position(buf.position() + kindsSize - n);
+
+        int end = 0;
+        for (final byte[] name : names)
+            buf.putInt(end += name.length);
+        for (final byte[] name : names)
+            buf.put(name);
+
+        buf.flip();
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+
+    /**
+     * Rebuilds the expression as objects.
+     */
+    public ExprAST toExprAST() {
+        // going backwards, the children of a node are all on the stack when
+        // the node is reached, with the first child on top.
+        ExprAST[] stack = new ExprAST[16];
+        int depth = 0;
+        for (int id = this.count; id-- > 0; ) {
+            final int value = this.valueOf(id);
+            final ExprAST e;
+            switch (this.kindOf(id)) {
+            case NUMERIC:
+                e = new Numeric(value);
+                break;
+            case FRAME_INDEX:
+                e = new FrameIndex(value);
+                break;
+            case GLOBAL_VALUE:
+                e = new GlobalValue(this.symbols[value]);
+                break;
+            case LOAD:
+                e = new LoadExpr(stack[--depth]);
+                break;
+            case CALL: {
+                final ExprAST fn = stack[--depth];
+                final ExprAST[] args = new ExprAST[value];
+                for (int i = 0; i < value; ++i)
+                    args[i] = stack[--depth];
+                e = new CallExpr(fn, args);
+                break;
+            }
+            default:
+                e = binary(this.kindOf(id), stack[depth - 1], stack[depth - 2]);
+                depth -= 2;
+                break;
+            }
+
+            if (depth == stack.length)
+                stack = Arrays.copyOf(stack, depth * 2);
+            stack[depth++] = e;
+        }
+        return stack[0];
+    }
+
+    private static ExprAST binary(int kind, ExprAST lhs, ExprAST rhs) {
+        switch (kind) {
+        case STORE:
+            return new StoreExpr(lhs, rhs);
+        case ADD:
+            return new AddExpr(lhs, rhs);
+        case SUB:
+            return new SubExpr(lhs, rhs);
+        case MUL:
+            return new MulExpr(lhs, rhs);
+        case DIV:
+            return new DivExpr(lhs, rhs);
+        case REM:
+            return new RemExpr(lhs, rhs);
+        case SHL:
+            return new ShlExpr(lhs, rhs);
+        case SRA:
+            return new SraExpr(lhs, rhs);
+        default:
+            return new SrlExpr(lhs, rhs);
+        }
+    }
+
+    /**
+     * Returns the number of nodes.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    public int kindOf(int id) {
+        return this.kinds.get(id);
+    }
+
+    public int valueOf(int id) {
+        return this.values.get(id);
+    }
+
+    /**
+     * Returns the number of nodes in the subtree of the node (including
+     * itself).
+     */
+    public int subtreeSize(int id) {
+        return this.sizes.get(id);
+    }
+
+    /**
+     * Returns the name of a global value.
+     */
+    public String symbolOf(int id) {
+        return this.symbols[this.valueOf(id)];
+    }
+
+    public int firstChild(int id) {
+        return id + 1;
+    }
+
+    public int nextSibling(int id) {
+        return id + this.subtreeSize(id);
+    }
+
+    /**
+     * Builds an expression in pre-order without going through the objects.
+     * Nodes with children are opened, followed by their children, and then
+     * closed. Symbols are interned, so each name is only stored once.
+     */
+    public static final class Builder {
+
+        private byte[] kinds = new byte[64];
+        private int[] values = new int[64];
+        private int[] sizes = new int[64];
+        private int count;
+
+        // the nodes that are open and how many children each already has
+        private int[] open = new int[16];
+        private int[] children = new int[16];
+        private int depth;
+
+        private final Map<String, Integer> symbols = new HashMap<>();
+
+        final ExprAST.Visitor<Void> flattener = new Flattener();
+
+        private void add(int kind, int value) {
+            if (this.count == this.kinds.length) {
+                this.kinds = Arrays.copyOf(this.kinds, this.count * 2);
+                this.values = Arrays.copyOf(this.values, this.count * 2);
+                this.sizes = Arrays.copyOf(this.sizes, this.count * 2);
+            }
+
+            if (this.depth > 0)
+                this.children[this.depth - 1]++;
+            else if (this.count > 0)
+                throw new IllegalStateException("More than one root");
+
+            this.kinds[this.count] = (byte) kind;
+            this.values[this.count] = value;
+            this.sizes[this.count] = 1;
+            this.count++;
+        }
+
+        public Builder numeric(int value) {
+            this.add(NUMERIC, value);
+            return this;
+        }
+
+        public Builder frameIndex(int value) {
+            this.add(FRAME_INDEX, value);
+            return this;
+        }
+
+        public Builder globalValue(String name) {
+            final Integer index = this.symbols.putIfAbsent(name, this.symbols.size());
+            this.add(GLOBAL_VALUE, index == null ? this.symbols.size() - 1 : index);
+            return this;
+        }
+
+        /**
+         * Opens a load, store or binary operation.
+         */
+        public Builder open(int kind) {
+            if (isLeaf(kind) || kind == CALL || kind < NUMERIC || kind > CALL)
+                throw new IllegalArgumentException("Not an operation: " + kind);
+            return this.open(kind, 0);
+        }
+
+        public Builder openCall(int args) {
+            if (args < 0)
+                throw new IllegalArgumentException("Negative number of arguments");
+            return this.open(CALL, args);
+        }
+
+        /**
+         * Opens a call whose arguments are counted when it is closed.
+         */
+        public Builder openCall() {
+            return this.open(CALL, -1);
+        }
+
+        private Builder open(int kind, int value) {
+            this.add(kind, value);
+            if (this.depth == this.open.length) {
+                this.open = Arrays.copyOf(this.open, this.depth * 2);
+                this.children = Arrays.copyOf(this.children, this.depth * 2);
+            }
+            this.open[this.depth] = this.count - 1;
+            this.children[this.depth] = 0;
+            this.depth++;
+            return this;
+        }
+
+        /**
+         * Closes the most recently opened node.
+         */
+        public Builder close() {
+            if (this.depth == 0)
+                throw new IllegalStateException("Nothing to close");
+
+            final int id = this.open[--this.depth];
+            final int children = this.children[this.depth];
+            if (this.kinds[id] == CALL && this.values[id] < 0)
+                this.values[id] = Math.max(children - 1, 0);
+            if (children != arity(this.kinds[id], this.values[id]))
+                throw new IllegalStateException("Wrong number of children in node " + id);
+            this.sizes[id] = this.count - id;
+            return this;
+        }
+
+        public FlatExpr build() {
+            if (this.count == 0 || this.depth != 0)
+                throw new IllegalStateException("Incomplete expression");
+
+            final String[] names = new String[this.symbols.size()];
+            for (final Map.Entry<String, Integer> entry : this.symbols.entrySet())
+                names[entry.getValue()] = entry.getKey();
+
+            final int n = this.count;
+            return new FlatExpr(n,
+                    ByteBuffer.wrap(Arrays.copyOf(this.kinds, n)),
+                    IntBuffer.wrap(Arrays.copyOf(this.values, n)),
+                    IntBuffer.wrap(Arrays.copyOf(this.sizes, n)),
+                    names);
+        }
+
+        private final class Flattener implements ExprAST.Visitor<Void> {
+
+            @Override
+            public Void visitNumeric(Numeric e) {
+                Builder.this.numeric(e.value);
+                return null;
+            }
+
+            @Override
+            public Void visitFrameIndex(FrameIndex e) {
+                Builder.this.frameIndex(e.value);
+                return null;
+            }
+
+            @Override
+            public Void visitGlobalValue(GlobalValue e) {
+                Builder.this.globalValue(e.value);
+                return null;
+            }
+
+            @Override
+            public Void visitLoadExpr(LoadExpr e) {
+                Builder.this.open(LOAD);
+                return null;
+            }
+
+            @Override
+            public Void visitStoreExpr(StoreExpr e) {
+                Builder.this.open(STORE);
+                return null;
+            }
+
+            @Override
+            public Void visitAddExpr(AddExpr e) {
+                Builder.this.open(ADD);
+                return null;
+            }
+
+            @Override
+            public Void visitSubExpr(SubExpr e) {
+                Builder.this.open(SUB);
+                return null;
+            }
+
+            @Override
+            public Void visitMulExpr(MulExpr e) {
+                Builder.this.open(MUL);
+                return null;
+            }
+
+            @Override
+            public Void visitDivExpr(DivExpr e) {
+                Builder.this.open(DIV);
+                return null;
+            }
+
+            @Override
+            public Void visitRemExpr(RemExpr e) {
+                Builder.this.open(REM);
+                return null;
+            }
+
+            @Override
+            public Void visitShlExpr(ShlExpr e) {
+                Builder.this.open(SHL);
+                return null;
+            }
+
+            @Override
+            public Void visitSraExpr(SraExpr e) {
+                Builder.this.open(SRA);
+                return null;
+            }
+
+            @Override
+            public Void visitSrlExpr(SrlExpr e) {
+                Builder.this.open(SRL);
+                return null;
+            }
+
+            @Override
+            public Void visitCallExpr(CallExpr e) {
+                Builder.this.openCall(e.args.length);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+
+/**
+ * Colors the interference graph of {@link VirtualCode} (Chaitin and Briggs).
+ * Interference is kept in a triangular bit matrix for the membership tests
+ * and in adjacency lists for walking the neighbours.
+ *
+ * Fixed virtual registers are not part of the graph, instead every node
+ * records the registers it cannot use because it is live while they are
+ * fixed. Moves are coalesced conservatively: two nodes are merged if the
+ * result has fewer than K neighbours of significant degree (Briggs), and a
+ * node is pinned to the register it is moved to or from if every
+ * significant neighbour already cannot use that register (George). Nodes
+ * that might not be colorable are pushed optimistically and only spilled if
+ * they really run out of colors, picking the ones with the fewest uses for
+ * their degree.
+ */
+final class GraphColoring implements RegisterAllocator {
+
+    private final List<Register> registers;
+
+    // the allocatable registers as a mask of ordinals
+    private final int allowed;
+
+    // the state of the current round
+    private VirtualCode code;
+    private long[] matrix;
+    private int[][] adj;
+    private int[] adjCount;
+    private int[] degree;
+    private int[] masks;
+    private int[] alias;
+    private int[] precolor;
+    private int[] refs;
+    private boolean[] temps;
+    private boolean[] removed;
+
+    public GraphColoring(List<Register> registers) {
+        this.registers = registers;
+
+        int allowed = 0;
+        for (final Register r : registers)
+            allowed |= 1 << r.ordinal();
+        this.allowed = allowed;
+    }
+
+    @Override
+    public int[] allocate(VirtualCode code, BitSet spilled) {
+        final int n = code.vregCount();
+        this.code = code;
+        this.matrix = new long[(int) (((long) n * (n - 1) / 2 + 63) >>> 6)];
+        this.adj = new int[n][];
+        this.adjCount = new int[n];
+        this.degree = new int[n];
+        this.masks = new int[n];
+        this.alias = new int[n];
+        this.precolor = new int[n];
+        this.refs = new int[n];
+        this.temps = new boolean[n];
+        this.removed = new boolean[n];
+        Arrays.fill(this.alias, -1);
+        Arrays.fill(this.precolor, -1);
+
+        this.build();
+        this.coalesce();
+
+        final int[] colors = this.select(this.simplify());
+        for (int v = 0; v < n; ++v) {
+            if (code.fixedOf(v) >= 0) {
+                colors[v] = code.fixedOf(v);
+            } else if (this.isNode(v)) {
+                final int root = this.find(v);
+                colors[v] = colors[root];
+                if (colors[v] < 0)
+                    spilled.set(v);
+            }
+        }
+
+        this.code = null;
+        this.matrix = null;
+        this.adj = null;
+        return colors;
+    }
+
+    private boolean isNode(int v) {
+        return this.code.fixedOf(v) < 0 && this.code.startOf(v) != Integer.MAX_VALUE;
+    }
+
+    private int find(int v) {
+        while (this.alias[v] >= 0)
+            v = this.alias[v];
+        return v;
+    }
+
+    // nodes that still take part in simplification
+    private boolean inGraph(int v) {
+        return this.alias[v] < 0 && this.precolor[v] < 0 && !this.removed[v];
+    }
+
+    private int colorsOf(int v) {
+        return Integer.bitCount(this.allowed & ~this.masks[v]);
+    }
+
+    private boolean isSignificant(int v) {
+        return this.degree[v] >= this.colorsOf(v);
+    }
+
+    private long bitIndex(int a, int b) {
+        if (a < b) {
+            final int t = a;
+            a = b;
+            b = t;
+        }
+        return (long) a * (a - 1) / 2 + b;
+    }
+
+    private boolean interferes(int a, int b) {
+        final long bit = this.bitIndex(a, b);
+        return (this.matrix[(int) (bit >>> 6)] & 1L << bit) != 0;
+    }
+
+    private void addEdge(int a, int b) {
+        final long bit = this.bitIndex(a, b);
+        final int word = (int) (bit >>> 6);
+        if ((this.matrix[word] & 1L << bit) != 0)
+            return;
+
+        this.matrix[word] |= 1L << bit;
+        this.addNeighbour(a, b);
+        this.addNeighbour(b, a);
+    }
+
+    private void addNeighbour(int v, int t) {
+        if (this.adj[v] == null)
+            this.adj[v] = new int[4];
+        else if (this.adjCount[v] == this.adj[v].length)
+            this.adj[v] = Arrays.copyOf(this.adj[v], this.adjCount[v] * 2);
+        this.adj[v][this.adjCount[v]++] = t;
+        this.degree[v]++;
+    }
+
+    private void build() {
+        final VirtualCode code = this.code;
+        final int n = code.vregCount();
+
+        int count = 0;
+        final long[] order = new long[n];
+        for (int v = 0; v < n; ++v)
+            if (code.startOf(v) != Integer.MAX_VALUE)
+                order[count++] = (long) code.startOf(v) << 32 | v;
+        Arrays.sort(order, 0, count);
+
+        // the code is straight-line, so two values interfere exactly when
+        // their intervals overlap
+        int[] active = new int[16];
+        int activeCount = 0;
+        for (int j = 0; j < count; ++j) {
+            final int v = (int) order[j];
+            final int start = code.startOf(v);
+            for (int a = activeCount; a-- > 0; )
+                if (code.endOf(active[a]) < start)
+                    active[a] = active[--activeCount];
+
+            final int reg = code.fixedOf(v);
+            for (int a = 0; a < activeCount; ++a) {
+                final int u = active[a];
+                final int other = code.fixedOf(u);
+                if (reg >= 0 && other < 0)
+                    this.masks[u] |= 1 << reg;
+                else if (reg < 0 && other >= 0)
+                    this.masks[v] |= 1 << other;
+                else if (reg < 0)
+                    this.addEdge(u, v);
+            }
+
+            if (activeCount == active.length)
+                active = Arrays.copyOf(active, activeCount * 2);
+            active[activeCount++] = v;
+        }
+
+        for (int i = 0; i < code.size(); ++i) {
+            for (int k = 0; k < code.operandCount(i); ++k) {
+                final int kind = code.kind(i, k);
+                if (kind == InstrBuffer.REG || kind == InstrBuffer.MEM && code.value(i, k) != VirtualCode.FRAME)
+                    this.refs[code.value(i, k)]++;
+            }
+            for (final int v : code.implicitUses(i))
+                this.refs[v]++;
+            for (final int v : code.implicitDefs(i))
+                this.refs[v]++;
+        }
+        for (int v = 0; v < n; ++v)
+            this.temps[v] = code.isTemp(v);
+    }
+
+    private void coalesce() {
+        final VirtualCode code = this.code;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < code.size(); ++i) {
+                if (!code.isMove(i))
+                    continue;
+
+                final int dst = code.value(i, 0);
+                final int src = code.value(i, 1);
+                final int dstReg = code.fixedOf(dst);
+                final int srcReg = code.fixedOf(src);
+                if (dstReg >= 0 && srcReg >= 0)
+                    continue;
+
+                if (dstReg >= 0)
+                    changed |= this.pin(this.find(src), dstReg);
+                else if (srcReg >= 0)
+                    changed |= this.pin(this.find(dst), srcReg);
+                else
+                    changed |= this.merge(this.find(dst), this.find(src));
+            }
+        }
+    }
+
+    /**
+     * Pins the node to the register if that cannot make any of its
+     * neighbours uncolorable.
+     */
+    private boolean pin(int v, int reg) {
+        final int bit = 1 << reg;
+        if (this.precolor[v] >= 0 || (this.allowed & bit) == 0 || (this.masks[v] & bit) != 0)
+            return false;
+
+        for (int j = 0; j < this.adjCount[v]; ++j) {
+            final int t = this.adj[v][j];
+            if (this.inGraph(t) && this.isSignificant(t) && (this.masks[t] & bit) == 0)
+                return false;
+        }
+
+        // the node leaves the graph, its neighbours just cannot use the
+        // register anymore
+        this.precolor[v] = reg;
+        for (int j = 0; j < this.adjCount[v]; ++j) {
+            final int t = this.adj[v][j];
+            if (this.alias[t] < 0) {
+                this.masks[t] |= bit;
+                this.degree[t]--;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges src into dst if the result has fewer significant neighbours
+     * than it has colors.
+     */
+    private boolean merge(int dst, int src) {
+        if (dst == src || !this.inGraph(dst) || !this.inGraph(src) || this.interferes(dst, src))
+            return false;
+
+        final int masks = this.masks[dst] | this.masks[src];
+        final int colors = Integer.bitCount(this.allowed & ~masks);
+        int significant = 0;
+        for (int j = 0; j < this.adjCount[dst]; ++j) {
+            final int t = this.adj[dst][j];
+            if (this.inGraph(t) && this.isSignificant(t))
+                significant++;
+        }
+        for (int j = 0; j < this.adjCount[src]; ++j) {
+            final int t = this.adj[src][j];
+            if (this.inGraph(t) && this.isSignificant(t) && !this.interferes(t, dst))
+                significant++;
+        }
+        if (significant >= colors)
+            return false;
+
+        // the copies of two address instructions form long chains, so the
+        // node with fewer neighbours goes into the other one
+        if (this.adjCount[src] > this.adjCount[dst]) {
+            final int t = src;
+            src = dst;
+            dst = t;
+        }
+
+        this.alias[src] = dst;
+        this.masks[dst] = masks;
+        this.refs[dst] += this.refs[src];
+        this.temps[dst] |= this.temps[src];
+        for (int j = 0; j < this.adjCount[src]; ++j) {
+            final int t = this.adj[src][j];
+            if (this.alias[t] >= 0)
+                continue;
+
+            // precolored neighbours already left their register in the mask
+            if (this.precolor[t] < 0) {
+                this.degree[t]--;
+                this.addEdge(t, dst);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the nodes from the graph one at a time, and returns them in the
+     * order they should be colored in.
+     */
+    private int[] simplify() {
+        final int n = this.code.vregCount();
+        final int[] stack = new int[n];
+        int size = 0;
+
+        final int[] worklist = new int[n];
+        final boolean[] queued = new boolean[n];
+        int pending = 0;
+        int left = 0;
+        for (int v = 0; v < n; ++v) {
+            if (this.isNode(v) && this.inGraph(v)) {
+                left++;
+                if (!this.isSignificant(v)) {
+                    worklist[pending++] = v;
+                    queued[v] = true;
+                }
+            }
+        }
+
+        while (left > 0) {
+            int v;
+            if (pending > 0) {
+                v = worklist[--pending];
+            } else {
+                // everything left has significant degree, so push the one
+                // that is cheapest to spill and hope for the best
+                v = -1;
+                double best = Double.MAX_VALUE;
+                for (int u = 0; u < n; ++u) {
+                    if (!this.isNode(u) || !this.inGraph(u))
+                        continue;
+                    final double cost = this.temps[u]
+                            ? Double.MAX_VALUE / 2
+                            : (double) this.refs[u] / (this.degree[u] + 1);
+                    if (v < 0 || cost < best) {
+                        v = u;
+                        best = cost;
+                    }
+                }
+            }
+
+            stack[size++] = v;
+            this.removed[v] = true;
+            left--;
+            for (int j = 0; j < this.adjCount[v]; ++j) {
+                final int t = this.adj[v][j];
+                if (!this.inGraph(t))
+                    continue;
+                this.degree[t]--;
+                if (!queued[t] && !this.isSignificant(t)) {
+                    worklist[pending++] = t;
+                    queued[t] = true;
+                }
+            }
+        }
+        return Arrays.copyOf(stack, size);
+    }
+
+    private int[] select(int[] stack) {
+        final VirtualCode code = this.code;
+        final int n = code.vregCount();
+        final int[] colors = new int[n];
+        Arrays.fill(colors, -1);
+        for (int v = 0; v < n; ++v)
+            if (this.precolor[v] >= 0)
+                colors[v] = this.precolor[v];
+
+        // registers that each node is moved to or from
+        final int[][] partners = new int[n][];
+        final int[] partnerCount = new int[n];
+        for (int i = 0; i < code.size(); ++i) {
+            if (!code.isMove(i))
+                continue;
+            final int dst = code.value(i, 0);
+            final int src = code.value(i, 1);
+            this.addPartner(partners, partnerCount, dst, src);
+            this.addPartner(partners, partnerCount, src, dst);
+        }
+
+        for (int s = stack.length; s-- > 0; ) {
+            final int v = stack[s];
+            int taken = this.masks[v] | ~this.allowed;
+            for (int j = 0; j < this.adjCount[v]; ++j) {
+                final int t = this.adj[v][j];
+                if (this.alias[t] < 0 && colors[t] >= 0)
+                    taken |= 1 << colors[t];
+            }
+
+            int pick = -1;
+            for (int j = 0; j < partnerCount[v] && pick < 0; ++j) {
+                final int p = partners[v][j];
+                final int c = code.fixedOf(p) >= 0 ? code.fixedOf(p) : colors[this.find(p)];
+                if (c >= 0 && (taken & 1 << c) == 0)
+                    pick = c;
+            }
+            for (int j = 0; j < this.registers.size() && pick < 0; ++j) {
+                final int c = this.registers.get(j).ordinal();
+                if ((taken & 1 << c) == 0)
+                    pick = c;
+            }
+
+            if (pick < 0 && this.temps[v])
+                throw new IllegalStateException("Ran out of registers for a reload");
+            colors[v] = pick;
+        }
+        return colors;
+    }
+
+    private void addPartner(int[][] partners, int[] partnerCount, int v, int p) {
+        if (!this.isNode(v))
+            return;
+
+        v = this.find(v);
+        if (partners[v] == null)
+            partners[v] = new int[2];
+        else if (partnerCount[v] == partners[v].length)
+            partners[v] = Arrays.copyOf(partners[v], partnerCount[v] * 2);
+        partners[v][partnerCount[v]++] = p;
+    }
+}
@@ -0,0 +1,84 @@
+package com.ymcmp.eralloc;
+
+/**
+ * An identity based map from objects to ints, so nothing is boxed and no
+ * hashCode or equals is ever called on the keys.
+ *
+ * Uses open addressing with linear probing. Entries cannot be removed.
+ */
+final class IdentityIntMap<K> {
+
+    private Object[] keys = new Object[16];
+    private int[] values = new int[16];
+    private int size;
+
+    private static int slot(Object key, int mask) {
+        // identityHashCode tends to have poor low bits, so spread them.
+        final int h = System.identityHashCode(key) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(Object key) {
+        final Object[] keys = this.keys;
+        final int mask = keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            final Object k = keys[i];
+            if (k == key)
+                return i;
+            if (k == null)
+                return ~i;
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean containsKey(K key) {
+        return this.find(key) >= 0;
+    }
+
+    public int getOrDefault(K key, int defaultValue) {
+        final int i = this.find(key);
+        return i < 0 ? defaultValue : this.values[i];
+    }
+
+    public void put(K key, int value) {
+        int i = this.find(key);
+        if (i >= 0) {
+            this.values[i] = value;
+            return;
+        }
+
+        if (2 * (this.size + 1) > this.keys.length) {
+            this.grow();
+            i = this.find(key);
+        }
+
+        i = ~i;
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.size++;
+    }
+
+    private void grow() {
+        final Object[] oldKeys = this.keys;
+        final int[] oldValues = this.values;
+
+        this.keys = new Object[oldKeys.length * 2];
+        this.values = new int[oldValues.length * 2];
+
+        final int mask = this.keys.length - 1;
+        for (int j = 0; j < oldKeys.length; ++j) {
+            final Object k = oldKeys[j];
+            if (k == null)
+                continue;
+
+            int i = slot(k, mask);
+            while (this.keys[i] != null)
+                i = (i + 1) & mask;
+            this.keys[i] = k;
+            this.values[i] = oldValues[j];
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+import com.ymcmp.eralloc.ast.*;
+
+/**
+ * Compiles successive versions of an expression that is being edited. Trees
+ * are immutable, so an edit builds a new path from the changed node up to
+ * the root and shares everything else with the previous version. Only the
+ * new nodes are labelled, the subtrees that were seen before keep their
+ * labels.
+ *
+ * The code of every node is remembered along with the state it was emitted
+ * in (which registers are free and in what order, what the others hold, the
+ * frame slots in use). When a node is emitted in the same state again, its
+ * code is spliced in as is. Otherwise it is emitted again, which goes down
+ * to its children only as far as their state changed too. A small edit
+ * usually only emits the path to the root, but the listing itself is still
+ * put together (and passed through the peephole pass) in full.
+ *
+ * The output is the same as {@link ERAlloc#compile(ExprAST, CodegenOptions)}.
+ * Only the ERSHOV strategy without simplification, common subexpressions,
+ * addressing modes and tiling is supported, since they all make the code of
+ * a node depend on more than its subtree. This class is not thread safe.
+ */
+public final class IncrementalCodegen {
+
+    // states a node remembers the code for
+    private static final int FRAGMENTS_PER_NODE = 4;
+
+    /**
+     * What is known about a subtree that was labelled before.
+     */
+    static final class Node {
+
+        public final int label;
+        public final boolean calls;
+        public final int size;
+
+        // the code for the last few states, replaced in turn
+        private State[] states;
+        private Fragment[] fragments;
+        private int next;
+
+        public Node(int label, boolean calls, int size) {
+            this.label = label;
+            this.calls = calls;
+            this.size = size;
+        }
+
+        public Fragment get(State state) {
+            if (this.states != null) {
+                for (int i = 0; i < this.states.length; ++i) {
+                    if (state.equals(this.states[i]))
+                        return this.fragments[i];
+                }
+            }
+            return null;
+        }
+
+        public void put(State state, Fragment fragment) {
+            if (this.states == null) {
+                this.states = new State[FRAGMENTS_PER_NODE];
+                this.fragments = new Fragment[FRAGMENTS_PER_NODE];
+            }
+
+            this.states[this.next] = state;
+            this.fragments[this.next] = fragment;
+            this.next = (this.next + 1) % FRAGMENTS_PER_NODE;
+        }
+
+        public void clear() {
+            this.states = null;
+            this.fragments = null;
+            this.next = 0;
+        }
+    }
+
+    /**
+     * See {@link EmitX86#state()}.
+     */
+    static final class State {
+
+        private final int[] codes;
+        private final String[] symbols;
+        private final int hash;
+
+        public State(int[] codes, String[] symbols) {
+            this.codes = codes;
+            this.symbols = symbols;
+            this.hash = Arrays.hashCode(codes) * 31 + Arrays.hashCode(symbols);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof State))
+                return false;
+
+            final State s = (State) obj;
+            return this.hash == s.hash
+                    && Arrays.equals(this.codes, s.codes)
+                    && Arrays.equals(this.symbols, s.symbols);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * The code of a node: the instructions of the node itself, which are the
+     * ranges of bounds in buffer, with the code of each child in between.
+     * Also what emitting it did to the frame and the spill counts.
+     */
+    static final class Fragment {
+
+        // set once everything is emitted
+        InstrBuffer buffer;
+
+        final int[] bounds;
+        final Fragment[] children;
+
+        // if nothing was spliced in, the code of the children is in between
+        // the ranges, so it is all of buffer from the first bound to the last
+        final boolean contiguous;
+
+        final int slotCount;
+        final int spillCount;
+        final int emergencySpillCount;
+
+        public Fragment(int[] bounds, Fragment[] children, boolean contiguous, int slotCount, int spillCount,
+                int emergencySpillCount) {
+            this.bounds = bounds;
+            this.children = children;
+            this.contiguous = contiguous;
+            this.slotCount = slotCount;
+            this.spillCount = spillCount;
+            this.emergencySpillCount = emergencySpillCount;
+        }
+    }
+
+    /**
+     * A node that is being emitted. It is done once the work it scheduled
+     * (which is above depth) is done.
+     */
+    private static final class Builder {
+
+        public final Node node;
+        public final State state;
+        public final int depth;
+
+        public final int slotCount;
+        public final int spillCount;
+        public final int emergencySpillCount;
+
+        private int[] bounds = new int[8];
+        private int size;
+        private final List<Fragment> children = new ArrayList<>();
+        private boolean contiguous = true;
+
+        public Builder(Node node, State state, int depth, int start, EmitX86 emitter) {
+            this.node = node;
+            this.state = state;
+            this.depth = depth;
+            this.slotCount = emitter.slotCount;
+            this.spillCount = emitter.spillCount;
+            this.emergencySpillCount = emitter.emergencySpillCount;
+            this.bounds[this.size++] = start;
+        }
+
+        private void bound(int index) {
+            if (this.size == this.bounds.length)
+                this.bounds = Arrays.copyOf(this.bounds, this.size * 2);
+            this.bounds[this.size++] = index;
+        }
+
+        /**
+         * Adds the code of a child that was just emitted between start and
+         * end, or spliced in at start (which is also end).
+         */
+        public void add(Fragment child, int start, int end, boolean spliced) {
+            this.bound(start);
+            this.children.add(child);
+            this.bound(end);
+            this.contiguous &= !spliced && child.contiguous;
+        }
+
+        public Fragment build(int end, EmitX86 emitter) {
+            this.bound(end);
+            return new Fragment(Arrays.copyOf(this.bounds, this.size), this.children.toArray(new Fragment[0]),
+                    this.contiguous, emitter.slotCount, emitter.spillCount - this.spillCount,
+                    emitter.emergencySpillCount - this.emergencySpillCount);
+        }
+    }
+
+    private final CodegenOptions opts;
+
+    private final Map<ExprAST, Node> nodes = new IdentityHashMap<>();
+
+    // the instructions of the fragments that were recorded since the last
+    // time they were all dropped, and the sizes of the last expression and
+    // its listing
+    private long retained;
+    private int lastNodes;
+    private int lastSize;
+
+    // only used while emitting
+    private final Deque<Builder> open = new ArrayDeque<>();
+    private final List<Fragment> recorded = new ArrayList<>();
+
+    public IncrementalCodegen() {
+        this(CodegenOptions.DEFAULT);
+    }
+
+    public IncrementalCodegen(CodegenOptions opts) {
+        if (opts.getStrategy() != Strategy.ERSHOV)
+            throw new IllegalArgumentException("Unsupported strategy " + opts.getStrategy());
+        if (opts.isSimplification() || opts.isCommonSubexpressions() || opts.isAddressingModes() || opts.isTiling())
+            throw new IllegalArgumentException("Options rewrite the tree or fold nodes into their parents");
+
+        this.opts = opts;
+    }
+
+    public CodegenOptions getOptions() {
+        return this.opts;
+    }
+
+    public List<String> codegen(ExprAST e) {
+        return this.compile(e).getInstrs().toStrings();
+    }
+
+    /**
+     * Compiles the expression, reusing whatever it shares with the ones
+     * compiled before. The statistics only count the nodes that were
+     * labelled.
+     */
+    public CodegenResult compile(ExprAST e) {
+        this.trim(e);
+
+        final CodegenEvent event = new CodegenEvent();
+        event.begin();
+
+        final long start = System.nanoTime();
+        final ErshovLabel labels = new ErshovLabel(this.opts);
+        this.learn(labels, labels.label(e, this.nodes));
+        final long labelled = System.nanoTime();
+
+        final EmitX86 emitter = ERAlloc.emitter(labels, this.opts);
+        emitter.incremental = this;
+        final CodegenResult result = ERAlloc.emit(emitter, this.opts, event, start, labelled);
+
+        final Node root = this.nodes.get(e);
+        this.lastNodes = root == null ? 1 : root.size;
+        this.lastSize = result.getInstrs().size();
+        return result;
+    }
+
+    /**
+     * Forgets everything about the expressions compiled so far.
+     */
+    public void clear() {
+        this.nodes.clear();
+        this.retained = 0;
+        this.lastNodes = 0;
+    }
+
+    /**
+     * Remembers the labels of the nodes that were numbered from first on
+     * (the ones that are not opaque).
+     */
+    private void learn(ErshovLabel labels, int first) {
+        // children are numbered after their parents, so going backwards
+        // sees every node after its children.
+        final int count = labels.size();
+        final int[] sizes = new int[count - first];
+        for (int id = count; id-- > first; ) {
+            final int kind = labels.kindOf(id);
+            final ExprAST e = labels.exprOf(id);
+            if (FlatExpr.isLeaf(kind)) {
+                sizes[id - first] = 1;
+                continue;
+            }
+            if (kind == ErshovLabel.OPAQUE) {
+                sizes[id - first] = labels.nodeOf(id).size;
+                continue;
+            }
+
+            int size = 1;
+            final int end = labels.nextSibling(id);
+            for (int child = labels.firstChild(id); child < end; child = labels.nextSibling(child))
+                size += sizes[child - first];
+            sizes[id - first] = size;
+
+            // the root of an expansion is already known
+            Node node = id == first ? this.nodes.get(e) : null;
+            if (node == null) {
+                node = new Node(labels.labelOf(id), labels.containsCall(id), size);
+                this.nodes.put(e, node);
+            }
+            labels.setNode(id, node);
+        }
+    }
+
+    /**
+     * Forgets the nodes that are no longer part of the expression once there
+     * are too many of them, and drops all of the code once it takes up too
+     * much space. Each of them takes time proportional to the expression, but
+     * is only done after enough edits to make up for it.
+     */
+    private void trim(ExprAST root) {
+        if (this.retained > 4L * this.lastSize + 4096) {
+            for (final Node node : this.nodes.values())
+                node.clear();
+            this.retained = 0;
+        }
+
+        if (this.nodes.size() <= 2L * this.lastNodes + 4096)
+            return;
+
+        // the nodes that are new are not known yet, but what is below them
+        // might be
+        final Map<ExprAST, Node> live = new IdentityHashMap<>();
+        final ExprStack work = new ExprStack();
+        work.push(root, -1);
+        while (!work.isEmpty()) {
+            final ExprAST e = work.pop();
+            final Node node = this.nodes.get(e);
+            if (node == null || live.put(e, node) == null)
+                work.pushChildren(e);
+        }
+
+        this.nodes.clear();
+        this.nodes.putAll(live);
+    }
+
+    // the emitter calls these while it emits:
+
+    void begin(EmitX86 emitter) {
+        this.open.push(new Builder(null, null, -1, 0, emitter));
+    }
+
+    /**
+     * Called when the node is about to be emitted at the depth (of the work
+     * stack). Returns -1 if its code was spliced in, otherwise the number of
+     * the node to emit in its place.
+     */
+    int enter(EmitX86 emitter, int id, int depth) {
+        final ErshovLabel labels = emitter.labels;
+        final int kind = labels.kindOf(id);
+        if (FlatExpr.isLeaf(kind))
+            return id; // cheaper to emit again
+
+        final Node node = labels.nodeOf(id);
+        final State state = emitter.state();
+        final Fragment fragment = node.get(state);
+        if (fragment != null) {
+            final int index = emitter.instrs.size();
+            this.open.peek().add(fragment, index, index, true);
+            emitter.slotCount = Math.max(emitter.slotCount, fragment.slotCount);
+            emitter.spillCount += fragment.spillCount;
+            emitter.emergencySpillCount += fragment.emergencySpillCount;
+            return -1;
+        }
+
+        if (kind == ErshovLabel.OPAQUE) {
+            final int expanded = labels.label(labels.exprOf(id), this.nodes);
+            this.learn(labels, expanded);
+            id = expanded;
+        }
+
+        this.open.push(new Builder(node, state, depth, emitter.instrs.size(), emitter));
+
+        // the slots in use are part of the state, so the frame the code
+        // needs is counted from there
+        emitter.slotCount = emitter.slots.length();
+        return id;
+    }
+
+    /**
+     * Called after each step of the emitter, with the depth of the work
+     * stack.
+     */
+    void leave(EmitX86 emitter, int depth) {
+        while (this.open.peek().depth >= depth) {
+            final Builder builder = this.open.pop();
+            final int end = emitter.instrs.size();
+            final Fragment fragment = builder.build(end, emitter);
+            builder.node.put(builder.state, fragment);
+            this.recorded.add(fragment);
+
+            emitter.slotCount = Math.max(emitter.slotCount, builder.slotCount);
+            this.open.peek().add(fragment, builder.bounds[0], end, false);
+        }
+    }
+
+    /**
+     * Called once every node is emitted, and puts the code together.
+     */
+    void finish(EmitX86 emitter) {
+        final InstrBuffer instrs = emitter.instrs;
+        final Fragment root = this.open.pop().build(instrs.size(), emitter);
+
+        // the fragments point into a copy, since the instructions will be
+        // changed after this.
+        final InstrBuffer buffer = new InstrBuffer(instrs.getTarget());
+        buffer.append(instrs, 0, instrs.size());
+        for (final Fragment fragment : this.recorded)
+            fragment.buffer = buffer;
+        root.buffer = buffer;
+        this.recorded.clear();
+        this.retained += buffer.size();
+
+        instrs.clear();
+        flatten(root, instrs);
+    }
+
+    private static void flatten(Fragment root, InstrBuffer out) {
+        // a stack of fragments and the index of the child to do next
+        Fragment[] fragments = new Fragment[16];
+        int[] next = new int[16];
+        int depth = 0;
+        fragments[depth++] = root;
+
+        while (depth > 0) {
+            final Fragment fragment = fragments[depth - 1];
+            if (fragment.contiguous) {
+                out.append(fragment.buffer, fragment.bounds[0], fragment.bounds[fragment.bounds.length - 1]);
+                depth--;
+                continue;
+            }
+
+            final int i = next[depth - 1]++;
+            out.append(fragment.buffer, fragment.bounds[2 * i], fragment.bounds[2 * i + 1]);
+            if (i == fragment.children.length) {
+                next[--depth] = 0;
+                continue;
+            }
+
+            if (depth == fragments.length) {
+                fragments = Arrays.copyOf(fragments, depth * 2);
+                next = Arrays.copyOf(next, depth * 2);
+            }
+            fragments[depth++] = fragment.children[i];
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.ymcmp.eralloc;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A compact list of instructions. Each instruction is an opcode and up to
+ * three operands packed into a flat int array, and the NASM text is only
+ * produced when asked for.
+ *
+ * Instructions are appended by calling {@link #begin(Opcode)} followed by one
+ * call per operand, for example
+ *
+ * <pre>
+ * buf.begin(Opcode.MOV).mem(Register.EBP, -4).reg(Register.EAX);
+ * </pre>
+ *
+ * Operands are one of the following kinds:
+ * <ul>
+ * <li>{@link #REG}: a register (see {@link #reg(int, int)})
+ * <li>{@link #IMM}: an immediate (see {@link #value(int, int)})
+ * <li>{@link #SYM}: the address of a symbol (see {@link #symbol(int, int)})
+ * <li>{@link #MEM}: a memory reference of the form
+ *     [base + index * scale + disp]. Absent registers are {@link #NO_REG}.
+ * </ul>
+ *
+ * Registers are rendered with the names of the target's word size, so the
+ * same register number is eax on x86 and rax on x86-64.
+ */
+public final class InstrBuffer {
+
+    public static final int NONE = 0;
+    public static final int REG = 1;
+    public static final int IMM = 2;
+    public static final int SYM = 3;
+    public static final int MEM = 4;
+
+    public static final int NO_REG = -1;
+
+    public static final int MAX_OPERANDS = 3;
+
+    // The instructions are packed back to back in data, and starts holds the
+    // index where each one begins. An instruction is a header (the opcode in
+    // the low byte and the operand count in the next byte) followed by the
+    // operands, which take up as little space as their kind allows:
+    //
+    // REG: kind | reg << 8
+    // IMM: kind, value
+    // SYM: kind | symbol << 8, 0
+    // MEM: kind | log2(scale) << 4, base, index, disp
+    private int[] data = new int[256];
+    private int[] starts = new int[64];
+    private int end;
+    private int size;
+
+    private final List<String> symbols = new ArrayList<>();
+    private final Map<String, Integer> symbolIds = new HashMap<>();
+
+    private final Target target;
+
+    public InstrBuffer() {
+        this(Target.X86);
+    }
+
+    public InstrBuffer(Target target) {
+        this.target = target;
+    }
+
+    public Target getTarget() {
+        return this.target;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public void clear() {
+        this.size = 0;
+        this.end = 0;
+    }
+
+    private void reserve(int n) {
+        if (this.end + n > this.data.length)
+            this.data = Arrays.copyOf(this.data, Math.max(this.end + n, this.data.length * 2));
+    }
+
+    public InstrBuffer begin(Opcode op) {
+        if (this.size == this.starts.length)
+            this.starts = Arrays.copyOf(this.starts, this.size * 2);
+
+        this.reserve(1);
+        this.starts[this.size++] = this.end;
+        this.data[this.end++] = op.ordinal();
+        return this;
+    }
+
+    private void addOperand() {
+        final int header = this.starts[this.size - 1];
+        final int count = (this.data[header] >>> 8) & 0xFF;
+        if (count == MAX_OPERANDS)
+            throw new IllegalStateException("Too many operands");
+
+        this.data[header] += 1 << 8;
+    }
+
+    public InstrBuffer reg(Register r) {
+        return this.reg(r.ordinal());
+    }
+
+    public InstrBuffer reg(int r) {
+        this.addOperand();
+        this.reserve(1);
+        this.data[this.end++] = REG | r << 8;
+        return this;
+    }
+
+    public InstrBuffer imm(int value) {
+        this.addOperand();
+        this.reserve(2);
+        this.data[this.end++] = IMM;
+        this.data[this.end++] = value;
+        return this;
+    }
+
+    public InstrBuffer sym(String name) {
+        this.addOperand();
+        this.reserve(2);
+        this.data[this.end++] = SYM | this.intern(name) << 8;
+        this.data[this.end++] = 0;
+        return this;
+    }
+
+    public InstrBuffer mem(Register base, int disp) {
+        return this.mem(base.ordinal(), NO_REG, 1, disp);
+    }
+
+    public InstrBuffer mem(int base, int index, int scale, int disp) {
+        final int log2;
+        switch (scale) {
+        case 1: log2 = 0; break;
+        case 2: log2 = 1; break;
+        case 4: log2 = 2; break;
+        case 8: log2 = 3; break;
+        default:
+            throw new IllegalArgumentException("Illegal scale " + scale);
+        }
+
+        this.addOperand();
+        this.reserve(4);
+        this.data[this.end++] = MEM | log2 << 4;
+        this.data[this.end++] = base;
+        this.data[this.end++] = index;
+        this.data[this.end++] = disp;
+        return this;
+    }
+
+    /**
+     * Appends a copy of the instructions of other from start (inclusive) to
+     * end (exclusive).
+     */
+    public void append(InstrBuffer other, int start, int end) {
+        Objects.checkFromToIndex(start, end, other.size);
+        if (start == end)
+            return;
+
+        final int from = other.starts[start];
+        final int to = end < other.size ? other.starts[end] : other.end;
+        final int count = end - start;
+        if (this.size + count > this.starts.length)
+            this.starts = Arrays.copyOf(this.starts, Math.max(this.size + count, this.starts.length * 2));
+        this.reserve(to - from);
+        System.arraycopy(other.data, from, this.data, this.end, to - from);
+
+        final int shift = this.end - from;
+        for (int i = start; i < end; ++i)
+            this.starts[this.size++] = other.starts[i] + shift;
+        this.end += to - from;
+
+        // symbols are numbered per buffer
+        if (other == this || other.symbols.isEmpty())
+            return;
+
+        final int[] ids = new int[other.symbols.size()];
+        Arrays.fill(ids, -1);
+        for (int i = this.size - count; i < this.size; ++i) {
+            int offset = this.starts[i];
+            final int operands = (this.data[offset++] >>> 8) & 0xFF;
+            for (int k = 0; k < operands; ++k) {
+                final int info = this.data[offset];
+                if ((info & 0xF) == SYM) {
+                    final int id = info >>> 8;
+                    if (ids[id] < 0)
+                        ids[id] = this.intern(other.symbols.get(id));
+                    this.data[offset] = SYM | ids[id] << 8;
+                }
+                offset += operandSize(info);
+            }
+        }
+    }
+
+    private int intern(String name) {
+        final Integer id = this.symbolIds.get(name);
+        if (id != null)
+            return id;
+
+        final int next = this.symbols.size();
+        this.symbols.add(name);
+        this.symbolIds.put(name, next);
+        return next;
+    }
+
+    private static int operandSize(int info) {
+        switch (info & 0xF) {
+        case REG:   return 1;
+        case IMM:   return 2;
+        case SYM:   return 2;
+        case MEM:   return 4;
+        default:
+            throw new AssertionError("Unknown operand kind");
+        }
+    }
+
+    private int operand(int i, int k) {
+        Objects.checkIndex(k, this.operandCount(i));
+
+        int offset = this.starts[i] + 1;
+        while (k-- > 0)
+            offset += operandSize(this.data[offset]);
+        return offset;
+    }
+
+    /**
+     * Replaces the register of a REG operand.
+     */
+    public void setReg(int i, int k, int r) {
+        final int offset = this.operand(i, k);
+        if ((this.data[offset] & 0xF) != REG)
+            throw new IllegalArgumentException("Operand " + k + " is not a register");
+        this.data[offset] = REG | r << 8;
+    }
+
+    /**
+     * Replaces the value of an IMM operand.
+     */
+    public void setValue(int i, int k, int value) {
+        final int offset = this.operand(i, k);
+        if ((this.data[offset] & 0xF) != IMM)
+            throw new IllegalArgumentException("Operand " + k + " is not an immediate");
+        this.data[offset + 1] = value;
+    }
+
+    /**
+     * Returns true if operand k of instruction i and operand l of
+     * instruction j are exactly the same.
+     */
+    public boolean operandEquals(int i, int k, int j, int l) {
+        final int p = this.operand(i, k);
+        final int q = this.operand(j, l);
+        final int size = operandSize(this.data[p]);
+        return size == operandSize(this.data[q])
+                && Arrays.equals(this.data, p, p + size, this.data, q, q + size);
+    }
+
+    /**
+     * Removes every instruction whose index is set, keeping the rest in
+     * order.
+     */
+    public void removeAll(BitSet removed) {
+        int end = 0;
+        int size = 0;
+        for (int i = 0; i < this.size; ++i) {
+            if (removed.get(i))
+                continue;
+
+            final int start = this.starts[i];
+            final int stop = i + 1 < this.size ? this.starts[i + 1] : this.end;
+            System.arraycopy(this.data, start, this.data, end, stop - start);
+            this.starts[size++] = end;
+            end += stop - start;
+        }
+
+        this.size = size;
+        this.end = end;
+    }
+
+    public Opcode opcode(int i) {
+        Objects.checkIndex(i, this.size);
+        return Opcode.of(this.data[this.starts[i]] & 0xFF);
+    }
+
+    public int operandCount(int i) {
+        Objects.checkIndex(i, this.size);
+        return (this.data[this.starts[i]] >>> 8) & 0xFF;
+    }
+
+    public int kind(int i, int k) {
+        return this.data[this.operand(i, k)] & 0xF;
+    }
+
+    /**
+     * Returns the register of a REG operand or the base register of a MEM
+     * operand.
+     */
+    public int reg(int i, int k) {
+        final int offset = this.operand(i, k);
+        final int info = this.data[offset];
+        switch (info & 0xF) {
+        case REG:   return info >> 8;
+        case MEM:   return this.data[offset + 1];
+        default:    return NO_REG;
+        }
+    }
+
+    public int index(int i, int k) {
+        final int offset = this.operand(i, k);
+        return (this.data[offset] & 0xF) == MEM ? this.data[offset + 2] : NO_REG;
+    }
+
+    public int scale(int i, int k) {
+        return 1 << ((this.data[this.operand(i, k)] >>> 4) & 0x3);
+    }
+
+    /**
+     * Returns the value of an IMM operand or the displacement of a MEM
+     * operand.
+     */
+    public int value(int i, int k) {
+        final int offset = this.operand(i, k);
+        switch (this.data[offset] & 0xF) {
+        case IMM:   return this.data[offset + 1];
+        case MEM:   return this.data[offset + 3];
+        default:    return 0;
+        }
+    }
+
+    /**
+     * Returns the symbol of a SYM operand, null if there is none.
+     */
+    public String symbol(int i, int k) {
+        final int info = this.data[this.operand(i, k)];
+        return (info & 0xF) == SYM ? this.symbols.get(info >>> 8) : null;
+    }
+
+    public String toString(int i) {
+        final StringBuilder sb = new StringBuilder();
+        this.render(i, sb);
+        return sb.toString();
+    }
+
+    public List<String> toStrings() {
+        final List<String> list = new ArrayList<>(this.size);
+        // most instructions render to fewer than 32 characters
+        final StringBuilder sb = new StringBuilder(this.size * 32);
+        for (int i = 0; i < this.size; ++i) {
+            sb.setLength(0);
+            this.render(i, sb);
+            list.add(sb.toString());
+        }
+        return list;
+    }
+
+    /**
+     * Writes every instruction to out, each one followed by a newline.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        // most instructions render to fewer than 32 characters
+        final StringBuilder sb = new StringBuilder(this.size * 32);
+        for (int i = 0; i < this.size; ++i) {
+            this.render(i, sb);
+            sb.append('\n');
+        }
+        out.append(sb);
+    }
+
+    /**
+     * Appends the NASM syntax of the instruction.
+     */
+    public void render(int i, StringBuilder sb) {
+        final Opcode op = this.opcode(i);
+        sb.append(op);
+
+        final int count = this.operandCount(i);
+        final boolean sized = this.needsSize(i);
+        for (int k = 0; k < count; ++k) {
+            sb.append(k == 0 ? " " : ", ");
+
+            switch (this.kind(i, k)) {
+            case REG:
+                if (op.isShift() && k == 1)
+                    // the shift amount is always in cl
+                    sb.append(Register.of(this.reg(i, k)).lowByteName());
+                else
+                    this.renderRegister(this.reg(i, k), sb);
+                break;
+            case IMM:
+                sb.append(this.value(i, k));
+                break;
+            case SYM:
+                sb.append(this.symbol(i, k));
+                break;
+            case MEM:
+                if (sized)
+                    sb.append(this.target == Target.X64 ? "qword " : "dword ");
+                this.renderMemory(i, k, sb);
+                break;
+            default:
+                throw new AssertionError("Unknown operand kind");
+            }
+        }
+    }
+
+    /**
+     * Returns true if the size of the memory operand has to be spelled out,
+     * which is when no register says what it is (the shift amount in cl does
+     * not count).
+     */
+    private boolean needsSize(int i) {
+        final Opcode op = this.opcode(i);
+        if (op == Opcode.LEA)
+            return false;
+
+        boolean memory = false;
+        final int count = this.operandCount(i);
+        for (int k = 0; k < count; ++k) {
+            switch (this.kind(i, k)) {
+            case REG:
+                if (!op.isShift() || k == 0)
+                    return false;
+                break;
+            case MEM:
+                memory = true;
+                break;
+            }
+        }
+        return memory;
+    }
+
+    private void renderMemory(int i, int k, StringBuilder sb) {
+        sb.append('[');
+
+        boolean first = true;
+        final int base = this.reg(i, k);
+        if (base != NO_REG) {
+            this.renderRegister(base, sb);
+            first = false;
+        }
+
+        final int index = this.index(i, k);
+        if (index != NO_REG) {
+            if (!first)
+                sb.append('+');
+            this.renderRegister(index, sb);
+            final int scale = this.scale(i, k);
+            if (scale != 1)
+                sb.append('*').append(scale);
+            first = false;
+        }
+
+        final int disp = this.value(i, k);
+        if (first)
+            sb.append(disp);
+        else if (disp > 0)
+            sb.append('+').append(disp);
+        else if (disp < 0)
+            sb.append('-').append(-(long) disp);
+
+        sb.append(']');
+    }
+
+    private void renderRegister(int r, StringBuilder sb) {
+        final Register reg = Register.of(r);
+        sb.append(this.target == Target.X64 ? reg.qwordName() : reg.toString());
+    }
+}
@@ -0,0 +1,89 @@
+package com.ymcmp.eralloc;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies (in nanoseconds) in log-linear buckets: every power of
+ * two is split into 8 buckets, so a quantile is off by at most 12.5%.
+ * Recording is lock-free and can happen from any thread.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // values below SUB_COUNT get a bucket each, then 8 per power of two
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_COUNT)
+            return (int) Math.max(nanos, 0);
+
+        final int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        final int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+
+        final int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        final long sub = bucket % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    public void record(long nanos) {
+        this.counts.incrementAndGet(bucketOf(nanos));
+        this.total.incrementAndGet();
+        this.max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long count() {
+        return this.total.get();
+    }
+
+    public long max() {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the latency that the given fraction (between 0 and 1) of the
+     * recorded ones do not exceed, or 0 if nothing was recorded.
+     */
+    public long quantile(double q) {
+        final long total = this.total.get();
+        if (total == 0)
+            return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length(); ++i) {
+            seen += this.counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), this.max.get());
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Writes the count followed by the usual quantiles in microseconds, one
+     * per line.
+     */
+    public void describeTo(StringBuilder sb) {
+        sb.append("requests ").append(this.count()).append('\n');
+        describe(sb, "p50", this.quantile(0.5));
+        describe(sb, "p90", this.quantile(0.9));
+        describe(sb, "p99", this.quantile(0.99));
+        describe(sb, "p99.9", this.quantile(0.999));
+        describe(sb, "max", this.max());
+    }
+
+    private static void describe(StringBuilder sb, String name, long nanos) {
+        sb.append(name).append(' ').append(String.format(Locale.ROOT, "%.1f", nanos / 1e3)).append(" us\n");
+    }
+}
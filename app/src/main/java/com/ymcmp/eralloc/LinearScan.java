@@ -0,0 +1,175 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+
+/**
+ * Assigns registers to the live intervals of {@link VirtualCode} in order of
+ * where they start (Poletto and Sarkar). When no register is left, the
+ * interval that ends last is spilled.
+ *
+ * Fixed virtual registers are not allocated, they instead keep the other
+ * intervals out of their register while they are live. A move between two
+ * virtual registers hints that both sides should get the same register so
+ * the move can be dropped.
+ */
+final class LinearScan implements RegisterAllocator {
+
+    private final List<Register> registers;
+
+    public LinearScan(List<Register> registers) {
+        this.registers = registers;
+    }
+
+    @Override
+    public int[] allocate(VirtualCode code, BitSet spilled) {
+        final int n = code.vregCount();
+        final int[] colors = new int[n];
+        Arrays.fill(colors, -1);
+
+        final long[][] fixed = this.fixedRanges(code, colors);
+        final int[] hintVreg = new int[n];
+        final int[] hintReg = new int[n];
+        this.computeHints(code, hintVreg, hintReg);
+
+        // start in the upper half, vreg in the lower half
+        int count = 0;
+        final long[] order = new long[n];
+        for (int v = 0; v < n; ++v)
+            if (code.fixedOf(v) < 0 && code.startOf(v) != Integer.MAX_VALUE)
+                order[count++] = (long) code.startOf(v) << 32 | v;
+        Arrays.sort(order, 0, count);
+
+        final int[] active = new int[this.registers.size()];
+        int activeCount = 0;
+        final boolean[] taken = new boolean[Register.values().length];
+
+        for (int j = 0; j < count; ++j) {
+            final int v = (int) order[j];
+            final int start = code.startOf(v);
+            final int end = code.endOf(v);
+
+            // free up the registers of the intervals that are over
+            for (int a = activeCount; a-- > 0; ) {
+                if (code.endOf(active[a]) < start) {
+                    taken[colors[active[a]]] = false;
+                    active[a] = active[--activeCount];
+                }
+            }
+
+            int pick = -1;
+            if (hintVreg[v] >= 0 && colors[hintVreg[v]] >= 0
+                    && this.isAvailable(colors[hintVreg[v]], taken, fixed, start, end))
+                pick = colors[hintVreg[v]];
+            else if (hintReg[v] >= 0 && this.isAvailable(hintReg[v], taken, fixed, start, end))
+                pick = hintReg[v];
+            else
+                for (final Register r : this.registers)
+                    if (this.isAvailable(r.ordinal(), taken, fixed, start, end)) {
+                        pick = r.ordinal();
+                        break;
+                    }
+
+            if (pick >= 0) {
+                colors[v] = pick;
+                taken[pick] = true;
+                active[activeCount++] = v;
+                continue;
+            }
+
+            // spill whichever ends last, as long as its register could hold
+            // this interval. The temporaries of earlier spills have to stay
+            // in registers.
+            int victim = -1;
+            for (int a = 0; a < activeCount; ++a) {
+                final int u = active[a];
+                if (!code.isTemp(u) && !isBlocked(fixed[colors[u]], start, end)
+                        && (victim < 0 || code.endOf(u) > code.endOf(active[victim])))
+                    victim = a;
+            }
+
+            if (victim >= 0 && (code.isTemp(v) || code.endOf(active[victim]) > end)) {
+                final int u = active[victim];
+                colors[v] = colors[u];
+                colors[u] = -1;
+                spilled.set(u);
+                active[victim] = v;
+            } else if (!code.isTemp(v)) {
+                spilled.set(v);
+            } else {
+                throw new IllegalStateException("Ran out of registers at instruction " + start / 2);
+            }
+        }
+
+        return colors;
+    }
+
+    private boolean isAvailable(int reg, boolean[] taken, long[][] fixed, int start, int end) {
+        return !taken[reg] && fixed[reg] != null && !isBlocked(fixed[reg], start, end);
+    }
+
+    /**
+     * Returns the ranges the register is fixed in (start in the upper half,
+     * end in the lower half, in order) for the allocatable registers, null
+     * for the others. Also colors the fixed virtual registers.
+     */
+    private long[][] fixedRanges(VirtualCode code, int[] colors) {
+        final int[] counts = new int[Register.values().length];
+        for (int v = 0; v < code.vregCount(); ++v) {
+            if (code.fixedOf(v) >= 0) {
+                colors[v] = code.fixedOf(v);
+                if (code.startOf(v) != Integer.MAX_VALUE)
+                    counts[code.fixedOf(v)]++;
+            }
+        }
+
+        final long[][] fixed = new long[counts.length][];
+        for (final Register r : this.registers)
+            fixed[r.ordinal()] = new long[counts[r.ordinal()]];
+
+        Arrays.fill(counts, 0);
+        for (int v = 0; v < code.vregCount(); ++v) {
+            final int r = code.fixedOf(v);
+            if (r >= 0 && fixed[r] != null && code.startOf(v) != Integer.MAX_VALUE)
+                fixed[r][counts[r]++] = (long) code.startOf(v) << 32 | code.endOf(v);
+        }
+        for (final long[] ranges : fixed)
+            if (ranges != null)
+                Arrays.sort(ranges);
+        return fixed;
+    }
+
+    private static boolean isBlocked(long[] ranges, int start, int end) {
+        // the ranges of the same register never overlap, so they are also
+        // in order of where they end
+        int lo = 0;
+        int hi = ranges.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if ((int) ranges[mid] < start)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo < ranges.length && (int) (ranges[lo] >>> 32) <= end;
+    }
+
+    private void computeHints(VirtualCode code, int[] hintVreg, int[] hintReg) {
+        Arrays.fill(hintVreg, -1);
+        Arrays.fill(hintReg, -1);
+        for (int i = 0; i < code.size(); ++i) {
+            if (!code.isMove(i))
+                continue;
+
+            final int dst = code.value(i, 0);
+            final int src = code.value(i, 1);
+            final int dstReg = code.fixedOf(dst);
+            final int srcReg = code.fixedOf(src);
+            if (dstReg >= 0 && srcReg < 0 && hintReg[src] < 0)
+                hintReg[src] = dstReg;
+            else if (srcReg >= 0 && dstReg < 0 && hintReg[dst] < 0)
+                hintReg[dst] = srcReg;
+            else if (srcReg < 0 && dstReg < 0)
+                hintVreg[dst] = src;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.ymcmp.eralloc;
+
+/**
+ * The magic number and shift that turn a signed 32-bit division by a
+ * constant into a multiplication, computed as in Hacker's Delight (figure
+ * 10-1).
+ */
+final class MagicDivisor {
+
+    public final int multiplier;
+    public final int shift;
+
+    private MagicDivisor(int multiplier, int shift) {
+        this.multiplier = multiplier;
+        this.shift = shift;
+    }
+
+    /**
+     * Only valid for divisors other than -1, 0 and 1.
+     */
+    public static MagicDivisor of(int d) {
+        if (d >= -1 && d <= 1)
+            throw new IllegalArgumentException("No magic number for " + d);
+
+        // everything is unsigned 32-bit, kept in longs
+        final long two31 = 0x80000000L;
+        final long ad = Math.abs((long) d);
+        final long t = two31 + (d >>> 31);
+        final long anc = t - 1 - t % ad;
+
+        int p = 31;
+        long q1 = two31 / anc;
+        long r1 = two31 - q1 * anc;
+        long q2 = two31 / ad;
+        long r2 = two31 - q2 * ad;
+        long delta;
+        do {
+            p++;
+            q1 = 2 * q1;
+            r1 = 2 * r1;
+            if (r1 >= anc) {
+                q1++;
+                r1 -= anc;
+            }
+            q2 = 2 * q2;
+            r2 = 2 * r2;
+            if (r2 >= ad) {
+                q2++;
+                r2 -= ad;
+            }
+            delta = ad - r2;
+        } while (q1 < delta || q1 == delta && r1 == 0);
+
+        final int m = (int) (q2 + 1);
+        return new MagicDivisor(d < 0 ? -m : m, p - 32);
+    }
+}
@@ -0,0 +1,33 @@
+package com.ymcmp.eralloc;
+
+/**
+ * The opcodes that end up in an {@link InstrBuffer}.
+ */
+public enum Opcode {
+
+    // not an instruction, but it is emitted inline with them
+    EXTERN,
+
+    MOV, LEA, XCHG,
+    ADD, SUB, IMUL, AND,
+    CDQ, CQO, IDIV,
+    SHL, SAR, SHR,
+    PUSH, POP, CALL;
+
+    private static final Opcode[] VALUES = values();
+
+    private final String text = this.name().toLowerCase();
+
+    public static Opcode of(int id) {
+        return VALUES[id];
+    }
+
+    public boolean isShift() {
+        return this == SHL || this == SAR || this == SHR;
+    }
+
+    @Override
+    public String toString() {
+        return this.text;
+    }
+}
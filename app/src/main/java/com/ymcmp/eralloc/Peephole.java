@@ -0,0 +1,342 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+
+import static com.ymcmp.eralloc.InstrBuffer.*;
+
+/**
+ * Cleans up redundant sequences left behind by the emitter. The code is
+ * straight-line, so each rule only needs to look at a small window of
+ * instructions following the one it matches:
+ *
+ * <ul>
+ * <li>{@link Rule#XCHG_PAIR}: two back to back xchg of the same registers
+ *     cancel out.
+ * <li>{@link Rule#XCHG_OF_MOVES}: mov a, x then mov b, y then xchg a, b is
+ *     the same as mov b, x then mov a, y.
+ * <li>{@link Rule#REDUNDANT_RELOAD}: mov [m], r followed by mov r, [m] when
+ *     neither r nor the memory changed in between.
+ * <li>{@link Rule#COPY_PROPAGATION}: mov a, x followed by mov b, a becomes
+ *     mov b, x if a is overwritten before it is read again.
+ * <li>{@link Rule#SELF_MOVE}: mov r, r does nothing.
+ * </ul>
+ *
+ * Each instance counts how many times every rule was applied.
+ */
+public final class Peephole {
+
+    public enum Rule {
+        XCHG_PAIR, XCHG_OF_MOVES, REDUNDANT_RELOAD, COPY_PROPAGATION, SELF_MOVE;
+    }
+
+    // how far ahead a rule looks before giving up
+    private static final int WINDOW = 8;
+
+    private static final int ALL_REGS = 0xFFFF;
+
+    private final long[] hits = new long[Rule.values().length];
+
+    private InstrBuffer buf;
+    private final BitSet removed = new BitSet();
+
+    public long hits(Rule rule) {
+        return this.hits[rule.ordinal()];
+    }
+
+    public long totalHits() {
+        long total = 0;
+        for (final long n : this.hits)
+            total += n;
+        return total;
+    }
+
+    long[] copyHits() {
+        return this.hits.clone();
+    }
+
+    /**
+     * Rewrites the instructions in place until none of the rules apply.
+     */
+    public void optimize(InstrBuffer buf) {
+        this.buf = buf;
+        try {
+            boolean changed;
+            do {
+                changed = this.pass();
+                buf.removeAll(this.removed);
+                this.removed.clear();
+            } while (changed);
+        } finally {
+            this.buf = null;
+        }
+    }
+
+    private void hit(Rule rule) {
+        this.hits[rule.ordinal()]++;
+    }
+
+    private boolean pass() {
+        boolean changed = false;
+        for (int i = this.next(-1); i >= 0; i = this.next(i)) {
+            if (this.buf.opcode(i) == Opcode.MOV && this.isReg(i, 0) && this.isReg(i, 1)
+                    && this.buf.reg(i, 0) == this.buf.reg(i, 1)) {
+                this.removed.set(i);
+                this.hit(Rule.SELF_MOVE);
+                changed = true;
+                continue;
+            }
+
+            final int j = this.next(i);
+            if (j < 0)
+                break;
+
+            if (this.xchgPair(i, j)) {
+                this.removed.set(i);
+                this.removed.set(j);
+                this.hit(Rule.XCHG_PAIR);
+                changed = true;
+                continue;
+            }
+
+            if (this.xchgOfMoves(i, j)) {
+                changed = true;
+                continue;
+            }
+
+            if (this.redundantReload(i)) {
+                changed = true;
+                continue;
+            }
+
+            if (this.copyPropagation(i, j)) {
+                changed = true;
+                continue;
+            }
+        }
+        return changed;
+    }
+
+    private int next(int i) {
+        final int j = this.removed.nextClearBit(i + 1);
+        return j < this.buf.size() ? j : -1;
+    }
+
+    private boolean isReg(int i, int k) {
+        return this.buf.kind(i, k) == REG;
+    }
+
+    private boolean isMov(int i) {
+        return this.buf.opcode(i) == Opcode.MOV;
+    }
+
+    private boolean isRegXchg(int i) {
+        return this.buf.opcode(i) == Opcode.XCHG && this.isReg(i, 0) && this.isReg(i, 1);
+    }
+
+    private boolean xchgPair(int i, int j) {
+        return this.isRegXchg(i) && this.isRegXchg(j)
+                && this.xchgPairWith(j, this.buf.reg(i, 0), this.buf.reg(i, 1));
+    }
+
+    private boolean xchgOfMoves(int i, int j) {
+        // mov a, x
+        // mov b, y
+        // xchg a, b
+        final InstrBuffer buf = this.buf;
+        final int k = this.next(j);
+        if (k < 0 || !this.isRegXchg(k))
+            return false;
+        if (!this.isMov(i) || !this.isMov(j) || !this.isReg(i, 0) || !this.isReg(j, 0))
+            return false;
+
+        final int a = buf.reg(i, 0);
+        final int b = buf.reg(j, 0);
+        if (a == b || !this.xchgPairWith(k, a, b))
+            return false;
+
+        // y is now evaluated after b is overwritten
+        if ((this.operandRegs(j, 1) & (1 << a | 1 << b)) != 0)
+            return false;
+
+        buf.setReg(i, 0, b);
+        buf.setReg(j, 0, a);
+        this.removed.set(k);
+        this.hit(Rule.XCHG_OF_MOVES);
+        return true;
+    }
+
+    private boolean xchgPairWith(int i, int a, int b) {
+        final int c = this.buf.reg(i, 0);
+        final int d = this.buf.reg(i, 1);
+        return a == c && b == d || a == d && b == c;
+    }
+
+    private boolean redundantReload(int i) {
+        // mov [m], r
+        final InstrBuffer buf = this.buf;
+        if (!this.isMov(i) || buf.kind(i, 0) != MEM || !this.isReg(i, 1))
+            return false;
+
+        final int r = buf.reg(i, 1);
+        final int addrRegs = this.memRegs(i, 0);
+
+        int j = i;
+        for (int n = 0; n < WINDOW; ++n) {
+            j = this.next(j);
+            if (j < 0)
+                return false;
+
+            // mov r, [m]
+            if (this.isMov(j) && this.isReg(j, 0) && buf.reg(j, 0) == r
+                    && buf.kind(j, 1) == MEM && buf.operandEquals(i, 0, j, 1)) {
+                this.removed.set(j);
+                this.hit(Rule.REDUNDANT_RELOAD);
+                return true;
+            }
+
+            if (((this.writes(j) & (1 << r | addrRegs)) != 0) || this.writesMemory(j))
+                return false;
+        }
+        return false;
+    }
+
+    private boolean copyPropagation(int i, int j) {
+        // mov a, x
+        // mov b, a
+        final InstrBuffer buf = this.buf;
+        if (!this.isMov(i) || !this.isMov(j) || !this.isReg(i, 0) || !this.isReg(j, 0) || !this.isReg(j, 1))
+            return false;
+
+        final int a = buf.reg(i, 0);
+        if (buf.reg(j, 1) != a || buf.reg(j, 0) == a || !this.isDeadAfter(j, a))
+            return false;
+
+        buf.setReg(i, 0, buf.reg(j, 0));
+        this.removed.set(j);
+        this.hit(Rule.COPY_PROPAGATION);
+        return true;
+    }
+
+    private boolean isDeadAfter(int i, int r) {
+        final int bit = 1 << r;
+        for (int n = 0; n < WINDOW; ++n) {
+            i = this.next(i);
+            if (i < 0)
+                return false; // it could be the result
+
+            if ((this.reads(i) & bit) != 0)
+                return false;
+            if ((this.writes(i) & bit) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    private int memRegs(int i, int k) {
+        final InstrBuffer buf = this.buf;
+        if (buf.kind(i, k) != MEM)
+            return 0;
+
+        int mask = 0;
+        final int base = buf.reg(i, k);
+        if (base != NO_REG)
+            mask |= 1 << base;
+        final int index = buf.index(i, k);
+        if (index != NO_REG)
+            mask |= 1 << index;
+        return mask;
+    }
+
+    private int operandRegs(int i, int k) {
+        return this.isReg(i, k) ? 1 << this.buf.reg(i, k) : this.memRegs(i, k);
+    }
+
+    private int reads(int i) {
+        final InstrBuffer buf = this.buf;
+        final int count = buf.operandCount(i);
+        switch (buf.opcode(i)) {
+        case EXTERN:
+            return 0;
+        case MOV:
+        case LEA:
+            // the destination is only read if it is an address
+            return this.memRegs(i, 0) | this.operandRegs(i, 1);
+        case CDQ:
+        case CQO:
+            return 1 << Register.EAX.ordinal();
+        case IDIV:
+            return 1 << Register.EAX.ordinal() | 1 << Register.EDX.ordinal() | this.operandRegs(i, 0);
+        case IMUL:
+            if (count == 1)
+                return 1 << Register.EAX.ordinal() | this.operandRegs(i, 0);
+            break;
+        case PUSH:
+            return 1 << Register.ESP.ordinal() | this.operandRegs(i, 0);
+        case POP:
+            return 1 << Register.ESP.ordinal() | this.memRegs(i, 0);
+        case CALL:
+            // the arguments could be in any of them
+            return ALL_REGS;
+        default:
+            break;
+        }
+
+        int mask = 0;
+        for (int k = 0; k < count; ++k)
+            mask |= this.operandRegs(i, k);
+        return mask;
+    }
+
+    private int writes(int i) {
+        final InstrBuffer buf = this.buf;
+        switch (buf.opcode(i)) {
+        case EXTERN:
+            return 0;
+        case CDQ:
+        case CQO:
+            return 1 << Register.EDX.ordinal();
+        case IDIV:
+            return 1 << Register.EAX.ordinal() | 1 << Register.EDX.ordinal();
+        case IMUL:
+            if (buf.operandCount(i) == 1)
+                return 1 << Register.EAX.ordinal() | 1 << Register.EDX.ordinal();
+            return this.isReg(i, 0) ? 1 << buf.reg(i, 0) : 0;
+        case PUSH:
+            return 1 << Register.ESP.ordinal();
+        case POP:
+            return 1 << Register.ESP.ordinal() | (this.isReg(i, 0) ? 1 << buf.reg(i, 0) : 0);
+        case CALL: {
+            int mask = 1 << Register.ESP.ordinal();
+            for (final Register r : Register.values())
+                if (buf.getTarget().isCallerSaved(r))
+                    mask |= 1 << r.ordinal();
+            return mask;
+        }
+        case XCHG:
+            return (this.isReg(i, 0) ? 1 << buf.reg(i, 0) : 0)
+                    | (this.isReg(i, 1) ? 1 << buf.reg(i, 1) : 0);
+        default:
+            return this.isReg(i, 0) ? 1 << buf.reg(i, 0) : 0;
+        }
+    }
+
+    private boolean writesMemory(int i) {
+        final InstrBuffer buf = this.buf;
+        switch (buf.opcode(i)) {
+        case PUSH:
+        case CALL:
+            return true;
+        case EXTERN:
+        case LEA:
+        case CDQ:
+        case CQO:
+        case IDIV:
+            return false;
+        default:
+            for (int k = 0, count = buf.operandCount(i); k < count; ++k)
+                if (buf.kind(i, k) == MEM && (k == 0 || buf.opcode(i) == Opcode.XCHG))
+                    return true;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.ymcmp.eralloc;
+
+/**
+ * The x86 general purpose registers, declared in the order of their machine
+ * encoding (so the ordinal is also the register number). The same constants
+ * name the 64-bit registers on x86-64, where R8 to R15 are also available.
+ */
+public enum Register {
+
+    EAX, ECX, EDX, EBX, ESP, EBP, ESI, EDI,
+    R8, R9, R10, R11, R12, R13, R14, R15;
+
+    private static final Register[] VALUES = values();
+
+    private static final String[] LOW_BYTES = { "al", "cl", "dl", "bl" };
+
+    private final String text = this.ordinal() < 8
+            ? this.name().toLowerCase()
+            : this.name().toLowerCase() + "d";
+
+    private final String qword = this.ordinal() < 8
+            ? "r" + this.name().substring(1).toLowerCase()
+            : this.name().toLowerCase();
+
+    public static Register of(int id) {
+        return VALUES[id];
+    }
+
+    /**
+     * Returns true if the register only exists on x86-64.
+     */
+    public boolean isExtended() {
+        return this.ordinal() >= 8;
+    }
+
+    public String lowByteName() {
+        if (this.ordinal() >= LOW_BYTES.length)
+            throw new IllegalStateException("Register " + this + " has no low byte in 32-bit mode");
+        return LOW_BYTES[this.ordinal()];
+    }
+
+    /**
+     * Returns the name of the full 64-bit register, rax for EAX, r8 for R8.
+     */
+    public String qwordName() {
+        return this.qword;
+    }
+
+    /**
+     * Returns the name of the 32-bit register, eax for EAX, r8d for R8.
+     */
+    @Override
+    public String toString() {
+        return this.text;
+    }
+}
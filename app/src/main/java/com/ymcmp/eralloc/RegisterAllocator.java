@@ -0,0 +1,16 @@
+package com.ymcmp.eralloc;
+
+import java.util.BitSet;
+
+/**
+ * Assigns registers to the virtual registers of {@link VirtualCode}.
+ */
+interface RegisterAllocator {
+
+    /**
+     * Returns the register (as an ordinal) of every virtual register, or -1
+     * for the ones that are added to spilled. Fixed virtual registers get
+     * their register. The code must be analyzed.
+     */
+    public int[] allocate(VirtualCode code, BitSet spilled);
+}
@@ -0,0 +1,58 @@
+package com.ymcmp.eralloc;
+
+/**
+ * A place in the encoded code that has to be patched with the address of a
+ * symbol once it is known. The bytes there are zero, so this maps directly to
+ * R_386_32 (four bytes) or R_X86_64_64 (eight bytes) with no addend.
+ */
+public final class Relocation {
+
+    private final int offset;
+    private final int size;
+    private final String symbol;
+
+    public Relocation(int offset, int size, String symbol) {
+        this.offset = offset;
+        this.size = size;
+        this.symbol = symbol;
+    }
+
+    /**
+     * Returns where the address goes, relative to where encoding started.
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * Returns how many bytes wide the address is.
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    public String getSymbol() {
+        return this.symbol;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Relocation))
+            return false;
+
+        final Relocation other = (Relocation) obj;
+        return this.offset == other.offset
+                && this.size == other.size
+                && this.symbol.equals(other.symbol);
+    }
+
+    @Override
+    public int hashCode() {
+        return (this.offset * 31 + this.size) * 31 + this.symbol.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.offset + ": " + this.symbol + " (" + this.size + " bytes)";
+    }
+}
@@ -0,0 +1,340 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+import com.ymcmp.eralloc.ast.*;
+
+/**
+ * Rewrites an expression into a cheaper but equivalent one before it is
+ * labelled:
+ *
+ * <ul>
+ * <li>operations on constants are folded (except the ones that would trap)
+ * <li>operations that do nothing (x + 0, x * 1, x / 1, x << 0...) are removed
+ * <li>constants are moved to the right of + and * and merged with the
+ *     constants of nested + and *
+ * <li>multiplications by a power of two become shifts
+ * </ul>
+ *
+ * Division and remainder by a constant cannot be expressed here without
+ * evaluating the divident more than once, so {@link EmitX86} takes care of
+ * those when simplification is enabled.
+ *
+ * Like {@link ValueNumbering}, shared nodes are rewritten once and stay
+ * shared.
+ */
+final class Simplifier implements ExprAST.Visitor<ExprAST> {
+
+    private final Map<ExprAST, ExprAST> rewritten = new IdentityHashMap<>();
+
+    // rewritten nodes that contain stores or calls
+    private final Set<ExprAST> effects = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final boolean wide;
+
+    private Simplifier(Target target) {
+        this.wide = target.wordSize() == 8;
+    }
+
+    public static ExprAST apply(ExprAST root, Target target) {
+        final Simplifier s = new Simplifier(target);
+
+        final ExprStack work = new ExprStack();
+        work.push(root, -1);
+        while (!work.isEmpty()) {
+            final ExprAST e = work.peek();
+            if (s.rewritten.containsKey(e)) {
+                work.pop();
+            } else if (work.peekMark() < 0) {
+                work.setMark(0);
+                work.pushChildren(e);
+            } else {
+                work.pop();
+                s.rewritten.put(e, e.accept(s));
+            }
+        }
+
+        return s.rewritten.get(root);
+    }
+
+    private ExprAST get(ExprAST e) {
+        return this.rewritten.get(e);
+    }
+
+    private static boolean isConst(ExprAST e) {
+        return e instanceof Numeric;
+    }
+
+    private static boolean isConst(ExprAST e, long value) {
+        return e instanceof Numeric && ((Numeric) e).value == value;
+    }
+
+    private static int valueOf(ExprAST e) {
+        return ((Numeric) e).value;
+    }
+
+    private int shiftMask() {
+        return this.wide ? 63 : 31;
+    }
+
+    /**
+     * Returns the constant if the result fits in a Numeric, null otherwise.
+     * On x86 values wrap around at 32 bits anyway, on x86-64 they do not.
+     */
+    private static Numeric constant(long value, boolean wide) {
+        if (!wide)
+            return new Numeric((int) value);
+        if (value != (int) value)
+            return null;
+        return new Numeric((int) value);
+    }
+
+    private ExprAST effects(ExprAST result, ExprAST... children) {
+        for (final ExprAST child : children) {
+            if (this.effects.contains(child)) {
+                this.effects.add(result);
+                break;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ExprAST visitNumeric(Numeric e) {
+        return e;
+    }
+
+    @Override
+    public ExprAST visitFrameIndex(FrameIndex e) {
+        return e;
+    }
+
+    @Override
+    public ExprAST visitGlobalValue(GlobalValue e) {
+        return e;
+    }
+
+    @Override
+    public ExprAST visitLoadExpr(LoadExpr e) {
+        final ExprAST ptr = this.get(e.ptr);
+        return this.effects(ptr == e.ptr ? e : new LoadExpr(ptr), ptr);
+    }
+
+    @Override
+    public ExprAST visitStoreExpr(StoreExpr e) {
+        final ExprAST ptr = this.get(e.ptr);
+        final ExprAST value = this.get(e.value);
+        final ExprAST n = ptr == e.ptr && value == e.value ? e : new StoreExpr(ptr, value);
+        this.effects.add(n);
+        return n;
+    }
+
+    @Override
+    public ExprAST visitCallExpr(CallExpr e) {
+        final ExprAST fn = this.get(e.fn);
+        boolean changed = fn != e.fn;
+
+        final ExprAST[] args = new ExprAST[e.args.length];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = this.get(e.args[i]);
+            changed |= args[i] != e.args[i];
+        }
+
+        final ExprAST n = changed ? new CallExpr(fn, args) : e;
+        this.effects.add(n);
+        return n;
+    }
+
+    @Override
+    public ExprAST visitAddExpr(AddExpr e) {
+        return this.add(e, this.get(e.lhs), this.get(e.rhs));
+    }
+
+    private ExprAST add(AddExpr e, ExprAST lhs, ExprAST rhs) {
+        if (isConst(lhs) && !isConst(rhs)) {
+            final ExprAST t = lhs; lhs = rhs; rhs = t;
+        }
+
+        if (isConst(rhs)) {
+            if (isConst(lhs)) {
+                final Numeric n = constant((long) valueOf(lhs) + valueOf(rhs), this.wide);
+                if (n != null)
+                    return n;
+            }
+            if (isConst(rhs, 0))
+                return lhs;
+
+            // (x + c1) + c2 --> x + (c1 + c2)
+            if (lhs instanceof AddExpr && isConst(((AddExpr) lhs).rhs)) {
+                final AddExpr inner = (AddExpr) lhs;
+                final Numeric n = constant((long) valueOf(inner.rhs) + valueOf(rhs), this.wide);
+                if (n != null)
+                    return this.add(null, inner.lhs, n);
+            }
+        }
+
+        final ExprAST n = e != null && lhs == e.lhs && rhs == e.rhs ? e : new AddExpr(lhs, rhs);
+        return this.effects(n, lhs, rhs);
+    }
+
+    @Override
+    public ExprAST visitSubExpr(SubExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+
+        if (isConst(rhs)) {
+            if (isConst(lhs)) {
+                final Numeric n = constant((long) valueOf(lhs) - valueOf(rhs), this.wide);
+                if (n != null)
+                    return n;
+            }
+            if (isConst(rhs, 0))
+                return lhs;
+        }
+
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new SubExpr(lhs, rhs);
+        return this.effects(n, lhs, rhs);
+    }
+
+    @Override
+    public ExprAST visitMulExpr(MulExpr e) {
+        return this.mul(e, this.get(e.lhs), this.get(e.rhs));
+    }
+
+    private ExprAST mul(MulExpr e, ExprAST lhs, ExprAST rhs) {
+        if (isConst(lhs) && !isConst(rhs)) {
+            final ExprAST t = lhs; lhs = rhs; rhs = t;
+        }
+
+        if (isConst(rhs)) {
+            final int c = valueOf(rhs);
+            if (isConst(lhs)) {
+                final Numeric n = constant((long) valueOf(lhs) * c, this.wide);
+                if (n != null)
+                    return n;
+            }
+            if (c == 1)
+                return lhs;
+            if (c == 0 && !this.effects.contains(lhs))
+                return rhs;
+            if (c == -1)
+                return this.effects(new SubExpr(new Numeric(0), lhs), lhs);
+
+            // (x * c1) * c2 --> x * (c1 * c2)
+            if (lhs instanceof MulExpr && isConst(((MulExpr) lhs).rhs)) {
+                final MulExpr inner = (MulExpr) lhs;
+                final Numeric n = constant((long) valueOf(inner.rhs) * c, this.wide);
+                if (n != null)
+                    return this.mul(null, inner.lhs, n);
+            }
+
+            // x * 2^k --> x << k
+            if (c > 0 && (c & (c - 1)) == 0)
+                return this.effects(new ShlExpr(lhs, new Numeric(Integer.numberOfTrailingZeros(c))), lhs);
+        }
+
+        final ExprAST n = e != null && lhs == e.lhs && rhs == e.rhs ? e : new MulExpr(lhs, rhs);
+        return this.effects(n, lhs, rhs);
+    }
+
+    /**
+     * Returns true if dividing by the constant would trap (or the quotient
+     * would not fit), so that it is left for the program to do at runtime.
+     */
+    private boolean traps(int a, int b) {
+        return b == 0 || !this.wide && a == Integer.MIN_VALUE && b == -1;
+    }
+
+    @Override
+    public ExprAST visitDivExpr(DivExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+
+        if (isConst(rhs)) {
+            if (isConst(lhs) && !this.traps(valueOf(lhs), valueOf(rhs))) {
+                final Numeric n = constant((long) valueOf(lhs) / valueOf(rhs), this.wide);
+                if (n != null)
+                    return n;
+            }
+            if (isConst(rhs, 1))
+                return lhs;
+        }
+
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new DivExpr(lhs, rhs);
+        return this.effects(n, lhs, rhs);
+    }
+
+    @Override
+    public ExprAST visitRemExpr(RemExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+
+        if (isConst(rhs)) {
+            if (isConst(lhs) && !this.traps(valueOf(lhs), valueOf(rhs)))
+                return new Numeric(valueOf(lhs) % valueOf(rhs));
+            if (isConst(rhs, 1) && !this.effects.contains(lhs))
+                return new Numeric(0);
+        }
+
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new RemExpr(lhs, rhs);
+        return this.effects(n, lhs, rhs);
+    }
+
+    @Override
+    public ExprAST visitShlExpr(ShlExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+
+        if (isConst(rhs)) {
+            final int shamt = valueOf(rhs) & this.shiftMask();
+            if (isConst(lhs)) {
+                final Numeric n = constant((long) valueOf(lhs) << shamt, this.wide);
+                if (n != null)
+                    return n;
+            }
+            if (shamt == 0)
+                return lhs;
+        }
+
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new ShlExpr(lhs, rhs);
+        return this.effects(n, lhs, rhs);
+    }
+
+    @Override
+    public ExprAST visitSraExpr(SraExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+
+        if (isConst(rhs)) {
+            final int shamt = valueOf(rhs) & this.shiftMask();
+            if (isConst(lhs))
+                return new Numeric((int) ((long) valueOf(lhs) >> shamt));
+            if (shamt == 0)
+                return lhs;
+        }
+
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new SraExpr(lhs, rhs);
+        return this.effects(n, lhs, rhs);
+    }
+
+    @Override
+    public ExprAST visitSrlExpr(SrlExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+
+        if (isConst(rhs)) {
+            final int shamt = valueOf(rhs) & this.shiftMask();
+            if (isConst(lhs)) {
+                final Numeric n = this.wide
+                        ? constant((long) valueOf(lhs) >>> shamt, true)
+                        : new Numeric(valueOf(lhs) >>> shamt);
+                if (n != null)
+                    return n;
+            }
+            if (shamt == 0)
+                return lhs;
+        }
+
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new SrlExpr(lhs, rhs);
+        return this.effects(n, lhs, rhs);
+    }
+}
@@ -0,0 +1,30 @@
+package com.ymcmp.eralloc;
+
+/**
+ * How registers are allocated.
+ */
+public enum Strategy {
+
+    /**
+     * Walks the tree in the order given by its Ershov numbers, allocating
+     * registers from a stack as it goes. This is the only strategy that uses
+     * addressing modes, tiling and strength reduction of divisions.
+     */
+    ERSHOV,
+
+    /**
+     * Lowers the tree to instructions on virtual registers (still evaluating
+     * operands in Ershov order) and assigns registers to their live
+     * intervals by linear scan. Registers that instructions are hardwired to
+     * are assigned up front, and the intervals spilled to make room for them
+     * are reloaded around each of their uses.
+     */
+    LINEAR_SCAN,
+
+    /**
+     * Same lowering as {@link #LINEAR_SCAN}, but colors the interference
+     * graph instead. Slower, but coalesces the moves into and out of the
+     * registers that division and shifts need and spills less.
+     */
+    GRAPH_COLORING;
+}
@@ -0,0 +1,107 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+
+import static com.ymcmp.eralloc.Register.*;
+
+/**
+ * The machines (and calling conventions) that code can be generated for.
+ */
+public enum Target {
+
+    /**
+     * 32-bit x86 with cdecl: every argument is pushed on the stack.
+     */
+    X86(4,
+            Arrays.asList(EAX, ECX, EDX),
+            Collections.emptyList(),
+            EnumSet.of(EAX, ECX, EDX)),
+
+    /**
+     * x86-64 with the System V ABI: the first six arguments are passed in
+     * registers, the rest are pushed on the stack. Every value is 64-bit.
+     */
+    X64(8,
+            Arrays.asList(EAX, ECX, EDX, ESI, EDI, R8, R9, R10, R11, EBX, R12, R13, R14, R15),
+            Arrays.asList(EDI, ESI, EDX, ECX, R8, R9),
+            EnumSet.of(EAX, ECX, EDX, ESI, EDI, R8, R9, R10, R11));
+
+    private final int wordSize;
+    private final List<Register> registers;
+    private final List<Register> argumentRegisters;
+    private final Set<Register> callerSaved;
+
+    private Target(int wordSize, List<Register> registers, List<Register> argumentRegisters, Set<Register> callerSaved) {
+        this.wordSize = wordSize;
+        this.registers = Collections.unmodifiableList(registers);
+        this.argumentRegisters = Collections.unmodifiableList(argumentRegisters);
+        this.callerSaved = callerSaved;
+    }
+
+    /**
+     * The size of registers, pointers and stack slots in bytes.
+     */
+    public int wordSize() {
+        return this.wordSize;
+    }
+
+    /**
+     * The registers that are allocated if no others are given, in the order
+     * they are preferred. Caller saved registers come first so simple code
+     * does not need to save anything.
+     */
+    public List<Register> defaultRegisters() {
+        return this.registers;
+    }
+
+    /**
+     * The registers used to pass the leading arguments of a call.
+     */
+    public List<Register> argumentRegisters() {
+        return this.argumentRegisters;
+    }
+
+    /**
+     * The alignment of the stack pointer at calls, which is also kept by
+     * code that sets up its own frame.
+     */
+    public int stackAlignment() {
+        return this == X64 ? 16 : this.wordSize;
+    }
+
+    public boolean isCallerSaved(Register r) {
+        return this.callerSaved.contains(r);
+    }
+
+    public boolean isCalleeSaved(Register r) {
+        return !this.callerSaved.contains(r) && (this == X64 || !r.isExtended());
+    }
+
+    /**
+     * Checks that the registers can be handed to the allocator: they must
+     * exist on the target, must not be the stack or frame pointer, and must
+     * include the ones that some instructions (and calls) are hardwired to.
+     * The first one holds the result, so it must be caller saved (the
+     * epilogue would restore a callee saved one over the result).
+     */
+    void checkRegisters(List<Register> regs) {
+        if (!regs.isEmpty() && this.isCalleeSaved(regs.get(0)))
+            throw new IllegalArgumentException("Register " + regs.get(0) + " holds the result and must be caller saved");
+
+        final Set<Register> set = EnumSet.noneOf(Register.class);
+        for (final Register r : regs) {
+            if (r == ESP || r == EBP)
+                throw new IllegalArgumentException("Register " + r + " is reserved for the stack frame");
+            if (r.isExtended() && this == X86)
+                throw new IllegalArgumentException("Register " + r + " does not exist on " + this);
+            if (!set.add(r))
+                throw new IllegalArgumentException("Register " + r + " is listed more than once");
+        }
+
+        // division and shifts need these, calls need the argument registers
+        final Set<Register> required = EnumSet.of(EAX, ECX, EDX);
+        required.addAll(this.argumentRegisters);
+        if (!set.containsAll(required))
+            throw new IllegalArgumentException("Registers must include all of " + required);
+    }
+}
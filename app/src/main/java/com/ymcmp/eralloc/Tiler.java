@@ -0,0 +1,568 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+
+/**
+ * Selects the instructions by tiling the tree with x86 patterns, bottom up
+ * rewriting style. Each node is matched right after its children (in the
+ * order {@link ErshovLabel} labels them), keeping the cheapest way to derive
+ * it as each nonterminal along with the number of registers that needs. Once
+ * the whole tree is matched, the root is derived as a register and the
+ * chosen patterns are followed down to the leaves.
+ *
+ * The cost of a pattern is the number of instructions it emits itself, ties
+ * are broken by the number of registers. The result is handed back to
+ * {@link ErshovLabel} as labels, immediates and addresses, which is all the
+ * emitter looks at.
+ *
+ * The cover is only the cheapest among these patterns. The moves the emitter
+ * adds to get values into fixed registers (cl for shifts, eax and edx for
+ * division, the result of calls) and any spills are not part of the cost, so
+ * the tiled code can still come out longer than the untiled code.
+ */
+final class Tiler {
+
+    // nonterminals
+    private static final int REG = 0;           // r
+    private static final int IMM = 1;           // imm
+    private static final int MEM = 2;           // a load as a memory operand
+    private static final int DISP = 3;          // [disp]
+    private static final int FRAME = 4;         // [ebp + disp]
+    private static final int BASE = 5;          // [r + disp]
+    private static final int SCALED = 6;        // [r * scale + disp]
+    private static final int FRAME_INDEX = 7;   // [ebp + r * scale + disp]
+    private static final int BASE_INDEX = 8;    // [r + r * scale + disp]
+    private static final int NT = 9;
+
+    // patterns, packed as kind | lhs << 8 | rhs << 16 where lhs and rhs are
+    // the nonterminals the operands are derived as.
+    private static final int LEAF = 1;          // mov r, imm (or nothing)
+    private static final int REF = 2;           // mov r, [shared slot]
+    private static final int OP = 3;            // op lhs, rhs
+    private static final int LOAD = 4;          // mov r, lhs
+    private static final int STORE = 5;         // mov lhs, rhs
+    private static final int LEA = 6;           // lea r, lhs (of the node itself)
+    private static final int CALL = 7;
+    private static final int MEM_LOAD = 8;      // lhs
+    private static final int CONST = 9;         // disp or ebp + disp
+    private static final int CHAIN = 10;        // a register as the base
+    private static final int SHIFT = 11;        // lhs << 1..3 as the index
+    private static final int SUM = 12;          // lhs + rhs
+    private static final int OFFSET = 13;       // lhs - constant
+
+    private static final int INFINITE = Integer.MAX_VALUE / 4;
+
+    private final ErshovLabel labels;
+    private final boolean wide;
+    private final boolean symbolImmediates;
+    private final int argRegisters;
+
+    // indexed by node number * NT + nonterminal
+    private int[] costs = new int[64 * NT];
+    private int[] needs = new int[64 * NT];
+    private int[] rules = new int[64 * NT];
+    private long[] disps = new long[64 * NT];
+    private int[] scales = new int[64 * NT];
+
+    private int current;
+
+    // the nonterminal each node is derived as, only while selecting
+    private int[] picks;
+
+    // address parts that are still to be visited: node, nonterminal and
+    // whether a register there is the index
+    private int[] parts = new int[3 * 16];
+
+    public Tiler(ErshovLabel labels, Target target) {
+        this.labels = labels;
+        this.wide = target.wordSize() > 4;
+        this.symbolImmediates = target == Target.X86;
+        this.argRegisters = target.argumentRegisters().size();
+    }
+
+    private static boolean isAddress(int nt) {
+        return nt >= DISP;
+    }
+
+    private static int registers(int nt) {
+        switch (nt) {
+        case DISP:
+        case FRAME:
+            return 0;
+        case BASE_INDEX:
+            return 2;
+        default:
+            return 1;
+        }
+    }
+
+    private static int combine(int l, int r) {
+        if (l == r)
+            return l == 0 ? 0 : l + 1;
+        return Math.max(l, r);
+    }
+
+    private void reserve(int id) {
+        if (id * NT < this.costs.length)
+            return;
+
+        final int n = Math.max(id + 1, this.costs.length / NT * 2);
+        this.costs = Arrays.copyOf(this.costs, n * NT);
+        this.needs = Arrays.copyOf(this.needs, n * NT);
+        this.rules = Arrays.copyOf(this.rules, n * NT);
+        this.disps = Arrays.copyOf(this.disps, n * NT);
+        this.scales = Arrays.copyOf(this.scales, n * NT);
+    }
+
+    private void reset(int id) {
+        this.reserve(id);
+        Arrays.fill(this.costs, id * NT, id * NT + NT, INFINITE);
+    }
+
+    private int cost(int id, int nt) {
+        return this.costs[id * NT + nt];
+    }
+
+    private int need(int id, int nt) {
+        return this.needs[id * NT + nt];
+    }
+
+    private boolean has(int id, int nt) {
+        return this.cost(id, nt) < INFINITE;
+    }
+
+    private boolean offer(int nt, int cost, int need, int rule) {
+        final int i = this.current * NT + nt;
+        if (cost < this.costs[i] || cost == this.costs[i] && need < this.needs[i]) {
+            this.costs[i] = cost;
+            this.needs[i] = need;
+            this.rules[i] = rule;
+            return true;
+        }
+        return false;
+    }
+
+    private void offerAddress(int nt, int cost, int need, int rule, long disp, int scale) {
+        if (this.wide) {
+            // the displacement is sign extended from 32 bits
+            if (disp != (int) disp)
+                return;
+        } else {
+            disp = (int) disp;
+        }
+
+        if (this.offer(nt, cost, need, rule)) {
+            this.disps[this.current * NT + nt] = disp;
+            this.scales[this.current * NT + nt] = scale;
+        }
+    }
+
+    /**
+     * Matches the node, which must have all of its children matched.
+     */
+    public void match(int id) {
+        this.reset(id);
+        this.current = id;
+
+        final int kind = this.labels.kindOf(id);
+        switch (kind) {
+        case FlatExpr.NUMERIC:
+            this.matchNumeric();
+            break;
+        case FlatExpr.FRAME_INDEX:
+            this.matchFrameIndex();
+            break;
+        case FlatExpr.GLOBAL_VALUE:
+            this.matchGlobalValue();
+            break;
+        case FlatExpr.LOAD:
+            this.matchLoad();
+            break;
+        case FlatExpr.STORE:
+            this.matchStore();
+            break;
+        case FlatExpr.ADD:
+            this.matchAdd();
+            break;
+        case FlatExpr.SUB:
+            this.matchSub();
+            break;
+        case FlatExpr.MUL:
+            this.matchArithmetic(true);
+            break;
+        case FlatExpr.DIV:
+        case FlatExpr.REM:
+            // mov eax, lhs + cdq + idiv
+            this.offerOp(REG, REG, 3);
+            break;
+        case FlatExpr.SHL:
+            this.matchShl();
+            break;
+        case FlatExpr.SRA:
+        case FlatExpr.SRL:
+            this.matchShift();
+            break;
+        default:
+            this.matchCall();
+            break;
+        }
+
+        // a node that is used more than once is only evaluated once, so it
+        // cannot be folded into any of its parents.
+        if (!FlatExpr.isLeaf(kind) && !this.labels.isFoldable(id))
+            Arrays.fill(this.costs, id * NT + IMM, id * NT + NT, INFINITE);
+
+        // any register works as a base
+        this.offerAddress(BASE, this.cost(id, REG), this.need(id, REG), CHAIN, 0, 1);
+    }
+
+    /**
+     * Matches a later occurrence of a shared node, which is just reloaded.
+     */
+    public void matchRef(int id, int def) {
+        this.reset(id);
+        this.current = id;
+        this.offer(REG, 1, this.need(def, REG), REF);
+        this.offerAddress(BASE, 1, this.need(def, REG), CHAIN, 0, 1);
+    }
+
+    private void matchNumeric() {
+        this.offer(REG, 1, 1, LEAF);
+        this.offer(IMM, 0, 0, LEAF);
+        this.offerAddress(DISP, 0, 0, CONST, this.labels.valueOf(this.current), 1);
+    }
+
+    private void matchFrameIndex() {
+        this.offer(REG, 1, 1, LEAF);
+        this.offerAddress(FRAME, 0, 0, CONST, -(long) this.labels.valueOf(this.current), 1);
+    }
+
+    private void matchGlobalValue() {
+        this.offer(REG, 1, 1, LEAF);
+        if (this.symbolImmediates)
+            this.offer(IMM, 0, 0, LEAF);
+    }
+
+    private void matchLoad() {
+        final int ptrId = this.labels.firstChild(this.current);
+        for (int nt = DISP; nt < NT; ++nt) {
+            if (!this.has(ptrId, nt))
+                continue;
+
+            final int cost = this.cost(ptrId, nt);
+            final int need = this.need(ptrId, nt);
+            this.offer(REG, cost + 1, Math.max(1, need), LOAD | nt << 8);
+
+            // the other operand already needs a register
+            if (registers(nt) < 2)
+                this.offer(MEM, cost, need, MEM_LOAD | nt << 8);
+        }
+    }
+
+    private void matchStore() {
+        final int ptrId = this.labels.firstChild(this.current);
+        final int valueId = this.labels.nextSibling(ptrId);
+        final int value = this.cost(valueId, REG);
+        for (int nt = DISP; nt < NT; ++nt) {
+            if (this.has(ptrId, nt) && registers(nt) < 2) {
+                this.offer(REG, this.cost(ptrId, nt) + value + 1,
+                        combine(this.need(valueId, REG), this.need(ptrId, nt)),
+                        STORE | nt << 8 | REG << 16);
+            }
+        }
+    }
+
+    private void offerOp(int lhs, int rhs, int cost) {
+        final int lhsId = this.labels.firstChild(this.current);
+        final int rhsId = this.labels.nextSibling(lhsId);
+        if (this.has(lhsId, lhs) && this.has(rhsId, rhs)) {
+            this.offer(REG, cost + this.cost(lhsId, lhs) + this.cost(rhsId, rhs),
+                    combine(this.need(lhsId, lhs), this.need(rhsId, rhs)),
+                    OP | lhs << 8 | rhs << 16);
+        }
+    }
+
+    private void matchArithmetic(boolean commutative) {
+        this.offerOp(REG, REG, 1);
+        this.offerOp(REG, IMM, 1);
+        this.offerOp(REG, MEM, 1);
+        if (commutative) {
+            this.offerOp(IMM, REG, 1);
+            this.offerOp(MEM, REG, 1);
+        }
+    }
+
+    private static int sum(int lhs, int rhs) {
+        if (lhs == DISP)
+            return rhs;
+        if (rhs == DISP)
+            return lhs;
+
+        switch (lhs << 4 | rhs) {
+        case FRAME << 4 | BASE:
+        case FRAME << 4 | SCALED:
+        case BASE << 4 | FRAME:
+        case SCALED << 4 | FRAME:
+            return FRAME_INDEX;
+        case BASE << 4 | BASE:
+        case BASE << 4 | SCALED:
+        case SCALED << 4 | BASE:
+            return BASE_INDEX;
+        default:
+            return -1;
+        }
+    }
+
+    private void offerLea() {
+        // computing the address of the node is the same as computing it.
+        // The base of a node that is used more than once is replaced by its
+        // own register (see match), which leaves nothing to lea.
+        final boolean foldable = this.labels.isFoldable(this.current);
+        for (int nt = DISP; nt < NT; ++nt) {
+            if (nt == BASE && !foldable)
+                continue;
+            if (this.has(this.current, nt)) {
+                this.offer(REG, this.cost(this.current, nt) + 1,
+                        Math.max(1, this.need(this.current, nt)), LEA | nt << 8);
+            }
+        }
+    }
+
+    private void matchAdd() {
+        this.matchArithmetic(true);
+
+        final int lhsId = this.labels.firstChild(this.current);
+        final int rhsId = this.labels.nextSibling(lhsId);
+        for (int lhs = DISP; lhs < NT; ++lhs) {
+            if (!this.has(lhsId, lhs))
+                continue;
+
+            for (int rhs = DISP; rhs < NT; ++rhs) {
+                final int nt = sum(lhs, rhs);
+                if (nt < 0 || !this.has(rhsId, rhs))
+                    continue;
+
+                this.offerAddress(nt, this.cost(lhsId, lhs) + this.cost(rhsId, rhs),
+                        combine(this.need(lhsId, lhs), this.need(rhsId, rhs)),
+                        SUM | lhs << 8 | rhs << 16,
+                        this.disps[lhsId * NT + lhs] + this.disps[rhsId * NT + rhs],
+                        Math.max(this.scales[lhsId * NT + lhs], this.scales[rhsId * NT + rhs]));
+            }
+        }
+
+        this.offerLea();
+    }
+
+    private void matchSub() {
+        this.matchArithmetic(false);
+
+        final int lhsId = this.labels.firstChild(this.current);
+        final int rhsId = this.labels.nextSibling(lhsId);
+        if (this.labels.kindOf(rhsId) == FlatExpr.NUMERIC) {
+            final int value = this.labels.valueOf(rhsId);
+            for (int nt = DISP; nt < NT; ++nt) {
+                if (this.has(lhsId, nt)) {
+                    this.offerAddress(nt, this.cost(lhsId, nt), this.need(lhsId, nt),
+                            OFFSET | nt << 8,
+                            this.disps[lhsId * NT + nt] - value, this.scales[lhsId * NT + nt]);
+                }
+            }
+        }
+
+        this.offerLea();
+    }
+
+    private boolean isConstantRhs() {
+        final int rhsId = this.labels.nextSibling(this.labels.firstChild(this.current));
+        return this.labels.kindOf(rhsId) == FlatExpr.NUMERIC;
+    }
+
+    private void matchShift() {
+        // a shift amount that is not a constant has to be moved into cl
+        this.offerOp(REG, REG, 2);
+        if (this.isConstantRhs())
+            this.offerOp(REG, IMM, 1);
+    }
+
+    private void matchShl() {
+        this.matchShift();
+
+        if (this.isConstantRhs()) {
+            final int lhsId = this.labels.firstChild(this.current);
+            final int shift = this.labels.valueOf(this.labels.nextSibling(lhsId));
+            if (shift >= 1 && shift <= 3) {
+                this.offerAddress(SCALED, this.cost(lhsId, REG), this.need(lhsId, REG),
+                        SHIFT | REG << 8, 0, 1 << shift);
+            }
+        }
+    }
+
+    /**
+     * Returns the nonterminal of a call argument: constants (and on x86,
+     * symbols) that are pushed are immediates, everything else is a
+     * register.
+     */
+    private int argument(int argId, int i) {
+        if (i < this.argRegisters)
+            return REG;
+
+        final int kind = this.labels.kindOf(argId);
+        return kind == FlatExpr.NUMERIC || kind == FlatExpr.GLOBAL_VALUE && this.symbolImmediates ? IMM : REG;
+    }
+
+    private void matchCall() {
+        final int fnId = this.labels.firstChild(this.current);
+        final int argc = this.labels.valueOf(this.current);
+
+        // call + cleanup, one mov or push per argument
+        int cost = 2 + argc + this.cost(fnId, REG);
+        final int[] args = new int[argc];
+        final boolean[] calls = new boolean[argc];
+        for (int i = 0, id = fnId; i < argc; ++i) {
+            id = this.labels.nextSibling(id);
+            final int nt = this.argument(id, i);
+            cost += this.cost(id, nt);
+            args[i] = this.need(id, nt);
+            calls[i] = this.labels.containsCall(id);
+        }
+
+        this.offer(REG, cost, ErshovLabel.labelCall(this.need(fnId, REG), args, calls, this.argRegisters), CALL);
+    }
+
+    /**
+     * Derives the root as a register and hands the chosen patterns over to
+     * {@link ErshovLabel}. count is the number of nodes.
+     */
+    public void select(int count) {
+        final int[] picks = new int[count];
+        Arrays.fill(picks, -1);
+        picks[0] = REG;
+        this.picks = picks;
+
+        // parents are numbered before their children, so every node knows
+        // what it is derived as by the time it is reached.
+        for (int id = 0; id < count; ++id) {
+            final int nt = picks[id];
+            if (nt < 0 || isAddress(nt))
+                continue; // folded into a parent
+
+            this.labels.setLabel(id, this.need(id, nt));
+
+            final int rule = this.rules[id * NT + nt];
+            final int lhs = (rule >>> 8) & 0xFF;
+            final int rhs = (rule >>> 16) & 0xFF;
+            final int lhsId = this.labels.firstChild(id);
+            switch (rule & 0xFF) {
+            case OP:
+                picks[lhsId] = lhs;
+                picks[this.labels.nextSibling(lhsId)] = rhs;
+                break;
+            case LOAD:
+                this.labels.setAddress(id, this.address(lhsId, lhs), false);
+                break;
+            case MEM_LOAD:
+                this.labels.setAddress(id, this.address(lhsId, lhs), true);
+                break;
+            case STORE:
+                this.labels.setAddress(id, this.address(lhsId, lhs), false);
+                picks[this.labels.nextSibling(lhsId)] = rhs;
+                break;
+            case LEA:
+                this.labels.setAddress(id, this.address(id, lhs), false);
+                break;
+            case CALL: {
+                final int argc = this.labels.valueOf(id);
+                picks[lhsId] = REG;
+                for (int i = 0, argId = lhsId; i < argc; ++i) {
+                    argId = this.labels.nextSibling(argId);
+                    picks[argId] = this.argument(argId, i);
+                }
+                break;
+            }
+            default:
+                break;
+            }
+        }
+
+        this.picks = null;
+    }
+
+    private void pushPart(int n, int id, int nt, boolean index) {
+        if (n + 3 > this.parts.length)
+            this.parts = Arrays.copyOf(this.parts, this.parts.length * 2);
+
+        this.parts[n] = id;
+        this.parts[n + 1] = nt;
+        this.parts[n + 2] = index ? 1 : 0;
+    }
+
+    /**
+     * Collects the address the node is derived as. The nodes that end up in
+     * registers are marked as such.
+     */
+    private ErshovLabel.Address address(int id, int nt) {
+        final ErshovLabel.Address address = new ErshovLabel.Address();
+        address.disp = this.disps[id * NT + nt];
+        address.scale = this.scales[id * NT + nt];
+
+        int n = 0;
+        this.pushPart(n, id, nt, false);
+        n += 3;
+        while (n > 0) {
+            n -= 3;
+            final int partId = this.parts[n];
+            final int partNt = this.parts[n + 1];
+            final boolean index = this.parts[n + 2] != 0;
+
+            final int rule = this.rules[partId * NT + partNt];
+            final int lhs = (rule >>> 8) & 0xFF;
+            final int rhs = (rule >>> 16) & 0xFF;
+            final int lhsId = this.labels.firstChild(partId);
+            switch (rule & 0xFF) {
+            case CONST:
+                if (this.labels.kindOf(partId) == FlatExpr.FRAME_INDEX)
+                    address.frame = true;
+                break;
+            case CHAIN:
+                this.picks[partId] = REG;
+                if (index)
+                    address.indexId = partId;
+                else
+                    address.baseId = partId;
+                break;
+            case SHIFT:
+                this.picks[lhsId] = REG;
+                address.indexId = lhsId;
+                break;
+            case SUM: {
+                // two plain registers are the base and the index, otherwise
+                // whichever part is not scaled goes where the other one
+                // does not.
+                boolean lhsIndex = index;
+                boolean rhsIndex = index;
+                if (lhs == BASE && rhs == BASE) {
+                    lhsIndex = false;
+                    rhsIndex = true;
+                } else if (partNt == FRAME_INDEX) {
+                    lhsIndex = rhsIndex = true;
+                } else if (partNt == BASE_INDEX) {
+                    lhsIndex = rhsIndex = false;
+                }
+
+                this.pushPart(n, lhsId, lhs, lhsIndex);
+                n += 3;
+                this.pushPart(n, this.labels.nextSibling(lhsId), rhs, rhsIndex);
+                n += 3;
+                break;
+            }
+            case OFFSET:
+                this.pushPart(n, lhsId, lhs, index);
+                n += 3;
+                break;
+            default:
+                throw new AssertionError("Not an address");
+            }
+        }
+        return address;
+    }
+}
@@ -0,0 +1,217 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+import com.ymcmp.eralloc.ast.*;
+
+/**
+ * Rewrites a tree (or DAG) so that structurally equal subtrees become the
+ * same node, which is what lets the rest of the pipeline evaluate them once.
+ *
+ * Stores and calls have side effects, so they are never merged. Loads are
+ * only merged when there are no stores or calls anywhere in the expression,
+ * since otherwise the memory could change between the two loads.
+ */
+final class ValueNumbering implements ExprAST.Visitor<ExprAST> {
+
+    private static final class Key {
+
+        private final Class<?> kind;
+        private final Object literal;
+        private final ExprAST[] children;
+
+        public Key(Class<?> kind, Object literal, ExprAST... children) {
+            this.kind = kind;
+            this.literal = literal;
+            this.children = children;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+
+            final Key k = (Key) obj;
+            if (this.kind != k.kind || !Objects.equals(this.literal, k.literal))
+                return false;
+            if (this.children.length != k.children.length)
+                return false;
+
+            // the children are already canonical, so identity is enough
+            for (int i = 0; i < this.children.length; ++i)
+                if (this.children[i] != k.children[i])
+                    return false;
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = this.kind.hashCode() * 31 + Objects.hashCode(this.literal);
+            for (final ExprAST child : this.children)
+                h = h * 31 + System.identityHashCode(child);
+            return h;
+        }
+    }
+
+    // canonical node of every node visited so far (by identity)
+    private final Map<ExprAST, ExprAST> canonical = new IdentityHashMap<>();
+
+    // canonical node of every distinct value
+    private final Map<Key, ExprAST> values = new HashMap<>();
+
+    private final boolean mergeLoads;
+
+    private ValueNumbering(boolean mergeLoads) {
+        this.mergeLoads = mergeLoads;
+    }
+
+    public static ExprAST apply(ExprAST root) {
+        final ValueNumbering vn = new ValueNumbering(!hasSideEffects(root));
+
+        final ExprStack work = new ExprStack();
+        work.push(root, -1);
+        while (!work.isEmpty()) {
+            final ExprAST e = work.peek();
+            if (vn.canonical.containsKey(e)) {
+                work.pop();
+            } else if (work.peekMark() < 0) {
+                work.setMark(0);
+                work.pushChildren(e);
+            } else {
+                work.pop();
+                vn.canonical.put(e, e.accept(vn));
+            }
+        }
+
+        return vn.canonical.get(root);
+    }
+
+    private static boolean hasSideEffects(ExprAST root) {
+        final Set<ExprAST> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        final ExprStack work = new ExprStack();
+        work.push(root, -1);
+        while (!work.isEmpty()) {
+            final ExprAST e = work.pop();
+            if (e instanceof StoreExpr || e instanceof CallExpr)
+                return true;
+            if (seen.add(e))
+                work.pushChildren(e);
+        }
+        return false;
+    }
+
+    private ExprAST intern(ExprAST e, Key key) {
+        final ExprAST prev = this.values.putIfAbsent(key, e);
+        return prev == null ? e : prev;
+    }
+
+    private ExprAST get(ExprAST e) {
+        return this.canonical.get(e);
+    }
+
+    @Override
+    public ExprAST visitNumeric(Numeric e) {
+        return this.intern(e, new Key(Numeric.class, e.value));
+    }
+
+    @Override
+    public ExprAST visitFrameIndex(FrameIndex e) {
+        return this.intern(e, new Key(FrameIndex.class, e.value));
+    }
+
+    @Override
+    public ExprAST visitGlobalValue(GlobalValue e) {
+        return this.intern(e, new Key(GlobalValue.class, e.value));
+    }
+
+    @Override
+    public ExprAST visitLoadExpr(LoadExpr e) {
+        final ExprAST ptr = this.get(e.ptr);
+        final ExprAST n = ptr == e.ptr ? e : new LoadExpr(ptr);
+        return this.mergeLoads ? this.intern(n, new Key(LoadExpr.class, null, ptr)) : n;
+    }
+
+    @Override
+    public ExprAST visitStoreExpr(StoreExpr e) {
+        final ExprAST ptr = this.get(e.ptr);
+        final ExprAST value = this.get(e.value);
+        return ptr == e.ptr && value == e.value ? e : new StoreExpr(ptr, value);
+    }
+
+    @Override
+    public ExprAST visitAddExpr(AddExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new AddExpr(lhs, rhs);
+        return this.intern(n, new Key(AddExpr.class, null, lhs, rhs));
+    }
+
+    @Override
+    public ExprAST visitSubExpr(SubExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new SubExpr(lhs, rhs);
+        return this.intern(n, new Key(SubExpr.class, null, lhs, rhs));
+    }
+
+    @Override
+    public ExprAST visitMulExpr(MulExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new MulExpr(lhs, rhs);
+        return this.intern(n, new Key(MulExpr.class, null, lhs, rhs));
+    }
+
+    @Override
+    public ExprAST visitDivExpr(DivExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new DivExpr(lhs, rhs);
+        return this.intern(n, new Key(DivExpr.class, null, lhs, rhs));
+    }
+
+    @Override
+    public ExprAST visitRemExpr(RemExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new RemExpr(lhs, rhs);
+        return this.intern(n, new Key(RemExpr.class, null, lhs, rhs));
+    }
+
+    @Override
+    public ExprAST visitShlExpr(ShlExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new ShlExpr(lhs, rhs);
+        return this.intern(n, new Key(ShlExpr.class, null, lhs, rhs));
+    }
+
+    @Override
+    public ExprAST visitSraExpr(SraExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new SraExpr(lhs, rhs);
+        return this.intern(n, new Key(SraExpr.class, null, lhs, rhs));
+    }
+
+    @Override
+    public ExprAST visitSrlExpr(SrlExpr e) {
+        final ExprAST lhs = this.get(e.lhs);
+        final ExprAST rhs = this.get(e.rhs);
+        final ExprAST n = lhs == e.lhs && rhs == e.rhs ? e : new SrlExpr(lhs, rhs);
+        return this.intern(n, new Key(SrlExpr.class, null, lhs, rhs));
+    }
+
+    @Override
+    public ExprAST visitCallExpr(CallExpr e) {
+        final ExprAST fn = this.get(e.fn);
+        boolean changed = fn != e.fn;
+
+        final ExprAST[] args = new ExprAST[e.args.length];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = this.get(e.args[i]);
+            changed |= args[i] != e.args[i];
+        }
+
+        return changed ? new CallExpr(fn, args) : e;
+    }
+}
@@ -0,0 +1,630 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+
+import static com.ymcmp.eralloc.InstrBuffer.*;
+import static com.ymcmp.eralloc.Register.*;
+
+/**
+ * Straight-line code on an unlimited number of virtual registers, which is
+ * what the allocators other than {@link Strategy#ERSHOV} work on.
+ *
+ * Operands are the same as the ones of {@link InstrBuffer}, except that REG
+ * operands are virtual registers, MEM operands only have a base (a virtual
+ * register or {@link #FRAME}) and a displacement, and SLOT operands refer to
+ * the frame slot of a spilled virtual register. Virtual registers can be
+ * fixed to a register, which is how the registers that some instructions
+ * are hardwired to are dealt with. Those are also used as the implicit
+ * operands of instructions (eax and edx of idiv, the clobbered registers of
+ * a call).
+ */
+final class VirtualCode {
+
+    public static final int SLOT = 5;
+
+    // the base of memory operands relative to the frame pointer
+    public static final int FRAME = -1;
+
+    private static final int[] NO_VREGS = new int[0];
+
+    final Target target;
+
+    private Opcode[] opcodes = new Opcode[64];
+    private int[] counts = new int[64];
+    private int[] kinds = new int[64 * MAX_OPERANDS];
+    private int[] values = new int[64 * MAX_OPERANDS];
+    private int[] disps = new int[64 * MAX_OPERANDS];
+    private String[] symbols = new String[64 * MAX_OPERANDS];
+    private int[][] implicitUses = new int[64][];
+    private int[][] implicitDefs = new int[64][];
+    private int size;
+
+    // the register each virtual register is fixed to (-1 if it is not), and
+    // whether it is a temporary introduced by spilling (which must not be
+    // spilled again)
+    private int[] fixed = new int[64];
+    private final BitSet temps = new BitSet();
+    private int vregCount;
+
+    // the spill slot of each virtual register (-1 if it is not spilled)
+    private int[] slots = new int[64];
+    private int slotCount;
+
+    // live intervals, filled in by analyze. Each instruction i reads its
+    // operands at 2i and writes them at 2i + 1.
+    private int[] starts;
+    private int[] ends;
+
+    public VirtualCode(Target target) {
+        this.target = target;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int vregCount() {
+        return this.vregCount;
+    }
+
+    public int newVreg() {
+        return this.newVreg(-1);
+    }
+
+    public int fixedVreg(Register r) {
+        return this.newVreg(r.ordinal());
+    }
+
+    private int newVreg(int reg) {
+        if (this.vregCount == this.fixed.length) {
+            this.fixed = Arrays.copyOf(this.fixed, this.vregCount * 2);
+            this.slots = Arrays.copyOf(this.slots, this.vregCount * 2);
+        }
+        this.fixed[this.vregCount] = reg;
+        this.slots[this.vregCount] = -1;
+        return this.vregCount++;
+    }
+
+    /**
+     * Returns the register the virtual register is fixed to, -1 if it can be
+     * in any register.
+     */
+    public int fixedOf(int v) {
+        return this.fixed[v];
+    }
+
+    public boolean isTemp(int v) {
+        return this.temps.get(v);
+    }
+
+    public VirtualCode begin(Opcode op) {
+        if (this.size == this.opcodes.length) {
+            final int n = this.size * 2;
+            this.opcodes = Arrays.copyOf(this.opcodes, n);
+            this.counts = Arrays.copyOf(this.counts, n);
+            this.kinds = Arrays.copyOf(this.kinds, n * MAX_OPERANDS);
+            this.values = Arrays.copyOf(this.values, n * MAX_OPERANDS);
+            this.disps = Arrays.copyOf(this.disps, n * MAX_OPERANDS);
+            this.symbols = Arrays.copyOf(this.symbols, n * MAX_OPERANDS);
+            this.implicitUses = Arrays.copyOf(this.implicitUses, n);
+            this.implicitDefs = Arrays.copyOf(this.implicitDefs, n);
+        }
+
+        final int i = this.size++;
+        this.opcodes[i] = op;
+        this.counts[i] = 0;
+        this.implicitUses[i] = NO_VREGS;
+        this.implicitDefs[i] = NO_VREGS;
+        return this;
+    }
+
+    private int operand(int kind) {
+        final int i = this.size - 1;
+        final int j = i * MAX_OPERANDS + this.counts[i]++;
+        this.kinds[j] = kind;
+        this.symbols[j] = null;
+        return j;
+    }
+
+    public VirtualCode vreg(int v) {
+        this.values[this.operand(REG)] = v;
+        return this;
+    }
+
+    public VirtualCode imm(int value) {
+        this.values[this.operand(IMM)] = value;
+        return this;
+    }
+
+    public VirtualCode sym(String name) {
+        this.symbols[this.operand(SYM)] = name;
+        return this;
+    }
+
+    /**
+     * Appends a memory operand [base + disp], base being a virtual register
+     * or {@link #FRAME}.
+     */
+    public VirtualCode mem(int base, int disp) {
+        final int j = this.operand(MEM);
+        this.values[j] = base;
+        this.disps[j] = disp;
+        return this;
+    }
+
+    public VirtualCode slot(int slot) {
+        this.values[this.operand(SLOT)] = slot;
+        return this;
+    }
+
+    /**
+     * Sets the virtual registers the last instruction reads without naming
+     * them.
+     */
+    public VirtualCode uses(int... vregs) {
+        this.implicitUses[this.size - 1] = vregs;
+        return this;
+    }
+
+    /**
+     * Sets the virtual registers the last instruction writes (or clobbers)
+     * without naming them.
+     */
+    public VirtualCode defs(int... vregs) {
+        this.implicitDefs[this.size - 1] = vregs;
+        return this;
+    }
+
+    public Opcode opcode(int i) {
+        return this.opcodes[i];
+    }
+
+    public int operandCount(int i) {
+        return this.counts[i];
+    }
+
+    public int kind(int i, int k) {
+        return this.kinds[i * MAX_OPERANDS + k];
+    }
+
+    /**
+     * Returns the virtual register of a REG operand, the base of a MEM
+     * operand, the value of an IMM operand, or the slot of a SLOT operand.
+     */
+    public int value(int i, int k) {
+        return this.values[i * MAX_OPERANDS + k];
+    }
+
+    public int disp(int i, int k) {
+        return this.disps[i * MAX_OPERANDS + k];
+    }
+
+    public String symbol(int i, int k) {
+        return this.symbols[i * MAX_OPERANDS + k];
+    }
+
+    public int[] implicitUses(int i) {
+        return this.implicitUses[i];
+    }
+
+    public int[] implicitDefs(int i) {
+        return this.implicitDefs[i];
+    }
+
+    /**
+     * Returns true if the operand is read. This includes the base register
+     * of a memory operand, even when the memory itself is written.
+     */
+    public boolean reads(int i, int k) {
+        switch (this.opcodes[i]) {
+        case MOV:
+        case LEA:
+            return k != 0 || this.kind(i, k) != REG;
+        case IMUL:
+            return k != 0 || this.counts[i] == 2 || this.kind(i, k) != REG;
+        case POP:
+            return this.kind(i, k) != REG;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Returns true if the operand is written.
+     */
+    public boolean writes(int i, int k) {
+        if (k != 0)
+            return this.opcodes[i] == Opcode.XCHG;
+
+        switch (this.opcodes[i]) {
+        case PUSH:
+        case CALL:
+        case IDIV:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Computes the live interval of every virtual register. Since the code
+     * is straight-line, it simply spans from the first write to the last
+     * read.
+     */
+    public void analyze() {
+        final int n = this.vregCount;
+        this.starts = new int[n];
+        this.ends = new int[n];
+        Arrays.fill(this.starts, Integer.MAX_VALUE);
+        Arrays.fill(this.ends, -1);
+
+        for (int i = 0; i < this.size; ++i) {
+            for (int k = 0; k < this.counts[i]; ++k) {
+                final int kind = this.kind(i, k);
+                final int v = this.value(i, k);
+                if (kind == MEM && v != FRAME) {
+                    this.live(v, 2 * i);
+                } else if (kind == REG) {
+                    if (this.reads(i, k))
+                        this.live(v, 2 * i);
+                    if (this.writes(i, k))
+                        this.live(v, 2 * i + 1);
+                }
+            }
+            for (final int v : this.implicitUses[i])
+                this.live(v, 2 * i);
+            for (final int v : this.implicitDefs[i])
+                this.live(v, 2 * i + 1);
+        }
+    }
+
+    private void live(int v, int pos) {
+        this.starts[v] = Math.min(this.starts[v], pos);
+        this.ends[v] = Math.max(this.ends[v], pos);
+    }
+
+    /**
+     * Returns where the virtual register is first written, or
+     * Integer.MAX_VALUE if it does not appear in the code.
+     */
+    public int startOf(int v) {
+        return this.starts[v];
+    }
+
+    public int endOf(int v) {
+        return this.ends[v];
+    }
+
+    /**
+     * Returns true if the instruction is a move between two virtual
+     * registers, which is free if both end up in the same register.
+     */
+    public boolean isMove(int i) {
+        return this.opcodes[i] == Opcode.MOV && this.counts[i] == 2
+                && this.kind(i, 0) == REG && this.kind(i, 1) == REG;
+    }
+
+    /**
+     * Returns the instruction that computes each virtual register if it is
+     * a leaf that can be computed again instead of being reloaded, -1
+     * otherwise.
+     */
+    private int[] leafDefs() {
+        final int[] defs = new int[this.vregCount];
+        Arrays.fill(defs, -1);
+        for (int i = 0; i < this.size; ++i) {
+            for (int k = 0; k < this.counts[i]; ++k) {
+                if (this.kind(i, k) == REG && this.writes(i, k)) {
+                    final int v = this.value(i, k);
+                    defs[v] = defs[v] == -1 ? i : -2;
+                }
+            }
+        }
+
+        for (int v = 0; v < this.vregCount; ++v) {
+            final int def = defs[v];
+            if (def < 0 || this.counts[def] != 2) {
+                defs[v] = -1;
+                continue;
+            }
+
+            final int kind = this.kind(def, 1);
+            final boolean leaf = this.opcodes[def] == Opcode.MOV && (kind == IMM || kind == SYM)
+                    || this.opcodes[def] == Opcode.LEA && kind == MEM && this.value(def, 1) == FRAME;
+            if (!leaf)
+                defs[v] = -1;
+        }
+        return defs;
+    }
+
+    /**
+     * Returns a copy of the code where the spilled virtual registers live
+     * in frame slots. They are used directly as memory operands where the
+     * instruction allows it, everywhere else they are loaded into (and
+     * stored from) new temporaries right around the instruction. If remat
+     * is set, leaves are computed again instead of being kept in a slot.
+     */
+    public VirtualCode spill(BitSet spilled, boolean remat) {
+        final VirtualCode out = new VirtualCode(this.target);
+        out.fixed = Arrays.copyOf(this.fixed, this.fixed.length);
+        out.slots = Arrays.copyOf(this.slots, this.slots.length);
+        out.temps.or(this.temps);
+        out.vregCount = this.vregCount;
+        out.slotCount = this.slotCount;
+
+        final int[] leaves = remat ? this.leafDefs() : new int[this.vregCount];
+        if (!remat)
+            Arrays.fill(leaves, -1);
+        for (int v = 0; v < this.vregCount; ++v) {
+            if (!spilled.get(v))
+                leaves[v] = -1;
+            else if (leaves[v] < 0)
+                out.slots[v] = out.slotCount++;
+        }
+
+        // the temporary of each spilled virtual register in the current
+        // instruction
+        final int[] temps = new int[this.vregCount];
+        Arrays.fill(temps, -1);
+        final List<Integer> stores = new ArrayList<>();
+
+        for (int i = 0; i < this.size; ++i) {
+            final Opcode op = this.opcodes[i];
+            final int count = this.counts[i];
+
+            // the leaves are computed where they are used instead
+            if (this.isLeafDef(i, leaves))
+                continue;
+            if (op == Opcode.EXTERN && i + 1 < this.size && this.isLeafDef(i + 1, leaves))
+                continue;
+
+            // mov v, x where v is spilled is a store to its slot
+            if (op == Opcode.MOV && this.isSpilled(i, 0, out)) {
+                final int kind = this.kind(i, 1);
+                if (kind == IMM || kind == REG && !spilled.get(this.value(i, 1))) {
+                    out.begin(op).slot(out.slots[this.value(i, 0)]);
+                    this.copyOperand(out, i, 1);
+                    continue;
+                }
+            }
+
+            // at most one operand can be in memory
+            int folded = -1;
+            if (!this.hasMemoryOperand(i)) {
+                for (final int k : this.foldableOperands(i)) {
+                    if (this.isSpilled(i, k, out)) {
+                        folded = k;
+                        break;
+                    }
+                }
+            }
+
+            for (int k = 0; k < count; ++k) {
+                final int v = this.value(i, k);
+                if (k == folded || !this.isVregOperand(i, k) || !spilled.get(v) || temps[v] >= 0)
+                    continue;
+
+                final int t = out.newVreg();
+                out.temps.set(t);
+                temps[v] = t;
+                if (this.reads(i, k))
+                    this.reload(out, v, t, leaves[v]);
+                if (this.kind(i, k) == REG && this.writes(i, k))
+                    stores.add(v);
+            }
+
+            out.begin(op);
+            for (int k = 0; k < count; ++k) {
+                final int v = this.value(i, k);
+                if (k == folded)
+                    out.slot(out.slots[v]);
+                else if (this.isVregOperand(i, k) && temps[v] >= 0 && this.kind(i, k) == REG)
+                    out.vreg(temps[v]);
+                else if (this.isVregOperand(i, k) && temps[v] >= 0)
+                    out.mem(temps[v], this.disp(i, k));
+                else
+                    this.copyOperand(out, i, k);
+            }
+            out.uses(this.implicitUses[i]);
+            out.defs(this.implicitDefs[i]);
+
+            for (final int v : stores)
+                out.begin(Opcode.MOV).slot(out.slots[v]).vreg(temps[v]);
+            stores.clear();
+            for (int k = 0; k < count; ++k)
+                if (this.isVregOperand(i, k))
+                    temps[this.value(i, k)] = -1;
+        }
+        return out;
+    }
+
+    /**
+     * Returns true if the operand names a virtual register, either as a
+     * register or as the base of a memory operand.
+     */
+    private boolean isVregOperand(int i, int k) {
+        final int kind = this.kind(i, k);
+        return kind == REG || kind == MEM && this.value(i, k) != FRAME;
+    }
+
+    /**
+     * Returns true if the operand is a register that lives in a slot of out.
+     */
+    private boolean isSpilled(int i, int k, VirtualCode out) {
+        return this.kind(i, k) == REG && out.slots[this.value(i, k)] >= 0;
+    }
+
+    private boolean isLeafDef(int i, int[] leaves) {
+        return this.counts[i] == 2 && this.kind(i, 0) == REG && leaves[this.value(i, 0)] == i;
+    }
+
+    private boolean hasMemoryOperand(int i) {
+        for (int k = 0; k < this.counts[i]; ++k)
+            if (this.kind(i, k) == MEM || this.kind(i, k) == SLOT)
+                return true;
+        return false;
+    }
+
+    private static final int[] SOURCE = { 1 };
+    private static final int[] SOURCE_OR_DESTINATION = { 1, 0 };
+    private static final int[] DESTINATION = { 0 };
+
+    /**
+     * Returns the operands that could be in memory instead of a register.
+     */
+    private int[] foldableOperands(int i) {
+        switch (this.opcodes[i]) {
+        case MOV:
+        case IMUL:
+            return SOURCE;
+        case ADD:
+        case SUB:
+        case AND:
+            return SOURCE_OR_DESTINATION;
+        case SHL:
+        case SAR:
+        case SHR:
+        case PUSH:
+            return DESTINATION;
+        default:
+            return NO_VREGS;
+        }
+    }
+
+    private void reload(VirtualCode out, int v, int t, int leaf) {
+        if (leaf < 0) {
+            out.begin(Opcode.MOV).vreg(t).slot(out.slots[v]);
+            return;
+        }
+
+        if (this.kind(leaf, 1) == SYM)
+            out.begin(Opcode.EXTERN).sym(this.symbol(leaf, 1));
+        out.begin(this.opcodes[leaf]).vreg(t);
+        this.copyOperand(out, leaf, 1);
+    }
+
+    private void copyOperand(VirtualCode out, int i, int k) {
+        final int j = i * MAX_OPERANDS + k;
+        final int o = out.operand(this.kinds[j]);
+        out.values[o] = this.values[j];
+        out.disps[o] = this.disps[j];
+        out.symbols[o] = this.symbols[j];
+    }
+
+    /**
+     * Returns true if the virtual register is kept in a frame slot.
+     */
+    public boolean isSpilled(int v) {
+        return this.slots[v] >= 0;
+    }
+
+    /**
+     * Turns the code into machine instructions, colors being the register
+     * each virtual register ended up in. Moves within the same register are
+     * dropped. The slots of values that are never live at the same time
+     * share the same place in the frame, below the callee saved registers
+     * that need to be saved.
+     */
+    public CodegenResult assemble(int[] colors, CodegenOptions opts) {
+        final InstrBuffer instrs = new InstrBuffer(this.target);
+        final int wordSize = this.target.wordSize();
+        final int frameOffset = (opts.getFrameOffset() + wordSize - 1) / wordSize * wordSize;
+
+        final List<Register> saved = new ArrayList<>();
+        final BitSet used = new BitSet();
+        for (int v = 0; v < this.vregCount; ++v)
+            if (colors[v] >= 0)
+                used.set(colors[v]);
+        for (final Register r : opts.getRegisters())
+            if (used.get(r.ordinal()) && this.target.isCalleeSaved(r))
+                saved.add(r);
+
+        // where each slot is last used
+        final int[] lasts = new int[this.slotCount];
+        for (int i = 0; i < this.size; ++i)
+            for (int k = 0; k < this.counts[i]; ++k)
+                if (this.kind(i, k) == SLOT)
+                    lasts[this.value(i, k)] = i;
+
+        final BitSet frame = new BitSet();
+        frame.set(0, saved.size());
+        final int[] offsets = new int[this.slotCount];
+        int slotCount = saved.size();
+
+        int prologue = -1;
+        if (opts.isPrologue()) {
+            instrs.begin(Opcode.PUSH).reg(EBP);
+            instrs.begin(Opcode.MOV).reg(EBP).reg(ESP);
+            prologue = instrs.size();
+            instrs.begin(Opcode.SUB).reg(ESP).imm(0);
+        }
+        for (int s = 0; s < saved.size(); ++s)
+            instrs.begin(Opcode.MOV).mem(EBP, -(frameOffset + (s + 1) * wordSize)).reg(saved.get(s));
+
+        int spills = 0;
+        for (int i = 0; i < this.size; ++i) {
+            final int count = this.counts[i];
+            if (this.isMove(i) && colors[this.value(i, 0)] == colors[this.value(i, 1)])
+                continue;
+
+            // a slot is taken when it is first stored to
+            for (int k = 0; k < count; ++k) {
+                if (this.kind(i, k) == SLOT && offsets[this.value(i, k)] == 0) {
+                    final int slot = frame.nextClearBit(0);
+                    frame.set(slot);
+                    slotCount = Math.max(slotCount, slot + 1);
+                    offsets[this.value(i, k)] = frameOffset + (slot + 1) * wordSize;
+                    spills++;
+                }
+            }
+
+            instrs.begin(this.opcodes[i]);
+            for (int k = 0; k < count; ++k) {
+                final int v = this.value(i, k);
+                switch (this.kind(i, k)) {
+                case REG:
+                    instrs.reg(colors[v]);
+                    break;
+                case IMM:
+                    instrs.imm(v);
+                    break;
+                case SYM:
+                    instrs.sym(this.symbol(i, k));
+                    break;
+                case MEM:
+                    instrs.mem(v == FRAME ? EBP.ordinal() : colors[v], NO_REG, 1, this.disp(i, k));
+                    break;
+                case SLOT:
+                    instrs.mem(EBP, -offsets[v]);
+                    break;
+                default:
+                    throw new AssertionError();
+                }
+            }
+
+            for (int k = 0; k < count; ++k)
+                if (this.kind(i, k) == SLOT && lasts[this.value(i, k)] == i)
+                    frame.clear((offsets[this.value(i, k)] - frameOffset) / wordSize - 1);
+        }
+
+        for (int s = 0; s < saved.size(); ++s)
+            instrs.begin(Opcode.MOV).reg(saved.get(s)).mem(EBP, -(frameOffset + (s + 1) * wordSize));
+
+        final int frameSize = frameOffset + slotCount * wordSize;
+        if (prologue >= 0) {
+            instrs.begin(Opcode.MOV).reg(ESP).reg(EBP);
+            instrs.begin(Opcode.POP).reg(EBP);
+
+            final int alignment = this.target.stackAlignment();
+            final int size = (frameSize + alignment - 1) / alignment * alignment;
+            if (size != 0) {
+                instrs.setValue(prologue, 1, size);
+            } else {
+                final BitSet removed = new BitSet();
+                removed.set(prologue);
+                instrs.removeAll(removed);
+            }
+        }
+        return new CodegenResult(instrs, frameSize, spills);
+    }
+}
@@ -0,0 +1,423 @@
+package com.ymcmp.eralloc;
+
+import java.util.*;
+import java.util.function.IntBinaryOperator;
+import com.ymcmp.eralloc.ast.*;
+
+import static com.ymcmp.eralloc.Register.*;
+
+/**
+ * Lowers an expression to {@link VirtualCode}. Every node gets a new virtual
+ * register for its value, and the operands are evaluated in the same order
+ * as {@link EmitX86} evaluates them (the one with the larger Ershov number
+ * first), which keeps the number of values live at the same time down.
+ *
+ * The registers that instructions are hardwired to are fixed virtual
+ * registers that are only live from the move into them to the instruction
+ * (or from the instruction to the move out of them). The value ends up in
+ * the first of the allocatable registers.
+ */
+final class VirtualLowering implements ExprAST.Visitor<Void> {
+
+    private final Target target;
+    private final int wordSize;
+    private final Register result;
+    private final ErshovLabel labels;
+    private final VirtualCode code;
+
+    // constants (and symbols on x86) are used as immediate operands
+    private final boolean immediates;
+    private final boolean symbolImmediates;
+
+    // pending work in LIFO order, same as in EmitX86
+    private Object[] work = new Object[32];
+    private int[] workIds = new int[32];
+    private int pending;
+
+    // the number of the node being visited
+    private int current;
+
+    // the virtual registers of the operands evaluated so far
+    private int[] values = new int[32];
+    private int valueCount;
+
+    // the virtual register of each shared value once it is evaluated
+    private final int[] shared;
+
+    // bytes pushed by the calls that are still being set up
+    private int pushed;
+
+    public VirtualLowering(ErshovLabel labels, CodegenOptions opts) {
+        this.target = opts.getTarget();
+        this.wordSize = this.target.wordSize();
+        this.result = opts.getRegisters().get(0);
+        this.labels = labels;
+        this.code = new VirtualCode(this.target);
+        this.immediates = opts.isImmediates();
+        this.symbolImmediates = this.immediates && this.target == Target.X86;
+
+        this.shared = new int[labels.sharedCount()];
+        Arrays.fill(this.shared, -1);
+    }
+
+    public VirtualCode lower(ExprAST root) {
+        // the root is always the first node to be numbered
+        this.schedule(root, 0);
+        while (this.pending > 0) {
+            final int slot = --this.pending;
+            final Object next = this.work[slot];
+            this.work[slot] = null;
+
+            if (next instanceof ExprAST) {
+                this.visit((ExprAST) next, this.workIds[slot]);
+            } else {
+                ((Runnable) next).run();
+            }
+        }
+
+        this.code.begin(Opcode.MOV).vreg(this.code.fixedVreg(this.result)).vreg(this.pop());
+        return this.code;
+    }
+
+    private void visit(ExprAST e, int id) {
+        // shared values are evaluated wherever they are needed first and
+        // simply stay in their virtual register
+        final int def = this.labels.definitionOf(id);
+        final int index = this.labels.sharedIndexOf(def);
+        if (index >= 0) {
+            if (this.shared[index] >= 0) {
+                this.push(this.shared[index]);
+                return;
+            }
+            this.schedule(() -> {
+                this.shared[index] = this.values[this.valueCount - 1];
+            });
+        }
+
+        this.current = def;
+        e.accept(this);
+    }
+
+    private void schedule(Object next, int id) {
+        if (this.pending == this.work.length) {
+            this.work = Arrays.copyOf(this.work, this.pending * 2);
+            this.workIds = Arrays.copyOf(this.workIds, this.pending * 2);
+        }
+
+        this.work[this.pending] = next;
+        this.workIds[this.pending] = id;
+        this.pending++;
+    }
+
+    private void schedule(Runnable next) {
+        this.schedule(next, -1);
+    }
+
+    private void push(int v) {
+        if (this.valueCount == this.values.length)
+            this.values = Arrays.copyOf(this.values, this.valueCount * 2);
+        this.values[this.valueCount++] = v;
+    }
+
+    private int pop() {
+        return this.values[--this.valueCount];
+    }
+
+    private boolean isImmediate(ExprAST e) {
+        return this.immediates && (e instanceof Numeric || this.symbolImmediates && e instanceof GlobalValue);
+    }
+
+    /**
+     * Evaluates both operands (in Ershov order), then fn is called with their
+     * virtual registers and returns the one of the result.
+     */
+    private void lowerBinary(ExprAST lhs, int lhsId, ExprAST rhs, int rhsId, IntBinaryOperator fn) {
+        final int lhsP = this.labels.labelOf(lhsId);
+        final int rhsP = this.labels.labelOf(rhsId);
+        final boolean swapped = lhsP < rhsP || lhsP == rhsP
+                && this.labels.containsCall(rhsId) && !this.labels.containsCall(lhsId);
+
+        this.schedule(() -> {
+            final int second = this.pop();
+            final int first = this.pop();
+            this.push(swapped
+                    ? fn.applyAsInt(second, first)
+                    : fn.applyAsInt(first, second));
+        });
+        if (swapped) {
+            this.schedule(lhs, lhsId);
+            this.schedule(rhs, rhsId);
+        } else {
+            this.schedule(rhs, rhsId);
+            this.schedule(lhs, lhsId);
+        }
+    }
+
+    private void lowerBinary(ExprAST lhs, ExprAST rhs, IntBinaryOperator fn) {
+        final int lhsId = this.labels.firstChild(this.current);
+        final int rhsId = this.labels.nextSibling(lhsId);
+        this.lowerBinary(lhs, lhsId, rhs, rhsId, fn);
+    }
+
+    /**
+     * Lowers op as a two operand instruction: the lhs is copied into the
+     * result, which then gets combined with the rhs.
+     */
+    private void lowerArithmetic(ExprAST lhs, ExprAST rhs, Opcode op, boolean commutative) {
+        final int lhsId = this.labels.firstChild(this.current);
+        final int rhsId = this.labels.nextSibling(lhsId);
+        if (this.isImmediate(rhs)) {
+            this.lowerImmediate(lhs, lhsId, rhs, op);
+            return;
+        }
+        if (commutative && this.isImmediate(lhs)) {
+            this.lowerImmediate(rhs, rhsId, lhs, op);
+            return;
+        }
+
+        this.lowerBinary(lhs, lhsId, rhs, rhsId, (l, r) -> {
+            final int d = this.code.newVreg();
+            this.code.begin(Opcode.MOV).vreg(d).vreg(l);
+            this.code.begin(op).vreg(d).vreg(r);
+            return d;
+        });
+    }
+
+    private void lowerImmediate(ExprAST value, int valueId, ExprAST imm, Opcode op) {
+        this.schedule(() -> {
+            final int v = this.pop();
+            final int d = this.code.newVreg();
+            if (imm instanceof GlobalValue)
+                this.code.begin(Opcode.EXTERN).sym(((GlobalValue) imm).value);
+
+            // only imul has a three operand form
+            if (op == Opcode.IMUL)
+                this.code.begin(op).vreg(d).vreg(v);
+            else
+                this.code.begin(Opcode.MOV).vreg(d).vreg(v).begin(op).vreg(d);
+
+            if (imm instanceof GlobalValue)
+                this.code.sym(((GlobalValue) imm).value);
+            else if (op.isShift())
+                this.code.imm(((Numeric) imm).value & (8 * this.wordSize - 1));
+            else
+                this.code.imm(((Numeric) imm).value);
+            this.push(d);
+        });
+        this.schedule(value, valueId);
+    }
+
+    @Override
+    public Void visitNumeric(Numeric e) {
+        final int v = this.code.newVreg();
+        this.code.begin(Opcode.MOV).vreg(v).imm(e.value);
+        this.push(v);
+        return null;
+    }
+
+    @Override
+    public Void visitFrameIndex(FrameIndex e) {
+        final int v = this.code.newVreg();
+        this.code.begin(Opcode.LEA).vreg(v).mem(VirtualCode.FRAME, -e.value);
+        this.push(v);
+        return null;
+    }
+
+    @Override
+    public Void visitGlobalValue(GlobalValue e) {
+        final int v = this.code.newVreg();
+        this.code.begin(Opcode.EXTERN).sym(e.value);
+        this.code.begin(Opcode.MOV).vreg(v).sym(e.value);
+        this.push(v);
+        return null;
+    }
+
+    @Override
+    public Void visitLoadExpr(LoadExpr e) {
+        this.schedule(() -> {
+            final int p = this.pop();
+            final int v = this.code.newVreg();
+            this.code.begin(Opcode.MOV).vreg(v).mem(p, 0);
+            this.push(v);
+        });
+        this.schedule(e.ptr, this.labels.firstChild(this.current));
+        return null;
+    }
+
+    @Override
+    public Void visitStoreExpr(StoreExpr e) {
+        final int ptrId = this.labels.firstChild(this.current);
+        final int valueId = this.labels.nextSibling(ptrId);
+        this.lowerBinary(e.value, valueId, e.ptr, ptrId, (v, p) -> {
+            this.code.begin(Opcode.MOV).mem(p, 0).vreg(v);
+            return v;
+        });
+        return null;
+    }
+
+    @Override
+    public Void visitAddExpr(AddExpr e) {
+        this.lowerArithmetic(e.lhs, e.rhs, Opcode.ADD, true);
+        return null;
+    }
+
+    @Override
+    public Void visitSubExpr(SubExpr e) {
+        this.lowerArithmetic(e.lhs, e.rhs, Opcode.SUB, false);
+        return null;
+    }
+
+    @Override
+    public Void visitMulExpr(MulExpr e) {
+        this.lowerArithmetic(e.lhs, e.rhs, Opcode.IMUL, true);
+        return null;
+    }
+
+    private void lowerDivRem(ExprAST lhs, ExprAST rhs, boolean div) {
+        this.lowerBinary(lhs, rhs, (divident, divisor) -> {
+            // the divident goes in eax, which is sign extended into edx, and
+            // the quotient and remainder come out of them. The divisor is
+            // live across all of that, so it cannot be in either of them.
+            final int eax = this.code.fixedVreg(EAX);
+            final int edx = this.code.fixedVreg(EDX);
+            this.code.begin(Opcode.MOV).vreg(eax).vreg(divident);
+            this.code.begin(this.target == Target.X64 ? Opcode.CQO : Opcode.CDQ).uses(eax).defs(edx);
+            this.code.begin(Opcode.IDIV).vreg(divisor).uses(eax, edx).defs(eax, edx);
+
+            final int v = this.code.newVreg();
+            this.code.begin(Opcode.MOV).vreg(v).vreg(div ? eax : edx);
+            return v;
+        });
+    }
+
+    @Override
+    public Void visitDivExpr(DivExpr e) {
+        this.lowerDivRem(e.lhs, e.rhs, true);
+        return null;
+    }
+
+    @Override
+    public Void visitRemExpr(RemExpr e) {
+        this.lowerDivRem(e.lhs, e.rhs, false);
+        return null;
+    }
+
+    private void lowerShift(ExprAST lhs, ExprAST rhs, Opcode op) {
+        // only a constant amount can be an immediate
+        if (this.immediates && rhs instanceof Numeric) {
+            this.lowerImmediate(lhs, this.labels.firstChild(this.current), rhs, op);
+            return;
+        }
+
+        this.lowerBinary(lhs, rhs, (value, shamt) -> {
+            // the amount is moved into ecx last, so that only the result has
+            // to stay out of it
+            final int d = this.code.newVreg();
+            final int ecx = this.code.fixedVreg(ECX);
+            this.code.begin(Opcode.MOV).vreg(d).vreg(value);
+            this.code.begin(Opcode.MOV).vreg(ecx).vreg(shamt);
+            this.code.begin(op).vreg(d).vreg(ecx);
+            return d;
+        });
+    }
+
+    @Override
+    public Void visitShlExpr(ShlExpr e) {
+        this.lowerShift(e.lhs, e.rhs, Opcode.SHL);
+        return null;
+    }
+
+    @Override
+    public Void visitSraExpr(SraExpr e) {
+        this.lowerShift(e.lhs, e.rhs, Opcode.SAR);
+        return null;
+    }
+
+    @Override
+    public Void visitSrlExpr(SrlExpr e) {
+        this.lowerShift(e.lhs, e.rhs, Opcode.SHR);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(CallExpr e) {
+        final List<Register> argRegs = this.target.argumentRegisters();
+        final int inRegs = Math.min(e.args.length, argRegs.size());
+        final int onStack = e.args.length - inRegs;
+
+        // the stack must be aligned once the arguments are pushed
+        final int argBytes = this.wordSize * onStack;
+        final int padding = (this.pushed + argBytes) % this.target.stackAlignment() == 0 ? 0 : this.wordSize;
+
+        final int fnId = this.labels.firstChild(this.current);
+        final int[] ids = new int[e.args.length];
+        final int[] args = new int[e.args.length];
+        final boolean[] calls = new boolean[e.args.length];
+        for (int i = 0, id = fnId; i < e.args.length; ++i) {
+            id = this.labels.nextSibling(id);
+            ids[i] = id;
+            args[i] = this.labels.labelOf(id);
+            calls[i] = this.labels.containsCall(id);
+        }
+        final Integer[] order = ErshovLabel.registerArgumentOrder(args, calls, inRegs);
+
+        // work is done in LIFO order, so this is scheduled backwards: the
+        // stack arguments (right to left), the register arguments, and then
+        // the function.
+        this.schedule(() -> {
+            final int fn = this.pop();
+            final int[] values = new int[inRegs];
+            for (int k = inRegs; k-- > 0; )
+                values[order[k]] = this.pop();
+
+            // the argument registers are only set right before the call
+            final int[] uses = new int[inRegs];
+            for (int i = 0; i < inRegs; ++i) {
+                uses[i] = this.code.fixedVreg(argRegs.get(i));
+                this.code.begin(Opcode.MOV).vreg(uses[i]).vreg(values[i]);
+            }
+
+            // every caller saved register is clobbered, eax has the result
+            final int ret = this.code.fixedVreg(EAX);
+            final List<Integer> defs = new ArrayList<>();
+            defs.add(ret);
+            for (final Register r : Register.values())
+                if (r != EAX && this.target.isCallerSaved(r))
+                    defs.add(this.code.fixedVreg(r));
+            this.code.begin(Opcode.CALL).vreg(fn).uses(uses)
+                    .defs(defs.stream().mapToInt(Integer::intValue).toArray());
+
+            if (argBytes + padding != 0)
+                this.code.begin(Opcode.ADD).vreg(this.code.fixedVreg(ESP)).imm(argBytes + padding);
+            this.pushed -= argBytes + padding;
+
+            final int v = this.code.newVreg();
+            this.code.begin(Opcode.MOV).vreg(v).vreg(ret);
+            this.push(v);
+        });
+        this.schedule(e.fn, fnId);
+
+        for (int k = inRegs; k-- > 0; ) {
+            final int i = order[k];
+            this.schedule(e.args[i], ids[i]);
+        }
+
+        for (int i = inRegs; i < e.args.length; ++i) {
+            final ExprAST arg = e.args[i];
+            this.schedule(() -> {
+                if (this.immediates && arg instanceof Numeric)
+                    this.code.begin(Opcode.PUSH).imm(((Numeric) arg).value);
+                else
+                    this.code.begin(Opcode.PUSH).vreg(this.pop());
+                this.pushed += this.wordSize;
+            });
+            if (!this.immediates || !(arg instanceof Numeric))
+                this.schedule(arg, ids[i]);
+        }
+
+        if (padding != 0)
+            this.code.begin(Opcode.SUB).vreg(this.code.fixedVreg(ESP)).imm(padding);
+        this.pushed += padding;
+        return null;
+    }
+}
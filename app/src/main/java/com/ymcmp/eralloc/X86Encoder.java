@@ -0,0 +1,475 @@
+package com.ymcmp.eralloc;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+import static com.ymcmp.eralloc.InstrBuffer.*;
+
+/**
+ * Encodes an {@link InstrBuffer} straight to machine code, skipping the text
+ * and the assembler. Only the forms that the code generators produce are
+ * supported. Addresses of symbols are left as zero and recorded as
+ * {@link Relocation}s, and EXTERN produces no bytes.
+ *
+ * The code either goes into a buffer that grows as needed, or into the one
+ * the caller supplies (starting at its position), in which case running out
+ * of space throws BufferOverflowException.
+ */
+public final class X86Encoder {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final Target target;
+    private final boolean growable;
+    private final List<Relocation> relocations = new ArrayList<>();
+
+    private ByteBuffer out;
+    private final int origin;
+
+    public X86Encoder(Target target) {
+        this.target = target;
+        this.growable = true;
+        this.out = ByteBuffer.allocate(DEFAULT_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+        this.origin = 0;
+    }
+
+    public X86Encoder(Target target, ByteBuffer out) {
+        this.target = target;
+        this.growable = false;
+        this.out = out.order(ByteOrder.LITTLE_ENDIAN);
+        this.origin = out.position();
+    }
+
+    /**
+     * Returns the number of bytes encoded so far.
+     */
+    public int size() {
+        return this.out.position() - this.origin;
+    }
+
+    /**
+     * Returns a read-only view of the bytes encoded so far.
+     */
+    public ByteBuffer getCode() {
+        final ByteBuffer code = this.out.duplicate();
+        code.limit(code.position()).position(this.origin);
+        return code.slice().asReadOnlyBuffer();
+    }
+
+    public byte[] toByteArray() {
+        final byte[] bytes = new byte[this.size()];
+        this.getCode().get(bytes);
+        return bytes;
+    }
+
+    public List<Relocation> getRelocations() {
+        return Collections.unmodifiableList(this.relocations);
+    }
+
+    /**
+     * Discards everything encoded so far.
+     */
+    public void reset() {
+        this.out.position(this.origin);
+        this.relocations.clear();
+    }
+
+    /**
+     * Appends every instruction in the buffer.
+     */
+    public void encode(InstrBuffer instrs) {
+        if (instrs.getTarget() != this.target)
+            throw new IllegalArgumentException("Expected code for " + this.target + " but got " + instrs.getTarget());
+
+        for (int i = 0; i < instrs.size(); ++i)
+            this.encode(instrs, i);
+    }
+
+    /**
+     * Appends the instruction at index i.
+     */
+    public void encode(InstrBuffer instrs, int i) {
+        final Opcode op = instrs.opcode(i);
+        switch (op) {
+        case EXTERN:
+            break;
+        case MOV:
+            this.encodeMov(instrs, i);
+            break;
+        case LEA:
+            this.expect(instrs, i, REG, MEM);
+            this.encodeModRM(instrs, i, true, 0x8D, instrs.reg(i, 0), 1);
+            break;
+        case XCHG:
+            this.expect(instrs, i, REG, REG);
+            this.encodeXchg(instrs, i);
+            break;
+        case ADD:
+            this.encodeArithmetic(instrs, i, 0x01, 0);
+            break;
+        case SUB:
+            this.encodeArithmetic(instrs, i, 0x29, 5);
+            break;
+        case AND:
+            this.encodeArithmetic(instrs, i, 0x21, 4);
+            break;
+        case IMUL:
+            this.encodeImul(instrs, i);
+            break;
+        case CDQ:
+            this.put(0x99);
+            break;
+        case CQO:
+            this.put(0x48);
+            this.put(0x99);
+            break;
+        case IDIV:
+            this.expectCount(instrs, i, 1);
+            this.encodeModRM(instrs, i, true, 0xF7, 7, 0);
+            break;
+        case SHL:
+            this.encodeShift(instrs, i, 4);
+            break;
+        case SHR:
+            this.encodeShift(instrs, i, 5);
+            break;
+        case SAR:
+            this.encodeShift(instrs, i, 7);
+            break;
+        case PUSH:
+            this.encodePush(instrs, i);
+            break;
+        case POP:
+            this.expect(instrs, i, REG);
+            this.encodeShort(0x58, instrs.reg(i, 0));
+            break;
+        case CALL:
+            this.expectCount(instrs, i, 1);
+            if (instrs.kind(i, 0) == IMM || instrs.kind(i, 0) == SYM)
+                throw this.unsupported(instrs, i);
+            // the operand size of indirect calls is already the word size
+            this.encodeModRM(instrs, i, false, 0xFF, 2, 0);
+            break;
+        default:
+            throw this.unsupported(instrs, i);
+        }
+    }
+
+    private void encodeMov(InstrBuffer instrs, int i) {
+        this.expectCount(instrs, i, 2);
+        final int dst = instrs.kind(i, 0);
+        final int src = instrs.kind(i, 1);
+        if (this.isAbsoluteEax(instrs, i, 1, 0)) {
+            this.put(0xA3);
+            this.putInt(instrs.value(i, 0));
+        } else if (this.isAbsoluteEax(instrs, i, 0, 1)) {
+            this.put(0xA1);
+            this.putInt(instrs.value(i, 1));
+        } else if (src == REG) {
+            this.encodeModRM(instrs, i, true, 0x89, instrs.reg(i, 1), 0);
+        } else if (dst == REG && src == MEM) {
+            this.encodeModRM(instrs, i, true, 0x8B, instrs.reg(i, 0), 1);
+        } else if (dst == REG && src == SYM && this.target == Target.X64) {
+            // the address can be anywhere, so it takes all eight bytes
+            this.encodeShort(0xB8, instrs.reg(i, 0), true);
+            this.putAddress(instrs.symbol(i, 1), 8);
+        } else if (dst == REG && this.target == Target.X86 && src != MEM) {
+            this.encodeShort(0xB8, instrs.reg(i, 0));
+            this.putImmediate32(instrs, i, 1);
+        } else if (src == IMM || src == SYM) {
+            // sign extended on x86-64
+            this.encodeModRM(instrs, i, true, 0xC7, 0, 0);
+            this.putImmediate32(instrs, i, 1);
+        } else {
+            throw this.unsupported(instrs, i);
+        }
+    }
+
+    private void encodeXchg(InstrBuffer instrs, int i) {
+        final int lhs = instrs.reg(i, 0);
+        final int rhs = instrs.reg(i, 1);
+        final int eax = Register.EAX.ordinal();
+
+        // exchanging with eax has a short form (but 90 itself is nop)
+        if (lhs == eax && rhs != eax)
+            this.encodeShort(0x90, rhs, true);
+        else if (rhs == eax && lhs != eax)
+            this.encodeShort(0x90, lhs, true);
+        else
+            this.encodeModRM(instrs, i, true, 0x87, rhs, 0);
+    }
+
+    /**
+     * Returns true if operand k is eax and operand m is an absolute address,
+     * which mov has a short form for on x86 (on x86-64 the address would
+     * have to be eight bytes).
+     */
+    private boolean isAbsoluteEax(InstrBuffer instrs, int i, int k, int m) {
+        return this.target == Target.X86
+                && instrs.kind(i, k) == REG && instrs.reg(i, k) == Register.EAX.ordinal()
+                && instrs.kind(i, m) == MEM && instrs.reg(i, m) == NO_REG && instrs.index(i, m) == NO_REG;
+    }
+
+    /**
+     * Encodes one of the classic ALU instructions, opcode being the form that
+     * goes from a register to r/m and ext the opcode extension of the forms
+     * with an immediate.
+     */
+    private void encodeArithmetic(InstrBuffer instrs, int i, int opcode, int ext) {
+        this.expectCount(instrs, i, 2);
+        final int dst = instrs.kind(i, 0);
+        final int src = instrs.kind(i, 1);
+        if (src == REG) {
+            this.encodeModRM(instrs, i, true, opcode, instrs.reg(i, 1), 0);
+        } else if (dst == REG && src == MEM) {
+            this.encodeModRM(instrs, i, true, opcode + 2, instrs.reg(i, 0), 1);
+        } else if (src == IMM && isByte(instrs.value(i, 1))) {
+            this.encodeModRM(instrs, i, true, 0x83, ext, 0);
+            this.put(instrs.value(i, 1));
+        } else if ((src == IMM || src == SYM) && dst == REG && instrs.reg(i, 0) == Register.EAX.ordinal()) {
+            // eax has a form without the ModRM byte
+            this.putRex(this.target == Target.X64, 0, NO_REG, NO_REG);
+            this.put(opcode + 4);
+            this.putImmediate32(instrs, i, 1);
+        } else if (src == IMM || src == SYM) {
+            this.encodeModRM(instrs, i, true, 0x81, ext, 0);
+            this.putImmediate32(instrs, i, 1);
+        } else {
+            throw this.unsupported(instrs, i);
+        }
+    }
+
+    private void encodeImul(InstrBuffer instrs, int i) {
+        final int count = instrs.operandCount(i);
+        if (count == 1) {
+            // edx:eax = eax * r/m
+            this.encodeModRM(instrs, i, true, 0xF7, 5, 0);
+            return;
+        }
+
+        if (instrs.kind(i, 0) != REG)
+            throw this.unsupported(instrs, i);
+        if (count == 2) {
+            if (instrs.kind(i, 1) != REG && instrs.kind(i, 1) != MEM)
+                throw this.unsupported(instrs, i);
+            this.encodeModRM(instrs, i, true, 0x0FAF, instrs.reg(i, 0), 1);
+            return;
+        }
+
+        final int imm = instrs.kind(i, 2);
+        if (instrs.kind(i, 1) == IMM || instrs.kind(i, 1) == SYM || imm != IMM && imm != SYM)
+            throw this.unsupported(instrs, i);
+        if (imm == IMM && isByte(instrs.value(i, 2))) {
+            this.encodeModRM(instrs, i, true, 0x6B, instrs.reg(i, 0), 1);
+            this.put(instrs.value(i, 2));
+        } else {
+            this.encodeModRM(instrs, i, true, 0x69, instrs.reg(i, 0), 1);
+            this.putImmediate32(instrs, i, 2);
+        }
+    }
+
+    private void encodeShift(InstrBuffer instrs, int i, int ext) {
+        this.expectCount(instrs, i, 2);
+        switch (instrs.kind(i, 1)) {
+        case REG:
+            if (instrs.reg(i, 1) != Register.ECX.ordinal())
+                throw this.unsupported(instrs, i);
+            this.encodeModRM(instrs, i, true, 0xD3, ext, 0);
+            break;
+        case IMM:
+            if (instrs.value(i, 1) == 1) {
+                this.encodeModRM(instrs, i, true, 0xD1, ext, 0);
+            } else {
+                this.encodeModRM(instrs, i, true, 0xC1, ext, 0);
+                this.put(instrs.value(i, 1));
+            }
+            break;
+        default:
+            throw this.unsupported(instrs, i);
+        }
+    }
+
+    private void encodePush(InstrBuffer instrs, int i) {
+        this.expectCount(instrs, i, 1);
+        switch (instrs.kind(i, 0)) {
+        case REG:
+            this.encodeShort(0x50, instrs.reg(i, 0));
+            break;
+        case MEM:
+            this.encodeModRM(instrs, i, false, 0xFF, 6, 0);
+            break;
+        case IMM:
+            if (isByte(instrs.value(i, 0))) {
+                this.put(0x6A);
+                this.put(instrs.value(i, 0));
+            } else {
+                this.put(0x68);
+                this.putImmediate32(instrs, i, 0);
+            }
+            break;
+        case SYM:
+            if (this.target == Target.X64)
+                throw this.unsupported(instrs, i);
+            this.put(0x68);
+            this.putImmediate32(instrs, i, 0);
+            break;
+        default:
+            throw this.unsupported(instrs, i);
+        }
+    }
+
+    /**
+     * Encodes an instruction with the register in the low bits of the opcode
+     * (push, pop and mov with an immediate).
+     */
+    private void encodeShort(int opcode, int reg) {
+        this.encodeShort(opcode, reg, false);
+    }
+
+    private void encodeShort(int opcode, int reg, boolean wide) {
+        this.checkRegister(reg);
+        this.putRex(wide && this.target == Target.X64, 0, NO_REG, reg);
+        this.put(opcode + (reg & 7));
+    }
+
+    /**
+     * Encodes an instruction with a ModRM byte, reg being the register (or
+     * opcode extension) in its reg field and k the operand that goes in its
+     * r/m field. Opcodes larger than a byte are written high byte first.
+     */
+    private void encodeModRM(InstrBuffer instrs, int i, boolean wide, int opcode, int reg, int k) {
+        this.checkRegister(reg);
+        wide &= this.target == Target.X64;
+
+        final int kind = instrs.kind(i, k);
+        if (kind == REG) {
+            final int rm = instrs.reg(i, k);
+            this.checkRegister(rm);
+            this.putRex(wide, reg, NO_REG, rm);
+            this.putOpcode(opcode);
+            this.put(0xC0 | (reg & 7) << 3 | rm & 7);
+            return;
+        }
+        if (kind != MEM)
+            throw this.unsupported(instrs, i);
+
+        final int base = instrs.reg(i, k);
+        final int index = instrs.index(i, k);
+        final int disp = instrs.value(i, k);
+        this.checkRegister(base);
+        this.checkRegister(index);
+        if (index == Register.ESP.ordinal())
+            throw this.unsupported(instrs, i);
+
+        this.putRex(wide, reg, index, base);
+        this.putOpcode(opcode);
+
+        final int scale = Integer.numberOfTrailingZeros(instrs.scale(i, k));
+        if (base == NO_REG) {
+            // on x86-64 the short form would be relative to rip instead, so
+            // absolute addresses always go through the SIB byte
+            if (index == NO_REG && this.target == Target.X86) {
+                this.put(0x05 | (reg & 7) << 3);
+            } else {
+                this.put(0x04 | (reg & 7) << 3);
+                this.put(scale << 6 | (index == NO_REG ? 4 : index & 7) << 3 | 5);
+            }
+            this.putInt(disp);
+            return;
+        }
+
+        // ebp (and r13) as the base cannot go without a displacement
+        final int mod = disp == 0 && (base & 7) != 5 ? 0x00 : isByte(disp) ? 0x40 : 0x80;
+        if (index == NO_REG && (base & 7) != 4) {
+            this.put(mod | (reg & 7) << 3 | base & 7);
+        } else {
+            // esp (and r12) as the base need the SIB byte
+            this.put(mod | (reg & 7) << 3 | 4);
+            this.put(scale << 6 | (index == NO_REG ? 4 : index & 7) << 3 | base & 7);
+        }
+
+        if (mod == 0x40)
+            this.put(disp);
+        else if (mod == 0x80)
+            this.putInt(disp);
+    }
+
+    private void putRex(boolean wide, int reg, int index, int base) {
+        final int rex = (wide ? 8 : 0)
+                | (reg >= 8 ? 4 : 0)
+                | (index != NO_REG && index >= 8 ? 2 : 0)
+                | (base != NO_REG && base >= 8 ? 1 : 0);
+        if (rex != 0)
+            this.put(0x40 | rex);
+    }
+
+    private void putOpcode(int opcode) {
+        if (opcode > 0xFF)
+            this.put(opcode >>> 8);
+        this.put(opcode & 0xFF);
+    }
+
+    private void putImmediate32(InstrBuffer instrs, int i, int k) {
+        if (instrs.kind(i, k) == SYM)
+            this.putAddress(instrs.symbol(i, k), 4);
+        else
+            this.putInt(instrs.value(i, k));
+    }
+
+    private void putAddress(String symbol, int size) {
+        this.relocations.add(new Relocation(this.size(), size, symbol));
+        this.reserve(size);
+        for (int j = 0; j < size; ++j)
+            this.out.put((byte) 0);
+    }
+
+    private void put(int b) {
+        this.reserve(1);
+        this.out.put((byte) b);
+    }
+
+    private void putInt(int value) {
+        this.reserve(4);
+        this.out.putInt(value);
+    }
+
+    private void reserve(int n) {
+        if (this.out.remaining() >= n)
+            return;
+        if (!this.growable)
+            throw new BufferOverflowException();
+
+        final ByteBuffer bigger = ByteBuffer.allocate(Math.max(this.out.capacity() * 2, this.out.position() + n))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        this.out.flip();
+        bigger.put(this.out);
+        this.out = bigger;
+    }
+
+    private void checkRegister(int reg) {
+        if (reg >= 8 && this.target == Target.X86)
+            throw new IllegalArgumentException("Register " + Register.of(reg) + " does not exist on " + this.target);
+    }
+
+    private static boolean isByte(int value) {
+        return value == (byte) value;
+    }
+
+    private void expectCount(InstrBuffer instrs, int i, int count) {
+        if (instrs.operandCount(i) != count)
+            throw this.unsupported(instrs, i);
+    }
+
+    private void expect(InstrBuffer instrs, int i, int... kinds) {
+        this.expectCount(instrs, i, kinds.length);
+        for (int k = 0; k < kinds.length; ++k)
+            if (instrs.kind(i, k) != kinds[k])
+                throw this.unsupported(instrs, i);
+    }
+
+    private IllegalArgumentException unsupported(InstrBuffer instrs, int i) {
+        return new IllegalArgumentException("Cannot encode " + instrs.toString(i));
+    }
+}
@@ -1,6 +1,16 @@
 package com.ymcmp.eralloc;
 
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import com.ymcmp.eralloc.ast.*;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
@@ -142,4 +152,1061 @@ public class ERAllocTest {
                         new SubExpr(new LoadExpr(new GlobalValue("v12")), new Numeric(3)),
                         new SubExpr(new LoadExpr(new GlobalValue("v16")), new Numeric(9))))));
     }
+
+    @Test
+    public void testCodegenLoadComputedPointer() {
+        assertEquals(
+                Arrays.asList("lea eax, [ebp-16]", "mov ecx, 4", "add eax, ecx", "mov eax, [eax]"),
+                ERAlloc.codegen(new LoadExpr(new AddExpr(new FrameIndex(16), new Numeric(4)))));
+    }
+
+    @Test
+    public void testCodegenSwappedOperands() {
+        assertEquals(
+                Arrays.asList("mov ecx, 1", "mov eax, 2", "add ecx, eax", "mov eax, 3", "sub eax, ecx"),
+                ERAlloc.codegen(new SubExpr(new Numeric(3), new AddExpr(new Numeric(1), new Numeric(2)))));
+    }
+
+    @Test
+    public void testCodegenDeepLeftChain() {
+        // deep enough to overflow the thread stack if the tree was walked
+        // recursively.
+        final int depth = 200000;
+        ExprAST e = new Numeric(0);
+        for (int i = 1; i <= depth; ++i)
+            e = new AddExpr(e, new Numeric(i));
+
+        final List<String> result = ERAlloc.codegen(e);
+        assertEquals(1 + 2 * depth, result.size());
+        assertEquals("mov eax, 0", result.get(0));
+        assertEquals("mov ecx, 1", result.get(1));
+        assertEquals("add eax, ecx", result.get(2));
+        assertEquals("mov ecx, " + depth, result.get(result.size() - 2));
+        assertEquals("add eax, ecx", result.get(result.size() - 1));
+    }
+
+    @Test
+    public void testCodegenDeepRightChain() {
+        // the operands are swapped at every level, so the intermediate
+        // results alternate between eax and ecx.
+        final int depth = 200001;
+        ExprAST e = new Numeric(0);
+        for (int i = 1; i <= depth; ++i)
+            e = new SubExpr(new Numeric(i), e);
+
+        final List<String> result = ERAlloc.codegen(e);
+        assertEquals(1 + 2 * depth, result.size());
+        assertEquals("mov eax, 1", result.get(0));
+        assertEquals("mov ecx, 0", result.get(1));
+        assertEquals("sub eax, ecx", result.get(2));
+        assertEquals("mov ecx, 2", result.get(3));
+        assertEquals("sub ecx, eax", result.get(4));
+        assertEquals("mov eax, " + depth, result.get(result.size() - 2));
+        assertEquals("sub eax, ecx", result.get(result.size() - 1));
+    }
+
+    @Test
+    public void testCodegenInstrs() {
+        final InstrBuffer buf = ERAlloc.codegenInstrs(new StoreExpr(new FrameIndex(8), new ShlExpr(new GlobalValue("x"), new Numeric(3))));
+        assertEquals(
+                Arrays.asList("extern x", "mov eax, x", "mov ecx, 3", "shl eax, cl", "lea ecx, [ebp-8]", "mov [ecx], eax"),
+                buf.toStrings());
+
+        assertEquals(Opcode.EXTERN, buf.opcode(0));
+        assertEquals(InstrBuffer.SYM, buf.kind(0, 0));
+        assertEquals("x", buf.symbol(0, 0));
+
+        assertEquals(Opcode.MOV, buf.opcode(2));
+        assertEquals(2, buf.operandCount(2));
+        assertEquals(InstrBuffer.REG, buf.kind(2, 0));
+        assertEquals(Register.ECX.ordinal(), buf.reg(2, 0));
+        assertEquals(InstrBuffer.IMM, buf.kind(2, 1));
+        assertEquals(3, buf.value(2, 1));
+
+        assertEquals(Opcode.LEA, buf.opcode(4));
+        assertEquals(InstrBuffer.MEM, buf.kind(4, 1));
+        assertEquals(Register.EBP.ordinal(), buf.reg(4, 1));
+        assertEquals(InstrBuffer.NO_REG, buf.index(4, 1));
+        assertEquals(-8, buf.value(4, 1));
+    }
+
+    @Test
+    public void testCodegenAppendable() throws IOException {
+        final ExprAST e = new StoreExpr(new GlobalValue("foo"), new Numeric(10));
+        final StringBuilder sb = new StringBuilder();
+        ERAlloc.codegen(e, sb);
+        assertEquals("mov eax, 10\nextern foo\nmov ecx, foo\nmov [ecx], eax\n", sb.toString());
+    }
+
+    @Test
+    public void testCodegenChannel() throws IOException {
+        // large enough to be written in many batches
+        ExprAST e = new Numeric(0);
+        for (int i = 1; i <= 50000; ++i)
+            e = new AddExpr(e, new LoadExpr(new GlobalValue("v" + i)));
+
+        final StringBuilder expected = new StringBuilder();
+        for (final String line : ERAlloc.codegen(e))
+            expected.append(line).append('\n');
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ERAlloc.codegen(e, Channels.newChannel(bytes));
+        assertEquals(expected.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCodegenAll() {
+        final List<ExprAST> roots = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            ExprAST e = new Numeric(i);
+            for (int j = 0; j < i % 13; ++j)
+                e = new MulExpr(new LoadExpr(new GlobalValue("g" + j)), e);
+            roots.add(e);
+        }
+
+        final List<List<String>> results = ERAlloc.codegenAll(roots, new ForkJoinPool(4));
+        assertEquals(roots.size(), results.size());
+        for (int i = 0; i < roots.size(); ++i)
+            assertEquals(ERAlloc.codegen(roots.get(i)), results.get(i));
+    }
+
+    @Test
+    public void testCommonSubexpressions() {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withCommonSubexpressions(true);
+
+        // structurally equal, but not the same node
+        assertEquals(
+                Arrays.asList(
+                    "extern a",
+                    "mov eax, a",
+                    "mov eax, [eax]",
+                    "mov ecx, 3",
+                    "add eax, ecx",
+                    "mov [ebp-4], eax",
+                    "mov ecx, [ebp-4]",
+                    "imul eax, ecx"),
+                ERAlloc.codegen(new MulExpr(
+                    new AddExpr(new LoadExpr(new GlobalValue("a")), new Numeric(3)),
+                    new AddExpr(new LoadExpr(new GlobalValue("a")), new Numeric(3))), opts));
+    }
+
+    @Test
+    public void testCommonSubexpressionsKeepsSideEffects() {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withCommonSubexpressions(true);
+
+        // the loads may observe different values because of the call
+        final ExprAST e = new AddExpr(
+                new AddExpr(new LoadExpr(new GlobalValue("a")), new CallExpr(new GlobalValue("f"))),
+                new LoadExpr(new GlobalValue("a")));
+        assertEquals(ERAlloc.codegen(e), ERAlloc.codegen(e, opts));
+    }
+
+    @Test
+    public void testCommonSubexpressionsDeepSharing() {
+        // 2^40 paths from the root to the leaf, but only 40 distinct nodes
+        ExprAST e = new LoadExpr(new GlobalValue("x"));
+        for (int i = 0; i < 40; ++i)
+            e = new AddExpr(e, e);
+
+        final List<String> result = ERAlloc.codegen(e, CodegenOptions.DEFAULT.withCommonSubexpressions(true));
+        assertEquals(3 + 3 * 40, result.size());
+    }
+
+    @Test
+    public void testExtraRegisters() {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withRegisters(
+                Register.EAX, Register.ECX, Register.EDX, Register.EBX);
+        assertEquals(
+                Arrays.asList(
+                    "mov [ebp-4], ebx",
+                    "extern v4",
+                    "mov eax, v4",
+                    "mov eax, [eax]",
+                    "mov ecx, 22",
+                    "sub eax, ecx",
+                    "extern v8",
+                    "mov ecx, v8",
+                    "mov ecx, [ecx]",
+                    "mov edx, 11",
+                    "sub ecx, edx",
+                    "sub eax, ecx",
+                    "extern v12",
+                    "mov ecx, v12",
+                    "mov ecx, [ecx]",
+                    "mov edx, 3",
+                    "sub ecx, edx",
+                    "extern v16",
+                    "mov edx, v16",
+                    "mov edx, [edx]",
+                    "mov ebx, 9",
+                    "sub edx, ebx",
+                    "sub ecx, edx",
+                    "sub eax, ecx",
+                    "mov ebx, [ebp-4]"),
+                ERAlloc.codegen(new SubExpr(
+                    new SubExpr(
+                        new SubExpr(new LoadExpr(new GlobalValue("v4")), new Numeric(22)),
+                        new SubExpr(new LoadExpr(new GlobalValue("v8")), new Numeric(11))),
+                    new SubExpr(
+                        new SubExpr(new LoadExpr(new GlobalValue("v12")), new Numeric(3)),
+                        new SubExpr(new LoadExpr(new GlobalValue("v16")), new Numeric(9)))), opts));
+
+        // callee saved registers are left alone if the expression is simple
+        assertEquals(
+                Arrays.asList("mov eax, 1", "mov ecx, 2", "add eax, ecx"),
+                ERAlloc.codegen(new AddExpr(new Numeric(1), new Numeric(2)), opts));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> CodegenOptions.DEFAULT.withRegisters(Register.EAX, Register.ECX, Register.EBX));
+        assertThrows(IllegalArgumentException.class,
+                () -> CodegenOptions.DEFAULT.withRegisters(Register.EAX, Register.ECX, Register.EDX, Register.EBP));
+
+        // the result is left in the first register, which the epilogue must
+        // not restore over
+        assertThrows(IllegalArgumentException.class,
+                () -> CodegenOptions.DEFAULT.withRegisters(Register.EBX, Register.EAX, Register.ECX, Register.EDX));
+        assertThrows(IllegalArgumentException.class,
+                () -> CodegenOptions.DEFAULT.withTarget(Target.X64).withRegisters(Register.R12, Register.EAX,
+                        Register.ECX, Register.EDX, Register.ESI, Register.EDI, Register.R8, Register.R9));
+        assertEquals(
+                Arrays.asList("mov ecx, 1", "mov eax, 2", "add ecx, eax"),
+                ERAlloc.codegen(new AddExpr(new Numeric(1), new Numeric(2)),
+                        CodegenOptions.DEFAULT.withRegisters(Register.ECX, Register.EAX, Register.EDX, Register.EBX)));
+    }
+
+    @Test
+    public void testX64Call() {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withTarget(Target.X64);
+        assertEquals(
+                Arrays.asList(
+                    "mov rsi, 2",
+                    "mov rax, 3",
+                    "add rsi, rax",
+                    "mov rdi, 1",
+                    "mov rdx, 4",
+                    "extern f",
+                    "mov rax, f",
+                    "call rax"),
+                ERAlloc.codegen(new CallExpr(new GlobalValue("f"),
+                        new Numeric(1), new AddExpr(new Numeric(2), new Numeric(3)), new Numeric(4)), opts));
+
+        // the inner call happens while nothing is held in a register yet
+        assertEquals(
+                Arrays.asList(
+                    "mov rdi, 5",
+                    "extern h",
+                    "mov rax, h",
+                    "call rax",
+                    "mov rsi, rax",
+                    "mov rdi, 1",
+                    "extern g",
+                    "mov rax, g",
+                    "call rax",
+                    "mov rcx, rax",
+                    "extern x",
+                    "mov rax, x",
+                    "mov rax, [rax]",
+                    "add rax, rcx"),
+                ERAlloc.codegen(new AddExpr(
+                        new LoadExpr(new GlobalValue("x")),
+                        new CallExpr(new GlobalValue("g"),
+                            new Numeric(1), new CallExpr(new GlobalValue("h"), new Numeric(5)))), opts));
+    }
+
+    @Test
+    public void testX64StackArguments() {
+        final ExprAST[] args = new ExprAST[7];
+        for (int i = 0; i < args.length; ++i)
+            args[i] = new Numeric(i);
+
+        // one argument on the stack needs padding to keep the alignment
+        assertEquals(
+                Arrays.asList(
+                    "sub rsp, 8",
+                    "mov rax, 6",
+                    "push rax",
+                    "mov rdi, 0",
+                    "mov rsi, 1",
+                    "mov rdx, 2",
+                    "mov rcx, 3",
+                    "mov r8, 4",
+                    "mov r9, 5",
+                    "extern k",
+                    "mov rax, k",
+                    "call rax",
+                    "add rsp, 16"),
+                ERAlloc.codegen(new CallExpr(new GlobalValue("k"), args),
+                        CodegenOptions.DEFAULT.withTarget(Target.X64)));
+    }
+
+    @Test
+    public void testX64Division() {
+        final ExprAST e = new DivExpr(new LoadExpr(new FrameIndex(8)), new SubExpr(new Numeric(1), new Numeric(2)));
+        assertEquals(
+                Arrays.asList(
+                    "mov rcx, 1",
+                    "mov rax, 2",
+                    "sub rcx, rax",
+                    "lea rax, [rbp-8]",
+                    "mov rax, [rax]",
+                    "cqo",
+                    "idiv rcx"),
+                ERAlloc.codegen(e, CodegenOptions.DEFAULT.withTarget(Target.X64)));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> CodegenOptions.DEFAULT.withRegisters(Register.EAX, Register.ECX, Register.EDX, Register.R8));
+        assertThrows(IllegalArgumentException.class,
+                () -> CodegenOptions.DEFAULT.withTarget(Target.X64).withRegisters(Register.EAX, Register.ECX, Register.EDX));
+    }
+
+    @Test
+    public void testPeephole() {
+        assertEquals(
+                Arrays.asList("mov eax, 7", "mov ecx, 1", "shl eax, cl", "mov ecx, eax", "mov eax, 5", "sub eax, ecx"),
+                ERAlloc.codegen(
+                        new SubExpr(new Numeric(5), new ShlExpr(new Numeric(7), new Numeric(1))),
+                        CodegenOptions.DEFAULT.withPeephole(true)));
+
+        final InstrBuffer buf = new InstrBuffer();
+        buf.begin(Opcode.MOV).reg(Register.EAX).imm(1);
+        buf.begin(Opcode.MOV).mem(Register.EBP, -4).reg(Register.EAX);
+        buf.begin(Opcode.MOV).reg(Register.ECX).imm(2);
+        buf.begin(Opcode.XCHG).reg(Register.ECX).reg(Register.EDX);
+        buf.begin(Opcode.XCHG).reg(Register.EDX).reg(Register.ECX);
+        buf.begin(Opcode.MOV).reg(Register.EAX).mem(Register.EBP, -4);
+        buf.begin(Opcode.MOV).reg(Register.EDX).mem(Register.EBP, -8);
+        buf.begin(Opcode.MOV).reg(Register.ECX).reg(Register.EDX);
+        buf.begin(Opcode.MOV).reg(Register.EDX).imm(3);
+        buf.begin(Opcode.MOV).reg(Register.EAX).reg(Register.EAX);
+        buf.begin(Opcode.ADD).reg(Register.EAX).reg(Register.ECX);
+
+        final Peephole peephole = new Peephole();
+        peephole.optimize(buf);
+        assertEquals(
+                Arrays.asList(
+                    "mov eax, 1",
+                    "mov [ebp-4], eax",
+                    "mov ecx, 2",
+                    "mov ecx, [ebp-8]",
+                    "mov edx, 3",
+                    "add eax, ecx"),
+                buf.toStrings());
+        assertEquals(1, peephole.hits(Peephole.Rule.XCHG_PAIR));
+        assertEquals(1, peephole.hits(Peephole.Rule.REDUNDANT_RELOAD));
+        assertEquals(1, peephole.hits(Peephole.Rule.COPY_PROPAGATION));
+        assertEquals(1, peephole.hits(Peephole.Rule.SELF_MOVE));
+        assertEquals(0, peephole.hits(Peephole.Rule.XCHG_OF_MOVES));
+    }
+
+    @Test
+    public void testSimplification() {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withSimplification(true);
+        final ExprAST v = new LoadExpr(new GlobalValue("v"));
+
+        assertEquals(
+                Arrays.asList("mov eax, 3"),
+                ERAlloc.codegen(new AddExpr(new Numeric(1), new Numeric(2)), opts));
+        assertEquals(
+                Arrays.asList("extern v", "mov eax, v", "mov eax, [eax]", "mov ecx, 3", "add eax, ecx"),
+                ERAlloc.codegen(new AddExpr(new AddExpr(new Numeric(1), v), new Numeric(2)), opts));
+        assertEquals(
+                Arrays.asList("extern v", "mov eax, v", "mov eax, [eax]", "mov ecx, 3", "shl eax, cl"),
+                ERAlloc.codegen(new MulExpr(new Numeric(8), v), opts));
+
+        // the divident is biased so that the shift rounds towards zero
+        assertEquals(
+                Arrays.asList(
+                    "extern v",
+                    "mov eax, v",
+                    "mov eax, [eax]",
+                    "mov ecx, eax",
+                    "sar ecx, 31",
+                    "shr ecx, 29",
+                    "add eax, ecx",
+                    "sar eax, 3"),
+                ERAlloc.codegen(new DivExpr(v, new Numeric(8)), opts));
+
+        assertEquals(
+                Arrays.asList(
+                    "extern v",
+                    "mov eax, v",
+                    "mov eax, [eax]",
+                    "mov ecx, eax",
+                    "mov eax, 1717986919",
+                    "imul ecx",
+                    "sar edx, 2",
+                    "mov eax, edx",
+                    "shr eax, 31",
+                    "add edx, eax",
+                    "imul edx, edx, 10",
+                    "sub ecx, edx",
+                    "mov eax, ecx"),
+                ERAlloc.codegen(new RemExpr(v, new Numeric(10)), opts));
+
+        // folding must not hide a division by zero
+        assertEquals(
+                Arrays.asList("mov eax, 1", "mov ecx, 0", "cdq", "idiv ecx"),
+                ERAlloc.codegen(new DivExpr(new Numeric(1), new Numeric(0)), opts));
+    }
+
+    @Test
+    public void testImmediates() {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withImmediates(true);
+        final ExprAST v = new LoadExpr(new GlobalValue("v"));
+
+        assertEquals(
+                Arrays.asList("extern v", "mov eax, v", "mov eax, [eax]", "add eax, 2"),
+                ERAlloc.codegen(new AddExpr(new Numeric(2), v), opts));
+        assertEquals(
+                Arrays.asList("extern v", "mov eax, v", "mov eax, [eax]", "imul eax, eax, 3", "shl eax, 4"),
+                ERAlloc.codegen(new ShlExpr(new MulExpr(v, new Numeric(3)), new Numeric(4)), opts));
+        assertEquals(
+                Arrays.asList("mov eax, 1", "extern v", "sub eax, v"),
+                ERAlloc.codegen(new SubExpr(new Numeric(1), new GlobalValue("v")), opts));
+        assertEquals(
+                Arrays.asList("push 2", "push 1", "extern f", "mov eax, f", "call eax", "add esp, 8"),
+                ERAlloc.codegen(new CallExpr(new GlobalValue("f"), new Numeric(1), new Numeric(2)), opts));
+
+        // x86-64 addresses might not fit in an immediate
+        assertEquals(
+                Arrays.asList("mov rax, 1", "extern v", "mov rcx, v", "sub rax, rcx"),
+                ERAlloc.codegen(new SubExpr(new Numeric(1), new GlobalValue("v")), opts.withTarget(Target.X64)));
+    }
+
+    @Test
+    public void testRematerialization() {
+        // the arguments are held in their registers while the function is
+        // evaluated, which needs one more than what is left
+        final ExprAST e = new CallExpr(
+                new AddExpr(new LoadExpr(new GlobalValue("p")), new LoadExpr(new GlobalValue("q"))),
+                new ExprAST[] { new Numeric(1), new Numeric(2), new Numeric(3), new Numeric(4), new Numeric(5), new Numeric(6) });
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withTarget(Target.X64)
+                .withRegisters(Register.EDI, Register.ESI, Register.EDX, Register.ECX, Register.R8, Register.R9, Register.EAX);
+        assertEquals(
+                Arrays.asList(
+                    "mov rdi, 1",
+                    "mov rsi, 2",
+                    "mov rdx, 3",
+                    "mov rcx, 4",
+                    "mov r8, 5",
+                    "mov r9, 6",
+                    "mov [rbp-8], rdi",
+                    "extern p",
+                    "mov rax, p",
+                    "mov rax, [rax]",
+                    "extern q",
+                    "mov rdi, q",
+                    "mov rdi, [rdi]",
+                    "add rax, rdi",
+                    "mov rdi, [rbp-8]",
+                    "call rax",
+                    "mov rdi, rax"),
+                ERAlloc.codegen(e, opts));
+        assertEquals(
+                Arrays.asList(
+                    "mov rdi, 1",
+                    "mov rsi, 2",
+                    "mov rdx, 3",
+                    "mov rcx, 4",
+                    "mov r8, 5",
+                    "mov r9, 6",
+                    "extern p",
+                    "mov rax, p",
+                    "mov rax, [rax]",
+                    "extern q",
+                    "mov rdi, q",
+                    "mov rdi, [rdi]",
+                    "add rax, rdi",
+                    "mov rdi, 1",
+                    "call rax",
+                    "mov rdi, rax"),
+                ERAlloc.codegen(e, opts.withRematerialization(true)));
+    }
+
+    @Test
+    public void testAddressingModes() {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withAddressingModes(true);
+        final ExprAST p = new LoadExpr(new GlobalValue("p"));
+        final ExprAST i = new LoadExpr(new GlobalValue("i"));
+
+        assertEquals(
+                Arrays.asList("mov eax, [ebp-12]"),
+                ERAlloc.codegen(new LoadExpr(new AddExpr(new FrameIndex(16), new Numeric(4))), opts));
+        assertEquals(
+                Arrays.asList(
+                    "extern i",
+                    "mov eax, i",
+                    "mov eax, [eax]",
+                    "mov eax, [ebp+eax*4-12]"),
+                ERAlloc.codegen(new LoadExpr(new AddExpr(
+                        new AddExpr(new FrameIndex(16), new ShlExpr(i, new Numeric(2))),
+                        new Numeric(4))), opts));
+        assertEquals(
+                Arrays.asList(
+                    "extern p",
+                    "mov eax, p",
+                    "mov eax, [eax]",
+                    "extern i",
+                    "mov ecx, i",
+                    "mov ecx, [ecx]",
+                    "mov eax, [eax+ecx*8]"),
+                ERAlloc.codegen(new LoadExpr(new AddExpr(p, new ShlExpr(i, new Numeric(3)))), opts));
+        assertEquals(
+                Arrays.asList("mov eax, 1", "mov [ebp-4], eax"),
+                ERAlloc.codegen(new StoreExpr(new AddExpr(new FrameIndex(8), new Numeric(4)), new Numeric(1)), opts));
+
+        // loads are used directly as the source operand
+        assertEquals(
+                Arrays.asList("mov eax, [ebp-8]", "extern p", "mov ecx, p", "add eax, [ecx]"),
+                ERAlloc.codegen(new AddExpr(new LoadExpr(new FrameIndex(8)), p), opts));
+        assertEquals(
+                Arrays.asList("mov rax, 3", "extern p", "mov rcx, p", "mov rcx, [rcx]", "sub rax, [rcx+8]"),
+                ERAlloc.codegen(new SubExpr(new Numeric(3), new LoadExpr(new AddExpr(p, new Numeric(8)))),
+                        opts.withTarget(Target.X64)));
+    }
+
+    @Test
+    public void testTiling() {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withTiling(true);
+        final ExprAST p = new LoadExpr(new GlobalValue("p"));
+        final ExprAST i = new LoadExpr(new GlobalValue("i"));
+
+        // lea does the shift and both additions at once
+        assertEquals(
+                Arrays.asList(
+                    "extern p",
+                    "mov eax, p",
+                    "mov eax, [eax]",
+                    "extern i",
+                    "mov ecx, i",
+                    "mov ecx, [ecx]",
+                    "lea eax, [eax+ecx*4+8]"),
+                ERAlloc.codegen(new AddExpr(new AddExpr(p, new ShlExpr(i, new Numeric(2))), new Numeric(8)), opts));
+        assertEquals(
+                Arrays.asList("extern i", "mov eax, i", "mov eax, [eax]", "lea eax, [ebp+eax-20]"),
+                ERAlloc.codegen(new SubExpr(new AddExpr(new FrameIndex(16), i), new Numeric(4)), opts));
+
+        // an add is just as cheap as lea here
+        assertEquals(
+                Arrays.asList("extern i", "mov eax, i", "mov eax, [eax]", "add eax, 4"),
+                ERAlloc.codegen(new AddExpr(i, new Numeric(4)), opts));
+        assertEquals(
+                Arrays.asList("extern i", "mov rax, i", "mov rax, [rax]", "imul rax, rax, 3"),
+                ERAlloc.codegen(new MulExpr(i, new Numeric(3)), opts.withTarget(Target.X64)));
+        assertEquals(
+                Arrays.asList("extern p", "mov eax, p", "mov eax, [eax]", "add eax, [ebp-8]"),
+                ERAlloc.codegen(new AddExpr(new LoadExpr(new FrameIndex(8)), p), opts));
+
+        // constants (and on x86 symbols) are pushed without a register, x64
+        // addresses do not fit in an imm32
+        final ExprAST call = new CallExpr(new GlobalValue("f"), new Numeric(5), new GlobalValue("g"));
+        assertEquals(
+                Arrays.asList("extern g", "push g", "push 5", "extern f", "mov eax, f", "call eax", "add esp, 8"),
+                ERAlloc.codegen(call, opts));
+        assertEquals(
+                Arrays.asList(
+                    "extern g",
+                    "mov rax, g",
+                    "push rax",
+                    "push 7",
+                    "mov rdi, 1",
+                    "mov rsi, 2",
+                    "mov rdx, 3",
+                    "mov rcx, 4",
+                    "mov r8, 5",
+                    "mov r9, 6",
+                    "extern f",
+                    "mov rax, f",
+                    "call rax",
+                    "add rsp, 16"),
+                ERAlloc.codegen(new CallExpr(new GlobalValue("f"), new Numeric(1), new Numeric(2), new Numeric(3),
+                        new Numeric(4), new Numeric(5), new Numeric(6), new Numeric(7), new GlobalValue("g")),
+                        opts.withTarget(Target.X64)));
+
+        // a shared value is evaluated (not folded) once and then reloaded
+        final ExprAST fn = new AddExpr(new SubExpr(new GlobalValue("f"), new Numeric(5)), new Numeric(5));
+        assertEquals(
+                Arrays.asList(
+                    "extern f",
+                    "mov eax, f",
+                    "sub eax, 5",
+                    "add eax, 5",
+                    "mov [ebp-4], eax",
+                    "push eax",
+                    "mov eax, [ebp-4]",
+                    "call eax",
+                    "add esp, 4"),
+                ERAlloc.codegen(new CallExpr(fn, fn), opts.withCommonSubexpressions(true)));
+    }
+
+    @Test
+    public void testFrame() {
+        final ExprAST e = new SubExpr(
+                new SubExpr(
+                    new SubExpr(new LoadExpr(new GlobalValue("v4")), new Numeric(22)),
+                    new SubExpr(new LoadExpr(new GlobalValue("v8")), new Numeric(11))),
+                new SubExpr(
+                    new SubExpr(new LoadExpr(new GlobalValue("v12")), new Numeric(3)),
+                    new SubExpr(new LoadExpr(new GlobalValue("v16")), new Numeric(9))));
+
+        assertEquals(4, ERAlloc.compile(e, CodegenOptions.DEFAULT).getFrameSize());
+        assertEquals(0, ERAlloc.compile(new Numeric(1), CodegenOptions.DEFAULT).getFrameSize());
+
+        // both spills are dead by the time the other one happens
+        assertEquals(4, ERAlloc.compile(
+                new CallExpr(new GlobalValue("f"), new ExprAST[] { e, e }),
+                CodegenOptions.DEFAULT).getFrameSize());
+
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withPrologue(true).withFrameOffset(8);
+        final CodegenResult result = ERAlloc.compile(e, opts);
+        assertEquals(12, result.getFrameSize());
+        assertEquals(
+                Arrays.asList(
+                    "push ebp",
+                    "mov ebp, esp",
+                    "sub esp, 12",
+                    "extern v4",
+                    "mov eax, v4",
+                    "mov eax, [eax]",
+                    "mov ecx, 22",
+                    "sub eax, ecx",
+                    "extern v8",
+                    "mov ecx, v8",
+                    "mov ecx, [ecx]",
+                    "mov edx, 11",
+                    "sub ecx, edx",
+                    "sub eax, ecx",
+                    "extern v12",
+                    "mov ecx, v12",
+                    "mov ecx, [ecx]",
+                    "mov edx, 3",
+                    "sub ecx, edx",
+                    "mov [ebp-12], eax",
+                    "extern v16",
+                    "mov edx, v16",
+                    "mov edx, [edx]",
+                    "mov eax, 9",
+                    "sub edx, eax",
+                    "mov eax, [ebp-12]",
+                    "sub ecx, edx",
+                    "sub eax, ecx",
+                    "mov esp, ebp",
+                    "pop ebp"),
+                result.toStrings());
+
+        // no frame, no sub
+        assertEquals(
+                Arrays.asList("push ebp", "mov ebp, esp", "mov eax, 1", "mov esp, ebp", "pop ebp"),
+                ERAlloc.compile(new Numeric(1), CodegenOptions.DEFAULT.withPrologue(true)).toStrings());
+    }
+
+    @Test
+    public void testCallOrdering() {
+        // the call goes first so that nothing is live across it
+        assertEquals(
+                Arrays.asList("extern f", "mov eax, f", "call eax", "mov ecx, eax", "mov eax, 5", "add eax, ecx"),
+                ERAlloc.codegen(new AddExpr(new Numeric(5), new CallExpr(new GlobalValue("f")))));
+
+        // the saved registers are free again while the arguments are pushed
+        assertEquals(
+                Arrays.asList(
+                    "extern f",
+                    "mov eax, f",
+                    "call eax",
+                    "mov [ebp-4], eax",
+                    "mov eax, 1",
+                    "push eax",
+                    "extern g",
+                    "mov eax, g",
+                    "call eax",
+                    "mov ecx, eax",
+                    "add esp, 4",
+                    "mov eax, [ebp-4]",
+                    "sub eax, ecx"),
+                ERAlloc.codegen(new SubExpr(
+                        new CallExpr(new GlobalValue("f")),
+                        new CallExpr(new GlobalValue("g"), new ExprAST[] { new Numeric(1) }))));
+
+        // rdi is only set once the nested call is done
+        assertEquals(
+                Arrays.asList(
+                    "extern g",
+                    "mov rax, g",
+                    "call rax",
+                    "mov rsi, rax",
+                    "mov rdi, 1",
+                    "extern f",
+                    "mov rax, f",
+                    "call rax"),
+                ERAlloc.codegen(
+                        new CallExpr(new GlobalValue("f"), new ExprAST[] { new Numeric(1), new CallExpr(new GlobalValue("g")) }),
+                        CodegenOptions.DEFAULT.withTarget(Target.X64)));
+    }
+
+    @Test
+    public void testLinearScan() {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withStrategy(Strategy.LINEAR_SCAN);
+        final ExprAST e = new SubExpr(
+                new SubExpr(
+                    new SubExpr(new LoadExpr(new GlobalValue("v4")), new Numeric(22)),
+                    new SubExpr(new LoadExpr(new GlobalValue("v8")), new Numeric(11))),
+                new SubExpr(
+                    new SubExpr(new LoadExpr(new GlobalValue("v12")), new Numeric(3)),
+                    new SubExpr(new LoadExpr(new GlobalValue("v16")), new Numeric(9))));
+
+        // the spilled value is updated in its slot
+        final CodegenResult result = ERAlloc.compile(e, opts);
+        assertEquals(1, result.getSpillCount());
+        assertEquals(
+                Arrays.asList(
+                    "extern v4",
+                    "mov eax, v4",
+                    "mov eax, [eax]",
+                    "mov ecx, 22",
+                    "sub eax, ecx",
+                    "extern v8",
+                    "mov ecx, v8",
+                    "mov ecx, [ecx]",
+                    "mov edx, 11",
+                    "sub ecx, edx",
+                    "mov [ebp-4], eax",
+                    "sub [ebp-4], ecx",
+                    "extern v12",
+                    "mov eax, v12",
+                    "mov eax, [eax]",
+                    "mov ecx, 3",
+                    "sub eax, ecx",
+                    "extern v16",
+                    "mov ecx, v16",
+                    "mov ecx, [ecx]",
+                    "mov edx, 9",
+                    "sub ecx, edx",
+                    "sub eax, ecx",
+                    "mov ecx, [ebp-4]",
+                    "sub ecx, eax",
+                    "mov eax, ecx"),
+                result.getInstrs().toStrings());
+        assertEquals(0, ERAlloc.compile(e, opts.withImmediates(true)).getSpillCount());
+
+        // the shift amount has to be in ecx and the divident in eax, and the
+        // call clobbers everything else
+        assertEquals(
+                Arrays.asList(
+                    "extern p",
+                    "mov eax, p",
+                    "mov eax, [eax]",
+                    "extern q",
+                    "mov ecx, q",
+                    "mov ecx, [ecx]",
+                    "mov [ebp-4], eax",
+                    "shl dword [ebp-4], cl",
+                    "extern f",
+                    "mov eax, f",
+                    "call eax",
+                    "cdq",
+                    "mov ecx, [ebp-4]",
+                    "idiv ecx"),
+                ERAlloc.codegen(new DivExpr(
+                        new CallExpr(new GlobalValue("f")),
+                        new ShlExpr(new LoadExpr(new GlobalValue("p")), new LoadExpr(new GlobalValue("q")))), opts));
+    }
+
+    @Test
+    public void testGraphColoring() {
+        final ExprAST p = new LoadExpr(new GlobalValue("p"));
+        final ExprAST e = new DivExpr(
+                new DivExpr(p, new LoadExpr(new GlobalValue("q"))),
+                new RemExpr(new LoadExpr(new GlobalValue("r")), p));
+
+        // the values are loaded straight into where idiv wants them
+        final CodegenResult result = ERAlloc.compile(e, CodegenOptions.DEFAULT.withStrategy(Strategy.GRAPH_COLORING));
+        assertEquals(1, result.getSpillCount());
+        assertEquals(
+                Arrays.asList(
+                    "extern p",
+                    "mov eax, p",
+                    "mov eax, [eax]",
+                    "extern q",
+                    "mov ecx, q",
+                    "mov ecx, [ecx]",
+                    "cdq",
+                    "idiv ecx",
+                    "mov [ebp-4], eax",
+                    "extern r",
+                    "mov eax, r",
+                    "mov eax, [eax]",
+                    "extern p",
+                    "mov ecx, p",
+                    "mov ecx, [ecx]",
+                    "cdq",
+                    "idiv ecx",
+                    "mov ecx, edx",
+                    "mov eax, [ebp-4]",
+                    "cdq",
+                    "idiv ecx"),
+                result.getInstrs().toStrings());
+        assertTrue(result.getInstrs().size() < ERAlloc.codegenInstrs(e).size());
+    }
+
+    @Test
+    public void testEncoder() {
+        final ExprAST e = new AddExpr(new LoadExpr(new GlobalValue("p")), new Numeric(5));
+
+        final X86Encoder x86 = new X86Encoder(Target.X86);
+        ERAlloc.encode(e, CodegenOptions.DEFAULT, x86);
+        assertArrayEquals(
+                new byte[] {
+                    (byte) 0xB8, 0, 0, 0, 0,        // mov eax, p
+                    (byte) 0x8B, 0x00,              // mov eax, [eax]
+                    (byte) 0xB9, 5, 0, 0, 0,        // mov ecx, 5
+                    0x01, (byte) 0xC8 },            // add eax, ecx
+                x86.toByteArray());
+        assertEquals(Arrays.asList(new Relocation(1, 4, "p")), x86.getRelocations());
+
+        final X86Encoder x64 = new X86Encoder(Target.X64);
+        ERAlloc.encode(e, CodegenOptions.DEFAULT.withTarget(Target.X64).withImmediates(true), x64);
+        assertArrayEquals(
+                new byte[] {
+                    0x48, (byte) 0xB8, 0, 0, 0, 0, 0, 0, 0, 0,  // mov rax, p
+                    0x48, (byte) 0x8B, 0x00,                    // mov rax, [rax]
+                    0x48, (byte) 0x83, (byte) 0xC0, 5 },        // add rax, 5
+                x64.toByteArray());
+        assertEquals(Arrays.asList(new Relocation(2, 8, "p")), x64.getRelocations());
+
+        // a caller supplied buffer is filled from its position and never grown
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.position(4);
+        final X86Encoder fixed = new X86Encoder(Target.X86, buffer);
+        ERAlloc.encode(new Numeric(1), CodegenOptions.DEFAULT, fixed);
+        assertEquals(5, fixed.size());
+        assertEquals(9, buffer.position());
+        assertThrows(BufferOverflowException.class, () -> ERAlloc.encode(e, CodegenOptions.DEFAULT, fixed));
+    }
+
+    @Test
+    public void testCodegenCache() {
+        final CodegenCache cache = new CodegenCache(2);
+        final ExprAST e = new AddExpr(new LoadExpr(new GlobalValue("p")), new Numeric(5));
+
+        // a tree with the same structure is a hit
+        assertEquals(ERAlloc.codegen(e), cache.codegen(e));
+        assertEquals(ERAlloc.codegen(e), cache.codegen(new AddExpr(new LoadExpr(new GlobalValue("p")), new Numeric(5))));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // so are equal options, but not different ones
+        assertEquals(
+                CodegenOptions.DEFAULT,
+                CodegenOptions.DEFAULT.withPeephole(true).withPeephole(false).withRegisters(Target.X86.defaultRegisters()));
+        cache.codegen(e, CodegenOptions.DEFAULT.withRegisters(Target.X86.defaultRegisters()));
+        assertEquals(2, cache.getHits());
+        cache.codegen(e, CodegenOptions.DEFAULT.withImmediates(true));
+        assertEquals(2, cache.getMisses());
+
+        // e is the least recently used, so it goes first
+        cache.codegen(new AddExpr(new LoadExpr(new GlobalValue("q")), new Numeric(5)));
+        assertEquals(2, cache.size());
+        cache.codegen(e);
+        assertEquals(4, cache.getMisses());
+
+        // a shared call is evaluated once, two equal calls are not
+        final CodegenOptions cse = CodegenOptions.DEFAULT.withCommonSubexpressions(true);
+        final ExprAST call = new CallExpr(new GlobalValue("f"));
+        assertEquals(ERAlloc.codegen(new AddExpr(call, call), cse), cache.codegen(new AddExpr(call, call), cse));
+        assertEquals(
+                ERAlloc.codegen(new AddExpr(call, new CallExpr(new GlobalValue("f"))), cse),
+                cache.codegen(new AddExpr(call, new CallExpr(new GlobalValue("f"))), cse));
+        assertEquals(6, cache.getMisses());
+    }
+
+    @Test
+    public void testFlatExpr() throws IOException {
+        final ExprAST e = new AddExpr(
+                new LoadExpr(new AddExpr(new FrameIndex(8), new Numeric(4))),
+                new CallExpr(new GlobalValue("f"), new GlobalValue("p"), new Numeric(1), new GlobalValue("p")));
+
+        final FlatExpr flat = new FlatExpr.Builder()
+                .open(FlatExpr.ADD)
+                    .open(FlatExpr.LOAD).open(FlatExpr.ADD).frameIndex(8).numeric(4).close().close()
+                    .openCall(3).globalValue("f").globalValue("p").numeric(1).globalValue("p").close()
+                .close()
+                .build();
+        assertEquals(10, flat.size());
+        assertEquals(5, flat.nextSibling(flat.firstChild(0)));
+        assertEquals("p", flat.symbolOf(7));
+
+        // the binary format is read in place
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        flat.writeTo(Channels.newChannel(bytes));
+        final FlatExpr read = FlatExpr.read(ByteBuffer.wrap(bytes.toByteArray()));
+
+        final CodegenOptions addressing = CodegenOptions.DEFAULT.withAddressingModes(true).withImmediates(true);
+        for (final CodegenOptions opts : Arrays.asList(CodegenOptions.DEFAULT, addressing, addressing.withTarget(Target.X64))) {
+            assertEquals(ERAlloc.codegen(e, opts), ERAlloc.codegen(flat, opts));
+            assertEquals(ERAlloc.codegen(e, opts), ERAlloc.codegen(read, opts));
+            assertEquals(ERAlloc.codegen(e, opts), ERAlloc.codegen(FlatExpr.of(e), opts));
+            assertEquals(ERAlloc.codegen(e, opts), ERAlloc.codegen(read.toExprAST(), opts));
+        }
+
+        // the strategies that need objects still work
+        final CodegenOptions linear = CodegenOptions.DEFAULT.withStrategy(Strategy.LINEAR_SCAN);
+        assertEquals(ERAlloc.codegen(e, linear), ERAlloc.codegen(read, linear));
+
+        final byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 2);
+        assertThrows(IllegalArgumentException.class, () -> FlatExpr.read(ByteBuffer.wrap(truncated)));
+        assertThrows(IllegalStateException.class, () -> new FlatExpr.Builder().open(FlatExpr.LOAD).numeric(1).numeric(2).close());
+
+        // a lone call node that claims Integer.MAX_VALUE arguments
+        final ByteArrayOutputStream call = new ByteArrayOutputStream();
+        new FlatExpr.Builder().numeric(0).build().writeTo(Channels.newChannel(call));
+        final ByteBuffer crafted = ByteBuffer.wrap(call.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        // after the 16 byte header come the value, the size and the kind
+        crafted.putInt(16, Integer.MAX_VALUE).put(16 + 8, (byte) FlatExpr.CALL);
+        assertThrows(IllegalArgumentException.class, () -> FlatExpr.read(crafted));
+    }
+
+    @Test
+    public void testCodegenStats() throws IOException {
+        final ExprAST shift = new AddExpr(
+                new LoadExpr(new GlobalValue("x")),
+                new ShlExpr(new LoadExpr(new GlobalValue("a")), new LoadExpr(new GlobalValue("b"))));
+        final CodegenStats stats = ERAlloc.compile(shift, CodegenOptions.DEFAULT).getStats();
+        assertEquals(8, stats.getNodeCount());
+        assertEquals(2, stats.getMaxLabel());
+        assertEquals(13, stats.getInstructionCount());
+        assertEquals(1, stats.getExchangeCount());
+        assertEquals(0, stats.getSpillCount());
+        assertTrue(stats.getLabelTime() >= 0 && stats.getEmitTime() >= 0);
+
+        // the result of g is in the way of the call to f
+        final ExprAST calls = new AddExpr(new CallExpr(new GlobalValue("g")), new CallExpr(new GlobalValue("f"), new Numeric(1)));
+        final CodegenStats spilled = ERAlloc.compile(calls, CodegenOptions.DEFAULT).getStats();
+        assertEquals(1, spilled.getSpillCount());
+        assertEquals(1, spilled.getEmergencySpillCount());
+        assertEquals(4, spilled.getFrameSize());
+
+        // streaming and flat expressions count the same things
+        final CodegenStats streamed = ERAlloc.codegen(calls, CodegenOptions.DEFAULT, new StringBuilder());
+        assertEquals(spilled.getInstructionCount(), streamed.getInstructionCount());
+        assertEquals(spilled.getEmergencySpillCount(), streamed.getEmergencySpillCount());
+        final CodegenStats flat = ERAlloc.compile(FlatExpr.of(shift), CodegenOptions.DEFAULT).getStats();
+        assertEquals(stats.getInstructionCount(), flat.getInstructionCount());
+        assertEquals(stats.getExchangeCount(), flat.getExchangeCount());
+
+        // the peephole pass reports what it did
+        final ExprAST rem = new RemExpr(new Numeric(16), new ShlExpr(new Numeric(96), new Numeric(75)));
+        final Peephole expected = new Peephole();
+        expected.optimize(ERAlloc.compile(rem, CodegenOptions.DEFAULT).getInstrs());
+        final CodegenOptions peephole = CodegenOptions.DEFAULT.withPeephole(true);
+        final CodegenStats optimized = ERAlloc.compile(rem, peephole).getStats();
+        final CodegenStats optimizedStream = ERAlloc.codegen(rem, peephole, new StringBuilder());
+        for (final Peephole.Rule rule : Peephole.Rule.values()) {
+            assertEquals(expected.hits(rule), optimized.getPeepholeHits(rule));
+            assertEquals(expected.hits(rule), optimizedStream.getPeepholeHits(rule));
+        }
+        assertTrue(optimized.getPeepholeHits() > 0);
+        assertEquals(0, spilled.getPeepholeHits());
+    }
+
+    @Test
+    public void testIncrementalCodegen() {
+        final ExprAST mul = new MulExpr(new LoadExpr(new GlobalValue("c")), new CallExpr(new GlobalValue("f"), new Numeric(1)));
+        final ExprAST b = new LoadExpr(new GlobalValue("b"));
+        final ExprAST e = new AddExpr(new SubExpr(new LoadExpr(new GlobalValue("a")), b), mul);
+
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withRegisters(Register.EAX, Register.ECX, Register.EDX).withPrologue(true);
+        final IncrementalCodegen inc = new IncrementalCodegen(opts);
+        assertEquals(ERAlloc.codegen(e, opts), inc.codegen(e));
+
+        // only the path to the changed load is labelled again, the other
+        // load and the product are reused as they are
+        final ExprAST edited = new AddExpr(new SubExpr(new LoadExpr(new GlobalValue("x")), b), mul);
+        final CodegenResult result = inc.compile(edited);
+        assertEquals(ERAlloc.codegen(edited, opts), result.toStrings());
+        assertEquals(ERAlloc.compile(edited, opts).getFrameSize(), result.getFrameSize());
+        assertEquals(6, result.getStats().getNodeCount());
+
+        // a change in the labels moves the other registers around
+        final ExprAST deeper = new AddExpr(new SubExpr(new LoadExpr(new AddExpr(new LoadExpr(new GlobalValue("p")), new Numeric(4))), b), mul);
+        assertEquals(ERAlloc.codegen(deeper, opts), inc.codegen(deeper));
+        assertEquals(ERAlloc.codegen(e, opts), inc.codegen(e));
+
+        assertThrows(IllegalArgumentException.class, () -> new IncrementalCodegen(CodegenOptions.DEFAULT.withTiling(true)));
+    }
+
+    @Test
+    public void testExprParser() throws IOException {
+        final ExprAST e = new AddExpr(
+                new LoadExpr(new AddExpr(new FrameIndex(8), new Numeric(4))),
+                new CallExpr(new GlobalValue("f"), new GlobalValue("p"), new Numeric(-1), new GlobalValue("p")));
+        final String text = "; a comment\n(add (load (add (frame 8) 0x4))\n     (call f p -1 p)) ; trailing";
+
+        final FlatExpr flat = ExprParser.parse(text);
+        assertEquals(10, flat.size());
+        assertEquals(ERAlloc.codegen(e, CodegenOptions.DEFAULT), ERAlloc.codegen(flat, CodegenOptions.DEFAULT));
+        assertEquals(ERAlloc.codegen(new CallExpr(new GlobalValue("g")), CodegenOptions.DEFAULT),
+                ERAlloc.codegen(ExprParser.parse("(call g)"), CodegenOptions.DEFAULT));
+
+        // many expressions compile one after the other
+        final ExprParser parser = new ExprParser(ByteBuffer.wrap((text + "\n42 x\n").getBytes(StandardCharsets.UTF_8)));
+        final StringBuilder out = new StringBuilder();
+        assertEquals(3, App.compileAll(parser, CodegenOptions.DEFAULT, out));
+        final StringBuilder first = new StringBuilder("; 1\n");
+        ERAlloc.codegen(FlatExpr.of(e), CodegenOptions.DEFAULT, first);
+        assertTrue(out.toString().startsWith(first.toString()));
+        assertTrue(out.toString().contains("; 3\n"));
+        assertFalse(parser.hasNext());
+
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("(add 1)"));
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("(load 1"));
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("(neg 1)"));
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("(call)"));
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("4294967296"));
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("1 2"));
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("-"));
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("-foo"));
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("(add - 1)"));
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("-0x1"));
+        final IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+                () -> ExprParser.parse("(add 1\n 2))"));
+        assertTrue(ex.getMessage().startsWith("Line 2:"));
+    }
+
+    @Test
+    public void testCompileServer() throws IOException {
+        final CodegenOptions opts = CodegenOptions.DEFAULT.withImmediates(true);
+        final StringBuilder expected = new StringBuilder("ok\n");
+        ERAlloc.codegen(ExprParser.parse("(add (load x) (call f 1))"), opts, expected);
+
+        final InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        try (final CompileServer server = new CompileServer(loopback, opts, 2).start();
+             final Socket socket = new Socket()) {
+            socket.connect(server.getAddress());
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            final Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+
+            // the requests are pipelined and answered in order
+            out.write("(add (load x) (call f 1))\n(add 1)\n(add (load x) (call f 1))\n");
+            out.flush();
+            assertEquals(expected.toString(), readResponse(in));
+            assertEquals("error Line 1: Wrong number of operands to add\n", readResponse(in));
+            assertEquals(expected.toString(), readResponse(in));
+
+            out.write("!stats\n!nope\n");
+            out.flush();
+            final String stats = readResponse(in);
+            assertTrue(stats.startsWith("ok\nrequests 3\np50 "));
+            assertTrue(readResponse(in).startsWith("error Unknown command"));
+            assertTrue(server.getLatency().quantile(0.5) > 0);
+            assertTrue(server.getLatency().quantile(0.99) <= server.getLatency().max());
+        }
+    }
+
+    private static String readResponse(BufferedReader in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty())
+            sb.append(line).append('\n');
+        return sb.toString();
+    }
 }